@@ -0,0 +1,570 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+// Benchmarks for CentralServer's hot paths, in the spirit of JMH but runnable with plain javac:
+//
+//   javac -encoding UTF-8 -d build CentralServer.java CentralBench.java
+//   java -cp build CentralBench [-o results.json] [--baseline old.json] [--filter regex] [--quick]
+//
+// Every benchmark runs warmup iterations and then measurement iterations of fixed length while its
+// threads call the operation in a loop (JMH "thrpt" mode); end-to-end ones also record the latency
+// of each call. The server runs in this JVM against in-memory fake workers speaking the worker
+// protocol, so results measure the server and not a Python worker or the client. Results go to a
+// JSON file; with --baseline, a throughput drop or p99 rise beyond the limits exits with status 1.
+public class CentralBench {
+    static final int PORT = Integer.getInteger("bench.port", 19000);
+    static final int ACCOUNTS = Integer.getInteger("bench.accounts", 10000);
+    static final int[] CLIENTS = { 1, 4, 16, 64 };
+
+    static int warmups = 2, iterations = 3;
+    static long iterationMs = 2000;
+    static volatile long sink; // keeps results observable so the JIT cannot drop the work
+
+    public static void main(String[] args) throws Exception {
+        String out = "bench-results.json", baseline = null;
+        Pattern filter = Pattern.compile("");
+        double maxDrop = 10, maxP99Rise = 25;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-o": out = args[++i]; break;
+                case "--baseline": baseline = args[++i]; break;
+                case "--filter": filter = Pattern.compile(args[++i]); break;
+                case "--max-drop": maxDrop = Double.parseDouble(args[++i]); break;
+                case "--max-p99-rise": maxP99Rise = Double.parseDouble(args[++i]); break;
+                case "--quick": warmups = 1; iterations = 2; iterationMs = 500; break;
+                default:
+                    System.err.println("usage: CentralBench [-o file] [--baseline file] [--filter regex] "
+                        + "[--max-drop pct] [--max-p99-rise pct] [--quick]");
+                    System.exit(2);
+            }
+        }
+        configureServer(PORT);
+
+        List<Result> results = new ArrayList<>();
+        for (Bench b : benchmarks()) {
+            if (!filter.matcher(b.name).find()) continue;
+            Result r = b.run();
+            results.add(r);
+            System.out.println(r.line());
+        }
+        Files.write(Paths.get(out), toJson(results).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Results written to " + out);
+        if (baseline != null && !compare(results, new String(Files.readAllBytes(Paths.get(baseline)), StandardCharsets.UTF_8), maxDrop, maxP99Rise)) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    // the server reads its configuration once, when the class is first used
+    static void configureServer(int port) throws IOException {
+        System.setProperty("central.port", String.valueOf(port));
+        System.setProperty("central.metrics.port", "0");
+        System.setProperty("central.log.sampleEvery", "0");
+        System.setProperty("central.txlog", Files.createTempFile("bench-coordinator", ".log").toString());
+        // reads should reach the workers unless a run asks for the cache explicitly
+        if (System.getProperty("central.cache.size") == null) System.setProperty("central.cache.size", "0");
+    }
+
+    static List<Bench> benchmarks() {
+        List<Bench> list = new ArrayList<>();
+        String[] lines = {
+            "CONSULTAR_CUENTA|4711", "TRANSFERIR_CUENTA|12|9876|25.50", "CREAR_PRESTAMO|77|1000|1000",
+            "PAGAR_PRESTAMO|77|3|10.0", "ESTADO_PAGO_PRESTAMO|42", "ARQUEO",
+        };
+        list.add(new Bench("parse.keysOf", 1, false, () -> {
+            int[] i = { 0 };
+            return () -> {
+                String line = lines[i[0]++ % lines.length];
+                int[] keys = CentralServer.ClientHandler.keysOf(line);
+                return line.split("\\|").length + (keys == null ? 0 : keys.length);
+            };
+        }));
+        for (int members : new int[] { 3, 16 }) {
+            List<CentralServer.WorkerInfo> ws = new ArrayList<>();
+            for (int m = 0; m < members; m++) ws.add(new CentralServer.WorkerInfo("w" + m, null, null, null, true));
+            CentralServer.Partitioner ring = new CentralServer.HashRing(ws, 128);
+            CentralServer.Partitioner modulo = new CentralServer.ModuloPartitioner(ws);
+            list.add(new Bench("routing.ring.ownerOf.members" + members, 1, false, () -> {
+                int[] id = { 0 };
+                return () -> ring.ownerOf(id[0]++ % ACCOUNTS).weight;
+            }));
+            list.add(new Bench("routing.ring.replicasFor2.members" + members, 1, false, () -> {
+                int[] id = { 0 };
+                return () -> ring.replicasFor(id[0]++ % ACCOUNTS, 2).size();
+            }));
+            list.add(new Bench("routing.modulo.ownerOf.members" + members, 1, false, () -> {
+                int[] id = { 0 };
+                return () -> modulo.ownerOf(id[0]++ % ACCOUNTS).weight;
+            }));
+        }
+        for (int threads : new int[] { 1, 4, 16 }) {
+            list.add(new Bench("worker.roundtrip", threads, true, () -> {
+                CentralServer.WorkerInfo w = channel();
+                return () -> w.submit("CONSULTAR_CUENTA|1", 5000).get().length();
+            }));
+        }
+        for (int clients : CLIENTS) {
+            list.add(new Bench("e2e.CONSULTAR_CUENTA", clients, true, () -> {
+                Client c = client();
+                return () -> c.call("CONSULTAR_CUENTA|" + (1 + ThreadLocalRandom.current().nextInt(ACCOUNTS)));
+            }));
+        }
+        for (int clients : CLIENTS) {
+            list.add(new Bench("e2e.TRANSFERIR_CUENTA", clients, true, () -> {
+                Client c = client();
+                return () -> {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    int from = 1 + rnd.nextInt(ACCOUNTS), to = 1 + rnd.nextInt(ACCOUNTS);
+                    if (to == from) to = from % ACCOUNTS + 1;
+                    return c.call("TRANSFERIR_CUENTA|" + from + "|" + to + "|0.01");
+                };
+            }));
+        }
+        for (int clients : CLIENTS) {
+            list.add(new Bench("e2e.ARQUEO", clients, true, () -> {
+                Client c = client();
+                return () -> c.call("ARQUEO");
+            }));
+        }
+        return list;
+    }
+
+    // ---- harness ----
+
+    interface Op {
+        long call() throws Exception;
+    }
+
+    interface OpFactory {
+        Op create() throws Exception; // once per benchmark thread, e.g. to open its connection
+    }
+
+    static final class Bench {
+        final String name;
+        final int threads;
+        final boolean timed;   // record per-call latency (too costly for nanosecond operations)
+        final OpFactory factory;
+
+        Bench(String name, int threads, boolean timed, OpFactory factory) {
+            this.name = name; this.threads = threads; this.timed = timed; this.factory = factory;
+        }
+
+        Result run() throws Exception {
+            Op[] ops = new Op[threads];
+            for (int t = 0; t < threads; t++) ops[t] = factory.create();
+            AtomicLongArray done = new AtomicLongArray(threads * 16); // one padded slot per thread
+            AtomicLong errors = new AtomicLong();
+            CentralServer.Histogram latency = new CentralServer.Histogram();
+            AtomicBoolean measuring = new AtomicBoolean();
+            AtomicBoolean running = new AtomicBoolean(true);
+            int batch = timed ? 1 : 256;
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                Op op = ops[t];
+                int slot = t * 16;
+                workers[t] = new Thread(() -> {
+                    long n = 0, local = 0;
+                    while (running.get()) {
+                        try {
+                            for (int i = 0; i < batch; i++) {
+                                long start = timed ? System.nanoTime() : 0;
+                                local += op.call();
+                                if (timed && measuring.get()) latency.recordSince(start);
+                            }
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                        }
+                        n += batch;
+                        done.lazySet(slot, n);
+                    }
+                    sink += local;
+                }, name + "-" + t);
+                workers[t].setDaemon(true);
+                workers[t].start();
+            }
+            double[] scores = new double[iterations];
+            long errorsBefore = 0;
+            for (int i = 0; i < warmups + iterations; i++) {
+                boolean warmup = i < warmups;
+                if (!warmup && i == warmups) {
+                    measuring.set(true);
+                    errorsBefore = errors.get();
+                }
+                long before = total(done), t0 = System.nanoTime();
+                Thread.sleep(iterationMs);
+                long ops2 = total(done) - before;
+                double secs = (System.nanoTime() - t0) / 1e9;
+                if (!warmup) scores[i - warmups] = ops2 / secs;
+            }
+            running.set(false);
+            for (Thread w : workers) w.join(10000);
+            return new Result(this, scores, timed ? latency : null, errors.get() - errorsBefore);
+        }
+
+        private long total(AtomicLongArray done) {
+            long sum = 0;
+            for (int t = 0; t < threads; t++) sum += done.get(t * 16);
+            return sum;
+        }
+    }
+
+    static final class Result {
+        final String name;
+        final int threads;
+        final double[] scores;
+        final double score, error;
+        final CentralServer.Histogram latency;
+        final long errors;
+
+        Result(Bench b, double[] scores, CentralServer.Histogram latency, long errors) {
+            this.name = b.name; this.threads = b.threads; this.scores = scores; this.latency = latency; this.errors = errors;
+            double sum = 0;
+            for (double s : scores) sum += s;
+            score = sum / scores.length;
+            double var = 0;
+            for (double s : scores) var += (s - score) * (s - score);
+            error = scores.length > 1 ? Math.sqrt(var / (scores.length - 1)) : 0;
+        }
+
+        String key() {
+            return name + "@" + threads;
+        }
+
+        String line() {
+            String s = String.format(Locale.ROOT, "%-40s %3d thr %14.1f ops/s +- %.1f", name, threads, score, error);
+            if (latency != null) {
+                s += String.format(Locale.ROOT, "   p50 %7d us  p99 %7d us  p999 %7d us", latency.percentile(0.5), latency.percentile(0.99), latency.percentile(0.999));
+            }
+            return errors > 0 ? s + "  errors " + errors : s;
+        }
+    }
+
+    static String toJson(List<Result> results) {
+        StringBuilder sb = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            sb.append("  {\"benchmark\": \"").append(r.name).append("\", \"mode\": \"thrpt\", \"threads\": ").append(r.threads)
+              .append(", \"warmupIterations\": ").append(warmups).append(", \"measurementIterations\": ").append(iterations)
+              .append(", \"iterationMs\": ").append(iterationMs).append(", \"errors\": ").append(r.errors).append(",\n")
+              .append("   \"primaryMetric\": {\"score\": ").append(num(r.score)).append(", \"scoreError\": ").append(num(r.error))
+              .append(", \"scoreUnit\": \"ops/s\", \"rawData\": [");
+            for (int k = 0; k < r.scores.length; k++) sb.append(k == 0 ? "" : ", ").append(num(r.scores[k]));
+            sb.append("]}");
+            if (r.latency != null) {
+                CentralServer.Histogram h = r.latency;
+                sb.append(",\n   \"latency\": {\"unit\": \"us\", \"p50\": ").append(h.percentile(0.5))
+                  .append(", \"p90\": ").append(h.percentile(0.9)).append(", \"p99\": ").append(h.percentile(0.99))
+                  .append(", \"p999\": ").append(h.percentile(0.999)).append(", \"max\": ").append(h.percentile(1.0)).append("}");
+            }
+            sb.append(i + 1 < results.size() ? "},\n" : "}\n");
+        }
+        return sb.append("]\n").toString();
+    }
+
+    private static String num(double v) {
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+
+    // reads back files written by toJson(); true when nothing regressed beyond the limits
+    static boolean compare(List<Result> results, String baseline, double maxDrop, double maxP99Rise) {
+        Map<String, double[]> base = new HashMap<>();
+        for (String obj : baseline.split("\\{\"benchmark\"")) {
+            String name = field(obj, "^: \"([^\"]+)\""), threads = field(obj, "\"threads\": (\\d+)");
+            String score = field(obj, "\"score\": ([0-9.]+)"), p99 = field(obj, "\"p99\": (\\d+)");
+            if (name == null || threads == null || score == null) continue;
+            base.put(name + "@" + threads, new double[] { Double.parseDouble(score), p99 == null ? -1 : Double.parseDouble(p99) });
+        }
+        boolean ok = true;
+        System.out.println("Compared with baseline (limits: -" + maxDrop + "% throughput, +" + maxP99Rise + "% p99):");
+        for (Result r : results) {
+            double[] b = base.get(r.key());
+            if (b == null) continue;
+            double dThr = (r.score - b[0]) / b[0] * 100;
+            String verdict = dThr < -maxDrop ? "REGRESSION" : "ok";
+            String p99 = "";
+            if (r.latency != null && b[1] > 0) {
+                double dP99 = (r.latency.percentile(0.99) - b[1]) / b[1] * 100;
+                p99 = String.format(Locale.ROOT, "  p99 %+6.1f%%", dP99);
+                if (dP99 > maxP99Rise) verdict = "REGRESSION";
+            }
+            if (!verdict.equals("ok")) ok = false;
+            System.out.println(String.format(Locale.ROOT, "  %-40s %3d thr  thrpt %+6.1f%%%s  %s", r.name, r.threads, dThr, p99, verdict));
+        }
+        return ok;
+    }
+
+    private static String field(String json, String regex) {
+        Matcher m = Pattern.compile(regex).matcher(json);
+        return m.find() ? m.group(1) : null;
+    }
+
+    // ---- system under test ----
+
+    private static boolean started;
+
+    // the real server on the given port with fake workers and accounts of 1000.0 each;
+    // configureServer must have run first
+    static synchronized void startServer(int port, int fakeWorkers, int accounts) throws Exception {
+        if (started) return;
+        started = true;
+        Thread server = new Thread(() -> {
+            try {
+                CentralServer.main(new String[0]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "central-server");
+        server.setDaemon(true);
+        server.start();
+        for (int i = 0; ; i++) {
+            try {
+                new Socket("localhost", port).close();
+                break;
+            } catch (IOException e) {
+                if (i > 200) throw e;
+                Thread.sleep(25);
+            }
+        }
+        for (int i = 0; i < fakeWorkers; i++) {
+            String id = "fake" + i;
+            Socket s = new Socket("localhost", port);
+            s.setTcpNoDelay(true);
+            s.getOutputStream().write(("WORKER|" + id + "|MUX\n").getBytes(StandardCharsets.UTF_8));
+            FakeWorker.serve(s, id);
+        }
+        Client admin = new Client(port);
+        for (int i = 0; !admin.line("RING").contains("fake" + (fakeWorkers - 1)); i++) {
+            if (i > 200) throw new IllegalStateException("fake workers did not register");
+            Thread.sleep(25);
+        }
+        admin.send("CREATE_ACCOUNTS|" + accounts + "|1000.0");
+        String reply;
+        while (!(reply = admin.read()).startsWith("DONE") && !reply.startsWith("ERROR")) { }
+        System.out.println("Server on port " + port + ": " + fakeWorkers + " fake workers, " + reply);
+    }
+
+    static Client client() throws Exception {
+        startServer(PORT, 2, ACCOUNTS);
+        return new Client(PORT);
+    }
+
+    private static CentralServer.WorkerInfo channel;
+
+    // one worker channel shared by all threads, like the server's; not registered with the server
+    static synchronized CentralServer.WorkerInfo channel() throws Exception {
+        if (channel != null) return channel;
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket workerSide = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            Socket serverSide = listener.accept();
+            workerSide.setTcpNoDelay(true);
+            serverSide.setTcpNoDelay(true);
+            FakeWorker fake = FakeWorker.serve(workerSide, "channel");
+            fake.accounts.put(1, new long[] { 100000 });
+            BufferedReader in = new BufferedReader(new InputStreamReader(serverSide.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(serverSide.getOutputStream(), true);
+            CentralServer.WorkerInfo w = new CentralServer.WorkerInfo("channel", serverSide, in, out, true);
+            w.listen();
+            return channel = w;
+        }
+    }
+
+    // one blocking text-protocol connection
+    static final class Client {
+        private final BufferedReader in;
+        private final Writer out;
+
+        Client(int port) throws IOException {
+            this("localhost", port);
+        }
+
+        Client(String host, int port) throws IOException {
+            Socket s = new Socket(host, port);
+            s.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            send("CLIENT_BANK|bench");
+            read(); // WELCOME
+        }
+
+        void send(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+        }
+
+        String read() throws IOException {
+            String line = in.readLine();
+            if (line == null) throw new EOFException("server closed the connection");
+            return line;
+        }
+
+        String line(String cmd) throws IOException {
+            send(cmd);
+            return read();
+        }
+
+        // an ERROR reply counts as a failed call
+        long call(String cmd) throws IOException {
+            String reply = line(cmd);
+            if (reply.startsWith("ERROR")) throw new IOException(reply);
+            return reply.length();
+        }
+    }
+
+    // In-memory worker speaking the MUX worker protocol: the operations the benchmarked commands
+    // and CentralLoad's mix reach, with balances in cents. Requests are handled in order on one thread, like a real worker.
+    static final class FakeWorker {
+        final Map<Integer, long[]> accounts = new ConcurrentHashMap<>();
+        private final Map<String, long[]> prepared = new HashMap<>(); // "tx:side" -> {account, cents}
+        private final Map<Integer, List<long[]>> loans = new HashMap<>(); // account -> {id, cents, pending}
+        private int loanCounter;
+
+        static FakeWorker serve(Socket s, String id) throws IOException {
+            FakeWorker fake = new FakeWorker();
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+            Thread t = new Thread(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        int bar = line.indexOf('|');
+                        String tag = line.startsWith("#") && bar > 0 ? line.substring(0, bar + 1) : "";
+                        out.write(tag);
+                        out.write(fake.handle(line.substring(tag.length())));
+                        out.write('\n');
+                        if (!in.ready()) out.flush(); // replies to requests that arrived together go out together
+                    }
+                } catch (IOException e) {
+                    // connection closed
+                }
+            }, "fake-worker-" + id);
+            t.setDaemon(true);
+            t.start();
+            return fake;
+        }
+
+        String handle(String cmd) {
+            String[] p = cmd.split("\\|");
+            switch (p[0]) {
+                case "PING":
+                    return "PONG";
+                case "CREATE_ACCOUNTS_BATCH": {
+                    long cents = CentralServer.toCents(Double.parseDouble(p[1]));
+                    String[] ids = p[2].split(",");
+                    for (String id : ids) accounts.put(Integer.parseInt(id), new long[] { cents });
+                    return "OK|" + ids.length;
+                }
+                case "CONSULTAR_CUENTA": {
+                    long[] acc = accounts.get(Integer.parseInt(p[1]));
+                    if (acc == null) return "ERROR|NoExiste";
+                    return "OK|{\"balance\": " + CentralServer.amount(acc[0]) + ", \"loans\": [], \"id\": " + p[1] + ", \"id_cliente\": " + p[1] + "}";
+                }
+                case "PREPARE_DEBIT":
+                case "PREPARE_CREDIT": {
+                    int account = Integer.parseInt(p[2]);
+                    long cents = CentralServer.toCents(Double.parseDouble(p[3]));
+                    long[] acc = accounts.get(account);
+                    if (acc == null) return "ERROR|NoExiste";
+                    boolean debit = p[0].equals("PREPARE_DEBIT");
+                    String key = p[1] + (debit ? ":debit" : ":credit");
+                    if (prepared.containsKey(key)) return "OK";
+                    if (debit && acc[0] - held(account) < cents) return "ERROR|SaldoInsuficiente";
+                    prepared.put(key, new long[] { account, cents, debit ? 1 : 0 });
+                    return "OK";
+                }
+                case "COMMIT": {
+                    for (String side : new String[] { ":debit", ":credit" }) {
+                        long[] hold = prepared.remove(p[1] + side);
+                        if (hold != null) accounts.get((int) hold[0])[0] += hold[2] == 1 ? -hold[1] : hold[1];
+                    }
+                    return "OK";
+                }
+                case "ABORT":
+                    prepared.remove(p[1] + ":debit");
+                    prepared.remove(p[1] + ":credit");
+                    return "OK";
+                case "LIST_PREPARED": {
+                    Set<String> txs = new TreeSet<>();
+                    for (String key : prepared.keySet()) txs.add(key.substring(0, key.lastIndexOf(':')));
+                    return "OK|" + String.join(",", txs);
+                }
+                case "TRANSFER_LOCAL": {
+                    long[] src = accounts.get(Integer.parseInt(p[2])), dst = accounts.get(Integer.parseInt(p[3]));
+                    long cents = CentralServer.toCents(Double.parseDouble(p[4]));
+                    if (src == null) return "ERROR|NoExiste";
+                    if (dst == null) return "ERROR|DestinoNoExiste";
+                    if (src[0] - held(Integer.parseInt(p[2])) < cents) return "ERROR|SaldoInsuficiente";
+                    src[0] -= cents;
+                    dst[0] += cents;
+                    return "OK";
+                }
+                case "CREAR_PRESTAMO": {
+                    int account = Integer.parseInt(p[1]);
+                    if (!accounts.containsKey(account)) return "ERROR|NoExiste";
+                    long[] loan = { ++loanCounter, CentralServer.toCents(Double.parseDouble(p[2])), CentralServer.toCents(Double.parseDouble(p[3])) };
+                    loans.computeIfAbsent(account, k -> new ArrayList<>()).add(loan);
+                    return "OK|LoanID:" + loan[0];
+                }
+                case "PAGAR_PRESTAMO": {
+                    int account = Integer.parseInt(p[1]);
+                    if (!accounts.containsKey(account)) return "ERROR|NoExiste";
+                    long id = Long.parseLong(p[2]), cents = CentralServer.toCents(Double.parseDouble(p[3]));
+                    for (long[] loan : loans.getOrDefault(account, Collections.emptyList())) {
+                        if (loan[0] != id) continue;
+                        if (loan[2] < cents) return "ERROR|MontoExcedeMontoPendiente";
+                        loan[2] -= cents;
+                        return "OK|MontoRestante:" + CentralServer.amount(loan[2]);
+                    }
+                    return "ERROR|PrestamoNoExiste";
+                }
+                case "ESTADO_PAGO_PRESTAMO": {
+                    int account = Integer.parseInt(p[1]);
+                    if (!accounts.containsKey(account)) return "ERROR|NoExiste";
+                    StringBuilder sb = new StringBuilder("OK|[");
+                    for (long[] loan : loans.getOrDefault(account, Collections.emptyList())) {
+                        if (sb.length() > 4) sb.append(", ");
+                        sb.append("{\"id_prestamo\": ").append(loan[0])
+                          .append(", \"monto_total\": ").append(CentralServer.amount(loan[1]))
+                          .append(", \"monto_pagado\": ").append(CentralServer.amount(loan[1] - loan[2]))
+                          .append(", \"monto_pendiente\": ").append(CentralServer.amount(loan[2]))
+                          .append(", \"estado\": \"").append(loan[2] > 0 ? "Activo" : "Cancelado").append("\"}");
+                    }
+                    return sb.append(']').toString();
+                }
+                case "ARQUEO": {
+                    long total = 0;
+                    for (long[] acc : accounts.values()) total += acc[0];
+                    return "OK|" + CentralServer.amount(total) + "|" + accounts.size();
+                }
+                case "LIST_ACCOUNTS": {
+                    int after = Integer.parseInt(p[1]), limit = Integer.parseInt(p[2]);
+                    TreeSet<Integer> ids = new TreeSet<>(accounts.keySet());
+                    StringBuilder sb = new StringBuilder("OK|");
+                    int n = 0;
+                    for (int id : ids.tailSet(after, false)) {
+                        if (n++ == limit) break;
+                        if (n > 1) sb.append(',');
+                        sb.append(id);
+                    }
+                    return sb.toString();
+                }
+                default:
+                    return "ERROR|UnknownOp";
+            }
+        }
+
+        private long held(int account) {
+            long sum = 0;
+            for (long[] hold : prepared.values()) {
+                if (hold[0] == account && hold[2] == 1) sum += hold[1];
+            }
+            return sum;
+        }
+    }
+}
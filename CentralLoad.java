@@ -0,0 +1,560 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator for CentralServer's text protocol, for capacity planning:
+//
+//   javac -encoding UTF-8 -d build CentralServer.java CentralBench.java CentralLoad.java
+//   java -cp build CentralLoad --rate 5000 --connections 2000 --duration 60 --zipf 0.99
+//   java -cp build CentralLoad --stub 3 --rate 20000          (server and fake workers in this JVM)
+//
+// Open loop (--rate > 0): requests arrive on a fixed schedule whether or not earlier ones have been
+// answered, spread round-robin over the connections and pipelined with #tag|. Latency is measured
+// from the time a request was scheduled, not from when it could be written, so a stalled server
+// shows up as the queueing delay its users would see instead of being hidden by the generator
+// slowing down (coordinated omission). The time from write to reply is reported as "service".
+// Closed loop (--rate 0): every connection keeps --depth requests outstanding and latency is
+// measured from the write, which is all a closed loop can honestly report.
+//
+// Accounts are drawn from a Zipf distribution (account 1 is the hottest) and commands from a
+// weighted mix. Throughput and latency percentiles are printed every --interval seconds and, with
+// --csv, written to a file; a per-command summary follows at the end.
+public class CentralLoad {
+    static String host = "localhost";
+    static int port = 9000;
+    static int connections = 100;
+    static int threads = Math.min(8, Runtime.getRuntime().availableProcessors());
+    static double rate = 1000;        // requests per second over all connections; 0 = closed loop
+    static boolean poisson = false;    // exponential inter-arrival times instead of a fixed interval
+    static int depth = 16;             // requests outstanding per connection before they queue locally
+    static int durationS = 30, warmupS = 5;
+    static double intervalS = 1;
+    static int accounts = 10000;
+    static double zipf = 0.99;
+    static String mix = "consult=50,transfer=40,loan_status=6,loan_create=2,loan_pay=2";
+    static int stub = 0;               // fake workers for an in-process server; 0 = use --host/--port
+    static boolean create = false;
+    static String csv = null;
+
+    enum Op { CONSULT, TRANSFER, LOAN_STATUS, LOAN_CREATE, LOAN_PAY, ARQUEO }
+
+    static volatile boolean sending = true;
+    static volatile Stats interval = new Stats(), total = new Stats();
+    static final ConcurrentHashMap<String, LongAdder> errorCodes = new ConcurrentHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        boolean portSet = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); portSet = true; break;
+                case "--connections": connections = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--rate": rate = Double.parseDouble(args[++i]); break;
+                case "--poisson": poisson = true; break;
+                case "--depth": depth = Integer.parseInt(args[++i]); break;
+                case "--duration": durationS = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmupS = Integer.parseInt(args[++i]); break;
+                case "--interval": intervalS = Double.parseDouble(args[++i]); break;
+                case "--accounts": accounts = Integer.parseInt(args[++i]); break;
+                case "--zipf": zipf = Double.parseDouble(args[++i]); break;
+                case "--mix": mix = args[++i]; break;
+                case "--stub": stub = Integer.parseInt(args[++i]); break;
+                case "--create": create = true; break;
+                case "--csv": csv = args[++i]; break;
+                default:
+                    System.err.println("usage: CentralLoad [--host h] [--port p] [--connections n] [--threads n]\n"
+                        + "  [--rate ops/s (0 = closed loop)] [--poisson] [--depth n] [--duration s] [--warmup s]\n"
+                        + "  [--interval s] [--accounts n] [--zipf theta (0 = uniform)] [--mix consult=50,transfer=40,...]\n"
+                        + "  [--stub workers] [--create] [--csv file]");
+                    System.exit(2);
+            }
+        }
+        if (zipf < 0 || zipf >= 1) throw new IllegalArgumentException("--zipf must be in [0, 1)");
+        double[] weights = parseMix(mix);
+        threads = Math.max(1, Math.min(threads, connections));
+
+        if (stub > 0) {
+            if (!portSet) port = CentralBench.PORT;
+            host = "localhost";
+            CentralBench.configureServer(port);
+            CentralBench.startServer(port, stub, accounts);
+        } else if (create) {
+            CentralBench.Client admin = new CentralBench.Client(host, port);
+            admin.send("CREATE_ACCOUNTS|" + accounts + "|1000.0");
+            String reply;
+            while (!(reply = admin.read()).startsWith("DONE") && !reply.startsWith("ERROR")) { }
+            System.out.println(reply);
+        }
+
+        Zipf keys = new Zipf(accounts, zipf);
+        Loader[] loaders = new Loader[threads];
+        for (int t = 0; t < threads; t++) {
+            int n = connections / threads + (t < connections % threads ? 1 : 0);
+            loaders[t] = new Loader(t, n, rate / threads, weights, keys);
+        }
+        long connectStart = System.nanoTime();
+        CountDownLatch connected = new CountDownLatch(threads);
+        for (Loader l : loaders) l.connect(connected);
+        connected.await();
+        for (Loader l : loaders) {
+            if (l.failure != null) throw l.failure;
+        }
+        System.out.printf(Locale.ROOT, "%d connections in %.1fs; %s, %d s warmup + %d s, zipf %.2f over %d accounts%n",
+            connections, (System.nanoTime() - connectStart) / 1e9,
+            rate > 0 ? String.format(Locale.ROOT, "open loop at %.0f ops/s%s", rate, poisson ? " (poisson)" : "")
+                     : "closed loop, depth " + depth,
+            warmupS, durationS, zipf, accounts);
+
+        PrintWriter csvOut = csv == null ? null : new PrintWriter(new FileWriter(csv));
+        if (csvOut != null) csvOut.println("time_s,phase,ops_per_s,errors,backlog,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,service_p99_ms");
+        System.out.println("   time  phase       ops/s   errors  backlog |    p50     p90     p99   p99.9     max  (ms, from schedule) | svc p99");
+
+        long start = System.nanoTime();
+        for (Loader l : loaders) l.start(start);
+        long intervalNs = (long) (intervalS * 1e9);
+        long warmupEnd = start + warmupS * 1_000_000_000L, end = warmupEnd + durationS * 1_000_000_000L;
+        long measureStart = warmupEnd;
+        boolean warm = warmupS == 0;
+        for (long next = start + intervalNs; ; next += intervalNs) {
+            next = Math.min(next, warm ? end : warmupEnd);
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            Stats done = interval;
+            interval = new Stats();
+            double elapsed = (next - Math.max(start, done.since)) / 1e9;
+            int backlog = 0;
+            for (Loader l : loaders) backlog += l.backlog;
+            report(done, (next - start) / 1e9, warm ? "measure" : "warmup", elapsed, backlog, csvOut);
+            if (!warm && next >= warmupEnd) {
+                warm = true;
+                total = new Stats();
+                errorCodes.clear();
+                measureStart = next;
+            }
+            if (next >= end) break;
+        }
+        sending = false;
+        long unanswered = 0;
+        for (Loader l : loaders) {
+            l.join(5000);
+            unanswered += l.outstanding();
+        }
+        if (csvOut != null) csvOut.close();
+        summary(total, (end - measureStart) / 1e9, unanswered);
+        System.exit(0);
+    }
+
+    static double[] parseMix(String spec) {
+        double[] weights = new double[Op.values().length];
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=");
+            weights[Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Double.parseDouble(kv[1]);
+        }
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) weights[i] = sum += weights[i];
+        if (sum <= 0) throw new IllegalArgumentException("--mix has no positive weight");
+        for (int i = 0; i < weights.length; i++) weights[i] /= sum; // cumulative, ending at 1
+        return weights;
+    }
+
+    // ---- reporting ----
+
+    // latency of the completed requests of one period, per command
+    static final class Stats {
+        final long since = System.nanoTime();
+        final CentralServer.Histogram[] latency = new CentralServer.Histogram[Op.values().length];
+        final CentralServer.Histogram[] service = new CentralServer.Histogram[Op.values().length];
+        final LongAdder[] done = new LongAdder[Op.values().length];
+        final LongAdder[] errors = new LongAdder[Op.values().length];
+        final CentralServer.Histogram all = new CentralServer.Histogram();
+        final CentralServer.Histogram allService = new CentralServer.Histogram();
+
+        Stats() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new CentralServer.Histogram();
+                service[i] = new CentralServer.Histogram();
+                done[i] = new LongAdder();
+                errors[i] = new LongAdder();
+            }
+        }
+
+        void record(Op op, long latencyMicros, long serviceMicros, boolean error) {
+            latency[op.ordinal()].record(latencyMicros);
+            service[op.ordinal()].record(serviceMicros);
+            all.record(latencyMicros);
+            allService.record(serviceMicros);
+            done[op.ordinal()].increment();
+            if (error) errors[op.ordinal()].increment();
+        }
+
+        long done() {
+            long n = 0;
+            for (LongAdder d : done) n += d.sum();
+            return n;
+        }
+
+        long errors() {
+            long n = 0;
+            for (LongAdder e : errors) n += e.sum();
+            return n;
+        }
+    }
+
+    static void report(Stats s, double time, String phase, double seconds, int backlog, PrintWriter csvOut) {
+        CentralServer.Histogram h = s.all;
+        double ops = s.done() / seconds;
+        System.out.printf(Locale.ROOT, "%6.1fs  %-7s %10.1f %8d %8d | %s %s %s %s %s                      | %s%n",
+            time, phase, ops, s.errors(), backlog, ms(h.percentile(0.50)), ms(h.percentile(0.90)), ms(h.percentile(0.99)),
+            ms(h.percentile(0.999)), ms(h.percentile(1.0)), ms(s.allService.percentile(0.99)));
+        if (csvOut != null) {
+            csvOut.printf(Locale.ROOT, "%.1f,%s,%.1f,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n", time, phase, ops, s.errors(), backlog,
+                h.percentile(0.50) / 1000.0, h.percentile(0.90) / 1000.0, h.percentile(0.99) / 1000.0,
+                h.percentile(0.999) / 1000.0, h.percentile(1.0) / 1000.0, s.allService.percentile(0.99) / 1000.0);
+            csvOut.flush();
+        }
+    }
+
+    static void summary(Stats s, double seconds, long unanswered) {
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-12s %10s %10s %8s | %7s %7s %7s %7s %7s | %7s %7s%n",
+            "command", "requests", "ops/s", "errors", "p50", "p90", "p99", "p99.9", "max", "svc p50", "svc p99");
+        for (Op op : Op.values()) {
+            int i = op.ordinal();
+            if (s.done[i].sum() == 0) continue;
+            line(op.name().toLowerCase(Locale.ROOT), s.done[i].sum(), seconds, s.errors[i].sum(), s.latency[i], s.service[i]);
+        }
+        line("all", s.done(), seconds, s.errors(), s.all, s.allService);
+        System.out.println("latency in ms from the scheduled send time" + (rate > 0 ? "" : " (closed loop: from the write)")
+            + "; svc = from the write to the reply");
+        if (!errorCodes.isEmpty()) {
+            StringBuilder sb = new StringBuilder("errors:");
+            new TreeMap<>(errorCodes).forEach((code, n) -> sb.append(' ').append(code).append('=').append(n.sum()));
+            System.out.println(sb);
+        }
+        if (unanswered > 0) System.out.println("unanswered at exit: " + unanswered);
+    }
+
+    private static void line(String name, long n, double seconds, long errors, CentralServer.Histogram h, CentralServer.Histogram svc) {
+        System.out.printf(Locale.ROOT, "%-12s %10d %10.1f %8d | %s %s %s %s %s | %s %s%n", name, n, n / seconds, errors,
+            ms(h.percentile(0.50)), ms(h.percentile(0.90)), ms(h.percentile(0.99)), ms(h.percentile(0.999)), ms(h.percentile(1.0)),
+            ms(svc.percentile(0.50)), ms(svc.percentile(0.99)));
+    }
+
+    private static String ms(long micros) {
+        return String.format(Locale.ROOT, "%7.2f", micros / 1000.0);
+    }
+
+    // ---- key distribution ----
+
+    // Zipf over 0..n-1 with exponent theta < 1 (Gray et al., "Quickly generating billion-record
+    // synthetic databases", as used by YCSB): O(n) setup, O(1) per sample; theta 0 is uniform
+    static final class Zipf {
+        final int n;
+        final double theta, zetan, alpha, eta, half;
+
+        Zipf(int n, double theta) {
+            this.n = n;
+            this.theta = theta;
+            double z = 0;
+            for (int i = 1; i <= n; i++) z += 1 / Math.pow(i, theta);
+            zetan = z;
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            alpha = 1 / (1 - theta);
+            eta = n <= 2 ? 1 : (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+            half = 1 + Math.pow(0.5, theta);
+        }
+
+        int next(Random rnd) {
+            double u = rnd.nextDouble();
+            if (theta == 0) return (int) (u * n);
+            double uz = u * zetan;
+            if (uz < 1) return 0;
+            if (uz < half) return Math.min(1, n - 1);
+            return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    // ---- connections ----
+
+    static final class Request {
+        final Op op;
+        final long scheduled;
+        final String line;
+        long written;
+
+        Request(Op op, long scheduled, String line) {
+            this.op = op;
+            this.scheduled = scheduled;
+            this.line = line;
+        }
+    }
+
+    static final class Conn {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(1 << 14);
+        final ByteBuffer out = ByteBuffer.allocate(1 << 14);
+        final ArrayDeque<Request> backlog = new ArrayDeque<>(); // over --depth, or not yet written
+        final Map<Integer, Request> inflight = new HashMap<>();
+        int nextTag;
+
+        Conn(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    // One selector thread driving a share of the connections and of the arrival rate.
+    static final class Loader extends Thread {
+        final int count;
+        final double rate; // this thread's share, per second
+        final double[] mix;
+        final Zipf keys;
+        final Random rnd = new Random();
+        final List<Conn> conns = new ArrayList<>();
+        final List<int[]> loans = new ArrayList<>(); // {account, loan id} created by this thread, for payments
+        Selector selector;
+        volatile Exception failure;
+        volatile int backlog; // requests scheduled but not yet written, for the reports
+        long startNs;
+        int next;
+
+        Loader(int index, int count, double rate, double[] mix, Zipf keys) {
+            super("load-" + index);
+            this.count = count;
+            this.rate = rate;
+            this.mix = mix;
+            this.keys = keys;
+            setDaemon(true);
+        }
+
+        // handshakes run in parallel across loaders; each loader's are sequential
+        void connect(CountDownLatch done) {
+            Thread t = new Thread(() -> {
+                try {
+                    selector = Selector.open();
+                    InetSocketAddress addr = new InetSocketAddress(host, port);
+                    byte[] hello = "CLIENT_BANK|loadgen\n".getBytes(StandardCharsets.UTF_8);
+                    for (int i = 0; i < count; i++) {
+                        SocketChannel ch = SocketChannel.open(addr);
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        ch.write(ByteBuffer.wrap(hello));
+                        ByteBuffer b = ByteBuffer.allocate(256);
+                        while (b.position() == 0 || b.get(b.position() - 1) != '\n') {
+                            if (ch.read(b) < 0) throw new EOFException("server closed the connection during the handshake");
+                        }
+                        ch.configureBlocking(false);
+                        Conn c = new Conn(ch);
+                        c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                        conns.add(c);
+                    }
+                } catch (Exception e) {
+                    failure = e;
+                } finally {
+                    done.countDown();
+                }
+            }, getName() + "-connect");
+            t.start();
+        }
+
+        void start(long startNs) {
+            this.startNs = startNs;
+            start();
+        }
+
+        int outstanding() {
+            int n = 0;
+            for (Conn c : conns) n += c.inflight.size() + c.backlog.size();
+            return n;
+        }
+
+        @Override public void run() {
+            try {
+                loop();
+            } catch (IOException e) {
+                if (sending) System.err.println(getName() + ": " + e);
+            }
+        }
+
+        private void loop() throws IOException {
+            boolean open = rate > 0;
+            double meanNs = open ? 1e9 / rate : 0;
+            long nextArrival = startNs;
+            if (!open) {
+                for (Conn c : conns) {
+                    for (int i = 0; i < depth; i++) c.backlog.add(newRequest(startNs));
+                    pump(c);
+                }
+            }
+            long drainUntil = Long.MAX_VALUE;
+            while (true) {
+                long now = System.nanoTime();
+                if (!sending) {
+                    if (drainUntil == Long.MAX_VALUE) drainUntil = now + 2_000_000_000L;
+                    if (now > drainUntil || outstanding() == 0) return;
+                } else if (open) {
+                    // every arrival that is due is issued with its scheduled time, however late we are
+                    while (nextArrival <= now) {
+                        Conn c = conns.get(next++ % conns.size());
+                        c.backlog.add(newRequest(nextArrival));
+                        pump(c);
+                        nextArrival += poisson ? (long) (-Math.log(1 - rnd.nextDouble()) * meanNs) : (long) meanNs;
+                    }
+                }
+                int queued = 0;
+                for (Conn c : conns) queued += c.backlog.size();
+                backlog = queued;
+
+                long waitNs = open && sending ? nextArrival - System.nanoTime() : 10_000_000L;
+                int ready;
+                if (waitNs >= 1_000_000L) {
+                    ready = selector.select(waitNs / 1_000_000L);
+                } else {
+                    ready = selector.selectNow();
+                    if (ready == 0 && waitNs > 0) LockSupport.parkNanos(Math.min(waitNs, 100_000L));
+                }
+                if (ready == 0) continue;
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Conn c = (Conn) key.attachment();
+                    if (!key.isValid()) continue;
+                    if (key.isReadable()) read(c);
+                    if (key.isValid() && key.isWritable()) pump(c);
+                }
+            }
+        }
+
+        private Request newRequest(long scheduled) {
+            double u = rnd.nextDouble();
+            int op = 0;
+            while (op < mix.length - 1 && u >= mix[op]) op++;
+            int account = 1 + keys.next(rnd);
+            switch (Op.values()[op]) {
+                case CONSULT:
+                    return new Request(Op.CONSULT, scheduled, "CONSULTAR_CUENTA|" + account);
+                case TRANSFER: {
+                    int to = account;
+                    for (int i = 0; to == account && i < 8; i++) to = 1 + keys.next(rnd);
+                    if (to == account) to = account % accounts + 1;
+                    return new Request(Op.TRANSFER, scheduled, "TRANSFERIR_CUENTA|" + account + "|" + to + "|" + money(100 + rnd.nextInt(1900)));
+                }
+                case LOAN_CREATE: {
+                    String amount = money(100_000 + rnd.nextInt(400_000));
+                    return new Request(Op.LOAN_CREATE, scheduled, "CREAR_PRESTAMO|" + account + "|" + amount + "|" + amount);
+                }
+                case LOAN_PAY:
+                    if (!loans.isEmpty()) {
+                        int[] loan = loans.get(rnd.nextInt(loans.size()));
+                        return new Request(Op.LOAN_PAY, scheduled, "PAGAR_PRESTAMO|" + loan[0] + "|" + loan[1] + "|" + money(100 + rnd.nextInt(900)));
+                    }
+                    // nothing to pay yet: ask for the status instead
+                    return new Request(Op.LOAN_STATUS, scheduled, "ESTADO_PAGO_PRESTAMO|" + account);
+                case LOAN_STATUS:
+                    return new Request(Op.LOAN_STATUS, scheduled, "ESTADO_PAGO_PRESTAMO|" + account);
+                default:
+                    return new Request(Op.ARQUEO, scheduled, "ARQUEO");
+            }
+        }
+
+        private static String money(int cents) {
+            int c = cents % 100;
+            return cents / 100 + (c < 10 ? ".0" : ".") + c;
+        }
+
+        // moves queued requests into the output buffer while the connection is under --depth,
+        // then writes what the socket takes; OP_WRITE is only wanted while something is left
+        private void pump(Conn c) throws IOException {
+            while (!c.backlog.isEmpty() && c.inflight.size() < depth) {
+                Request r = c.backlog.peek();
+                int tag = c.nextTag++;
+                byte[] line = ("#" + tag + "|" + r.line + "\n").getBytes(StandardCharsets.UTF_8);
+                if (line.length > c.out.remaining()) break;
+                c.backlog.poll();
+                c.out.put(line);
+                c.inflight.put(tag, r);
+                r.written = System.nanoTime();
+            }
+            c.out.flip();
+            try {
+                c.channel.write(c.out);
+            } finally {
+                c.out.compact();
+            }
+            int ops = c.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if (c.key.interestOps() != ops) c.key.interestOps(ops);
+        }
+
+        private void read(Conn c) throws IOException {
+            if (!c.in.hasRemaining()) {
+                // a reply longer than the buffer, e.g. the loans of a hot account
+                ByteBuffer bigger = ByteBuffer.allocate(c.in.capacity() * 2);
+                c.in.flip();
+                bigger.put(c.in);
+                c.in = bigger;
+            }
+            int n = c.channel.read(c.in);
+            if (n < 0) {
+                c.key.cancel();
+                c.channel.close();
+                throw new EOFException("server closed a connection");
+            }
+            ByteBuffer b = c.in;
+            int lineStart = 0;
+            for (int i = 0; i < b.position(); i++) {
+                if (b.get(i) != '\n') continue;
+                reply(c, b, lineStart, i);
+                lineStart = i + 1;
+            }
+            b.limit(b.position()).position(lineStart);
+            b.compact();
+            if (!c.backlog.isEmpty() || c.out.position() > 0) pump(c);
+        }
+
+        // one reply line in b[from, to): "#tag|OK|..." or "#tag|ERROR|Code|..."
+        private void reply(Conn c, ByteBuffer b, int from, int to) {
+            long now = System.nanoTime();
+            if (to == from || b.get(from) != '#') return; // untagged: nothing this generator sent
+            int tag = 0, i = from + 1;
+            while (i < to && b.get(i) != '|') tag = tag * 10 + (b.get(i++) - '0');
+            Request r = c.inflight.remove(tag);
+            if (r == null) return;
+            int body = i + 1;
+            boolean error = startsWith(b, body, to, "ERROR");
+            if (error) {
+                String code = text(b, body + 6, Math.min(to, body + 70)); // e.g. DebitFailed|ERROR|SaldoInsuficiente
+                errorCodes.computeIfAbsent(code.isEmpty() ? "?" : code, k -> new LongAdder()).increment();
+            } else if (r.op == Op.LOAN_CREATE && startsWith(b, body, to, "OK|LoanID:")) {
+                int account = Integer.parseInt(r.line.substring(15, r.line.indexOf('|', 15)));
+                int loanId = Integer.parseInt(text(b, body + 10, to).trim());
+                if (loans.size() < 4096) loans.add(new int[] { account, loanId });
+                else loans.set(rnd.nextInt(loans.size()), new int[] { account, loanId });
+            }
+            long service = (now - r.written) / 1000, latency = rate > 0 ? (now - r.scheduled) / 1000 : service;
+            interval.record(r.op, latency, service, error);
+            total.record(r.op, latency, service, error);
+            if (rate <= 0 && sending) c.backlog.add(newRequest(now));
+        }
+
+        private static boolean startsWith(ByteBuffer b, int from, int to, String prefix) {
+            if (to - from < prefix.length()) return false;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (b.get(from + i) != prefix.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private static String text(ByteBuffer b, int from, int to) {
+            byte[] bytes = new byte[Math.max(0, to - from)];
+            for (int i = 0; i < bytes.length; i++) bytes[i] = b.get(from + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -1,16 +1,163 @@
 import java.io.*;
 import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.zip.CRC32;
 
 public class CentralServer {
-    private static final int PORT = 9000;
+    private static final int PORT = Integer.getInteger("central.port", 9000);
+    // connection engine: "threads" (platform thread per connection), "virtual" (virtual thread
+    // per connection, Java 21+) or "nio" (selector reactor + fixed handler pool)
+    private static final String ENGINE = System.getProperty("central.engine", "threads");
+    // longest request line accepted from a client; longer lines close the connection
+    private static final int MAX_LINE = Integer.getInteger("central.maxLineBytes", 16 * 1024);
+    private static final int NIO_HANDLERS = Integer.getInteger("central.nio.handlers", 64);
+    // account ids per CREATE_ACCOUNTS_BATCH frame, and frames in flight per worker while provisioning
+    private static final int CREATE_BATCH = Integer.getInteger("central.createBatch", 1000);
+    private static final int CREATE_WINDOW = Integer.getInteger("central.createWindow", 4);
+    // account placement: "ring" (consistent hashing with virtual nodes) or "modulo"
+    private static final String PARTITIONER = System.getProperty("central.partitioner", "ring");
+    // virtual nodes per unit of worker weight
+    private static final int VNODES = Integer.getInteger("central.vnodes", 128);
+    // per-worker weights, e.g. "w0:2,w1:1"; overrides a weight=N field sent at registration
+    private static final String WEIGHTS = System.getProperty("central.weights", "");
+    // move accounts to their new owner when membership changes; false just switches routing
+    private static final boolean REBALANCE = Boolean.parseBoolean(System.getProperty("central.rebalance", "true"));
+    // accounts copied per second by the rebalancer, so migration does not starve client traffic
+    private static final int REBALANCE_RATE = Integer.getInteger("central.rebalance.rate", 2000);
+    // how long a request waits for its range to finish cutting over before failing
+    private static final long LEASE_WAIT_MS = Long.getLong("central.rebalance.waitMs", 5000);
+    // ARQUEO waits this long for all workers; with strict=true a missing worker fails the audit
+    private static final long ARQUEO_TIMEOUT_MS = Long.getLong("central.arqueo.timeoutMs", 10000);
+    private static final boolean ARQUEO_STRICT = Boolean.parseBoolean(System.getProperty("central.arqueo.strict", "false"));
+    // commands of one client connection running at once, and accepted but unanswered (reading pauses beyond it)
+    private static final int PIPELINE_DEPTH = Integer.getInteger("central.pipeline.depth", 32);
+    private static final int PIPELINE_WINDOW = Integer.getInteger("central.pipeline.window", 1024);
+    // copies kept of every account: the primary plus REPLICAS-1 backups that serve reads once caught up
+    private static final int REPLICAS = Math.max(1, Integer.getInteger("central.replicas", 1));
+    // workers are pinged every intervalMs (0 disables); a ping unanswered after timeoutMs counts as a failure
+    private static final long HEARTBEAT_MS = Long.getLong("central.heartbeat.intervalMs", 1000);
+    private static final long HEARTBEAT_TIMEOUT_MS = Long.getLong("central.heartbeat.timeoutMs", 2000);
+    // consecutive timeouts that open a worker's circuit breaker, pings in a row that close it again,
+    // and how long it may stay open before the worker is disconnected (0 keeps it forever)
+    private static final int HEALTH_FAILURES = Integer.getInteger("central.health.failures", 3);
+    private static final int HEALTH_RECOVERIES = Integer.getInteger("central.health.recoveries", 2);
+    private static final long HEALTH_EJECT_MS = Long.getLong("central.health.ejectMs", 15000);
+    // Prometheus-style /metrics on 127.0.0.1 (0 disables); 1 in sampleEvery requests is logged (0 none)
+    private static final int METRICS_PORT = Integer.getInteger("central.metrics.port", 9100);
+    private static final int LOG_SAMPLE_EVERY = Integer.getInteger("central.log.sampleEvery", 100);
+    // commit decisions of cross-worker transfers, forced to disk before COMMIT is sent
+    private static final String TXLOG = System.getProperty("central.txlog", "coordinator.log");
+    // CONSULTAR_CUENTA replies kept in memory (0 disables) and how old a cached reply may get
+    private static final int CACHE_SIZE = Integer.getInteger("central.cache.size", 10000);
+    private static final long CACHE_MAX_STALE_MS = Long.getLong("central.cache.maxStalenessMs", 5000);
+    // stripes writes are ordered by (see AccountLocks); more stripes, fewer unrelated accounts sharing one
+    private static final int LOCK_STRIPES = Integer.getInteger("central.lock.stripes", 4096);
+    // client commands running at once, over all connections and per connection; past either limit a
+    // command is answered ERROR|Busy at once. Bulk ones (CREATE_ACCOUNTS, ARQUEO, HISTORIAL_CUENTA)
+    // may take only bulkShare of the global limit, so queries and payments always find room
+    private static final int ADMIT_GLOBAL = Integer.getInteger("central.admission.global", 2048);
+    private static final int ADMIT_PER_CLIENT = Integer.getInteger("central.admission.perClient", 256);
+    private static final double ADMIT_BULK_SHARE = Double.parseDouble(System.getProperty("central.admission.bulkShare", "0.25"));
+    // bounds of each worker channel's adaptive concurrency limit, the reply time that halves it, and
+    // commands that may wait for a free slot before ERROR|Busy
+    private static final int WORKER_LIMIT_MIN = Integer.getInteger("central.worker.limit.min", 8);
+    private static final int WORKER_LIMIT_MAX = Integer.getInteger("central.worker.limit.max", 512);
+    private static final long WORKER_LIMIT_LATENCY_MS = Long.getLong("central.worker.limit.latencyMs", 1000);
+    private static final int WORKER_QUEUE = Integer.getInteger("central.worker.queue", 1024);
+    // HISTORIAL_CUENTA: entries per request when none is given and at most, and entries asked of the
+    // worker per round trip (the most any hop holds at once)
+    private static final int HISTORY_LIMIT = Integer.getInteger("central.history.limit", 100);
+    private static final int HISTORY_MAX = Integer.getInteger("central.history.maxLimit", 10000);
+    private static final int HISTORY_CHUNK = Integer.getInteger("central.history.chunk", 200);
+    // LOTE_PRESTAMOS: accounts per worker round trip, how long one may take, and the checkpoint log an
+    // interrupted run resumes from
+    private static final int BATCH_CHUNK = Integer.getInteger("central.batch.chunk", 1000);
+    private static final long BATCH_TIMEOUT_MS = Long.getLong("central.batch.timeoutMs", 30000);
+    private static final String BATCH_LOG = System.getProperty("central.batch.log", "batch.log");
+    // while interactive commands take longer than sloMs the pause between chunks doubles, up to maxPauseMs
+    private static final long BATCH_SLO_MS = Long.getLong("central.batch.sloMs", 50);
+    private static final long BATCH_MAX_PAUSE_MS = Long.getLong("central.batch.maxPauseMs", 1000);
+    // an active loan with nothing paid this many days after it was requested counts as overdue
+    private static final int BATCH_GRACE_DAYS = Integer.getInteger("central.batch.graceDays", 30);
+    // SUBSCRIBE: committed events kept in memory to resume from, how far a subscriber may fall behind,
+    // and what happens then: "disconnect" (resume later from the last offset seen) or "drop" (skip ahead)
+    private static final int CDC_RETAIN = Integer.getInteger("central.cdc.retain", 100000);
+    private static final int CDC_BUFFER = Integer.getInteger("central.cdc.buffer", 10000);
+    private static final String CDC_SLOW_CONSUMER = System.getProperty("central.cdc.slowConsumer", "disconnect");
+    // hot accounts: request rates per account (count-min sketch, the topK heaviest kept by name) and per
+    // worker, halved every windowMs; at threshold requests/s an account is hot
+    private static final long HOT_WINDOW_MS = Long.getLong("central.hot.windowMs", 1000);
+    private static final int HOT_THRESHOLD = Integer.getInteger("central.hot.threshold", 200);
+    private static final int HOT_TOP_K = Integer.getInteger("central.hot.topK", 16);
+    private static final int HOT_WIDTH = Integer.getInteger("central.hot.width", 4096);
+    // credits to a hot account on another worker are absorbed: applied together every flushMs, or once
+    // flushMax of them are waiting
+    private static final boolean HOT_ABSORB = Boolean.parseBoolean(System.getProperty("central.hot.absorb", "true"));
+    private static final long HOT_FLUSH_MS = Long.getLong("central.hot.flushMs", 20);
+    private static final int HOT_FLUSH_MAX = Integer.getInteger("central.hot.flushMax", 500);
     // thread-safe lists
     private static final List<WorkerInfo> workers = Collections.synchronizedList(new ArrayList<>());
-    private static final ExecutorService pool = Executors.newCachedThreadPool();
+    // immutable routing snapshot, replaced whenever workers join or leave
+    private static volatile Partitioner partitioner = newPartitioner(Collections.emptyList());
+    // in-progress rebalance (null when idle); routes each range to its old owner until it is copied
+    private static volatile Migration migration;
+    private static final Object membershipLock = new Object();
+    // leases taken without a migration in place; a new migration waits for these to drain
+    private static final LongAdder unmanagedLeases = new LongAdder();
+    // per-worker balance/count totals kept up to date from the writes routed through this server
+    private static final Map<WorkerInfo, BalanceAggregate> aggregates = new ConcurrentHashMap<>();
+    // read-through account snapshots; every write routed through this server invalidates its accounts
+    private static final AccountCache accountCache = new AccountCache(CACHE_SIZE, CACHE_MAX_STALE_MS);
+    private static final Replicator replicator = new Replicator(REPLICAS);
+    private static final AccountLocks accountLocks = new AccountLocks(LOCK_STRIPES);
+    private static final Admission admission = new Admission(ADMIT_GLOBAL, ADMIT_PER_CLIENT, ADMIT_BULK_SHARE);
+    private static final HotKeys hotKeys = new HotKeys(HOT_WIDTH, HOT_TOP_K, HOT_THRESHOLD, HOT_WINDOW_MS);
+    private static final ChangeFeed changeFeed = new ChangeFeed(CDC_RETAIN, CDC_BUFFER, CDC_SLOW_CONSUMER.equals("drop"));
+    private static final Metrics metrics = new Metrics();
+    private static final RequestLog requestLog = new RequestLog(LOG_SAMPLE_EVERY);
+    // opened in main(): recovers undelivered commits from TXLOG before any worker registers
+    private static TxCoordinator coordinator;
+    // opened in main(): an unfinished run left in BATCH_LOG resumes when its LOTE_PRESTAMOS is repeated
+    private static LoanBatch loanBatch;
+    private static final ExecutorService rebalancer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "rebalancer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService pool = newConnectionPool();
+    // own thread: a heartbeat must keep running while worker sockets or the timeout timer are busy
+    private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "heartbeats");
+        t.setDaemon(true);
+        return t;
+    });
+    // fires per-request timeouts for in-flight worker commands
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "worker-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
 
     public static void main(String[] args) throws IOException {
-        System.out.println("CentralServer starting on port " + PORT);
+        System.out.println("CentralServer starting on port " + PORT + " (engine=" + ENGINE + ")");
+        coordinator = new TxCoordinator(Paths.get(TXLOG));
+        loanBatch = new LoanBatch(Paths.get(BATCH_LOG));
+        if (METRICS_PORT > 0) metrics.serveHttp(METRICS_PORT);
+        timer.scheduleWithFixedDelay(hotKeys::decay, Math.max(1, HOT_WINDOW_MS), Math.max(1, HOT_WINDOW_MS), TimeUnit.MILLISECONDS);
+        if (HEARTBEAT_MS > 0) heartbeats.scheduleWithFixedDelay(CentralServer::heartbeat, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        if (ENGINE.equals("nio")) {
+            new NioServer(PORT, NIO_HANDLERS).run();
+            return;
+        }
         ServerSocket listener = new ServerSocket(PORT);
         while (true) {
             Socket socket = listener.accept();
@@ -18,22 +165,37 @@ public class CentralServer {
         }
     }
 
+    private static ExecutorService newConnectionPool() {
+        if (ENGINE.equals("virtual")) {
+            try {
+                // looked up reflectively so the server still compiles and runs on Java 8+
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads need Java 21+, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
     private static void handleConnection(Socket socket) {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            InputStream is = new BufferedInputStream(socket.getInputStream());
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            // first line should declare role
-            String roleLine = in.readLine();
+            // first line should declare role; read as raw bytes since binary frames may follow it
+            String roleLine = readRoleLine(is);
             if (roleLine == null) { socket.close(); return; }
+            BufferedReader in = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
             if (roleLine.startsWith("WORKER")) {
-                String workerId = roleLine.split("\\|").length>1 ? roleLine.split("\\|")[1] : ("w"+(workers.size()+1));
-                WorkerInfo w = new WorkerInfo(workerId, socket, in, out);
-                workers.add(w);
-                System.out.println("Registered worker: " + workerId + " total workers=" + workers.size());
+                registerWorker(roleLine, socket, in, out);
+            } else if (roleLine.startsWith("CLIENT_BANK_BIN")) {
+                System.out.println("Accepted client connection: " + roleLine);
+                out.println("WELCOME|CentralServer|BIN");
+                new ClientHandler(socket, null, null, false).runBinary(is, socket.getOutputStream());
             } else if (roleLine.startsWith("CLIENT_BANK") || roleLine.startsWith("CLIENT_CHAT")) {
                 System.out.println("Accepted client connection: " + roleLine);
-                ClientHandler ch = new ClientHandler(socket, in, out, roleLine.startsWith("CLIENT_CHAT"));
-                pool.execute(ch);
+                // served on this same thread: one thread per client connection
+                ClientHandler ch = new ClientHandler(socket, new BoundedLineReader(in, MAX_LINE), out, roleLine.startsWith("CLIENT_CHAT"));
+                ch.run();
             } else {
                 out.println("ERROR|Unknown role");
                 socket.close();
@@ -43,26 +205,210 @@ public class CentralServer {
         }
     }
 
-    // choose worker index for an account id using modulo
-    private static int workerIndexForAccount(int accountId) {
-        if (workers.size() == 0) return -1;
-        return accountId % workers.size();
+    private static String readRoleLine(InputStream is) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = is.read()) != -1 && b != '\n') {
+            if (line.size() >= MAX_LINE) throw new IOException("Line too long");
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void registerWorker(String roleLine, Socket socket, BufferedReader in, PrintWriter out) {
+        String[] role = roleLine.split("\\|");
+        String workerId = role.length>1 ? role[1] : ("w"+(workers.size()+1));
+        // WORKER|id|MUX: the worker echoes a "#tag|" prefix on every reply
+        boolean tagged = role.length>2 && role[2].equals("MUX");
+        WorkerInfo w = new WorkerInfo(workerId, socket, in, out, tagged);
+        w.weight = weightFor(workerId, role);
+        workers.add(w);
+        w.listen();
+        onMembershipChange();
+        System.out.println("Registered worker: " + workerId + (tagged ? " (mux)" : "") + " weight=" + w.weight + " total workers=" + workers.size());
+        pool.execute(() -> coordinator.resolvePrepared(w));
+    }
+
+    // pings every worker (a PONG, or any reply from an older worker, proves it alive) and disconnects
+    // the ones whose breaker stayed open past HEALTH_EJECT_MS, which hands their accounts to others
+    private static void heartbeat() {
+        List<WorkerInfo> live;
+        synchronized (workers) {
+            live = new ArrayList<>(workers);
+        }
+        for (WorkerInfo w : live) {
+            long open = w.health.openMillis();
+            if (HEALTH_EJECT_MS > 0 && open >= HEALTH_EJECT_MS) {
+                System.out.println("Worker " + w.id + " ejected: unavailable for " + open + " ms");
+                try { w.socket.close(); } catch (IOException e) {} // its reader removes it
+                continue;
+            }
+            if (!w.health.startPing()) continue; // the previous ping is still out
+            // submitted from the pool: writing to a stalled worker may block
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                w.submit("PING", HEARTBEAT_TIMEOUT_MS).whenComplete((resp, e) -> {
+                    boolean ok = e == null && !"ERROR|Timeout".equals(resp);
+                    if (w.health.pinged(ok, System.nanoTime() - start)) System.out.println("Worker " + w.id + " available again");
+                });
+            });
+        }
+    }
+
+    private static int weightFor(String workerId, String[] role) {
+        for (String entry : WEIGHTS.split(",")) {
+            String[] kv = entry.split(":");
+            if (kv.length == 2 && kv[0].trim().equals(workerId)) return Math.max(1, Integer.parseInt(kv[1].trim()));
+        }
+        for (int i = 2; i < role.length; i++) {
+            if (role[i].startsWith("weight=")) return Math.max(1, Integer.parseInt(role[i].substring(7)));
+        }
+        return 1;
+    }
+
+    private static void onMembershipChange() {
+        synchronized (membershipLock) {
+            List<WorkerInfo> members;
+            synchronized (workers) {
+                members = new ArrayList<>(workers);
+            }
+            Partitioner target = newPartitioner(members);
+            // accounts are about to change hands: every running total must be rebuilt by a full ARQUEO
+            aggregates.keySet().retainAll(members);
+            for (BalanceAggregate agg : aggregates.values()) agg.invalidate();
+            // a worker that left may have taken its accounts with it
+            accountCache.clear();
+            // backup sets change with the placement; none serves reads until the resync below
+            replicator.reset();
+            Migration running = migration;
+            if (running != null) running.cancel(); // stops after restoring its current range
+            Partitioner current = running != null ? running : partitioner;
+            if (REBALANCE && !current.members().isEmpty() && !members.isEmpty()) {
+                Migration m = new Migration(current, target);
+                migration = m;
+                partitioner = target;
+                rebalancer.execute(m::run);
+            } else {
+                migration = null;
+                partitioner = target;
+            }
+            // queued behind the migration on the same single thread
+            rebalancer.execute(replicator::resync);
+        }
+    }
+
+    private static Partitioner newPartitioner(List<WorkerInfo> members) {
+        if (PARTITIONER.equals("modulo")) return new ModuloPartitioner(members);
+        return new HashRing(members, VNODES);
+    }
+
+    // owner of an account, or null when no workers are registered
+    private static WorkerInfo workerById(String id) {
+        synchronized (workers) {
+            for (WorkerInfo w : workers) {
+                if (w.id.equals(id)) return w;
+            }
+        }
+        return null;
+    }
+
+    private static WorkerInfo workerForAccount(int accountId) {
+        Migration m = migration;
+        return m != null ? m.ownerOf(accountId) : partitioner.ownerOf(accountId);
+    }
+
+    // primary first, then up to REPLICAS-1 backups
+    private static List<WorkerInfo> replicasForAccount(int accountId) {
+        Migration m = migration;
+        return m != null ? m.replicasFor(accountId, REPLICAS) : partitioner.replicasFor(accountId, REPLICAS);
+    }
+
+    // after a write reached an account's primary: drop cached reads and bring its backups up to date
+    private static void accountWritten(int accountId) {
+        accountCache.invalidate(accountId);
+        replicator.written(accountId);
+    }
+
+    // route an account and pin that decision until the lease is released; writes are recorded so a
+    // range being migrated re-copies them before it cuts over
+    private static Lease lease(int accountId, boolean write) throws IOException {
+        return lease(accountId, write, LEASE_WAIT_MS);
+    }
+
+    private static Lease lease(int accountId, boolean write, long waitMs) throws IOException {
+        unmanagedLeases.increment();
+        Migration m = migration;
+        if (m == null) return new Lease(partitioner.ownerOf(accountId), null);
+        unmanagedLeases.decrement();
+        long range = m.rangeOf(accountId);
+        RangeGate gate = m.gate(range);
+        if (!gate.enter(waitMs)) throw new IOException("Rebalancing");
+        return new Lease(write ? m.routeWrite(range, accountId) : m.ownerOf(accountId), gate);
     }
 
     // send a command to a specific worker and wait for a single-line response
-    private static synchronized String sendToWorker(WorkerInfo w, String cmd, long timeoutMs) throws IOException {
+    private static String sendToWorker(WorkerInfo w, String cmd, long timeoutMs) throws IOException {
+        if (w == null) return "ERROR|NoWorker";
+        try {
+            return w.submit(cmd, timeoutMs).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for worker " + w.id);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // same as sendToWorker but does not block; the future completes with the worker's reply,
+    // "ERROR|Timeout", or exceptionally with an IOException if the worker disconnects
+    private static CompletableFuture<String> sendToWorkerAsync(WorkerInfo w, String cmd, long timeoutMs) {
+        if (w == null) return CompletableFuture.completedFuture("ERROR|NoWorker");
+        return w.submit(cmd, timeoutMs);
+    }
+
+    private static BalanceAggregate aggregateOf(WorkerInfo w) {
+        return aggregates.computeIfAbsent(w, k -> new BalanceAggregate());
+    }
+
+    // sendToWorker for commands that change balances: on an OK reply the worker's running totals
+    // move by the given deltas; an unknown outcome (timeout, disconnect) invalidates them instead
+    private static String sendWrite(WorkerInfo w, String cmd, long timeoutMs, long deltaCents, int deltaAccounts) throws IOException {
         if (w == null) return "ERROR|NoWorker";
-        w.out.println(cmd);
+        BalanceAggregate agg = aggregateOf(w);
+        agg.begin();
+        String resp = null;
         try {
-            w.socket.setSoTimeout((int)timeoutMs);
-            String resp = w.in.readLine();
-            w.socket.setSoTimeout(0);
+            resp = sendToWorker(w, cmd, timeoutMs);
             return resp;
-        } catch (SocketTimeoutException ste) {
-            return "ERROR|Timeout";
+        } finally {
+            agg.end(resp, deltaCents, deltaAccounts);
         }
     }
 
+    private static CompletableFuture<String> sendWriteAsync(WorkerInfo w, String cmd, long timeoutMs, long deltaCents, int deltaAccounts) {
+        if (w == null) return CompletableFuture.completedFuture("ERROR|NoWorker");
+        BalanceAggregate agg = aggregateOf(w);
+        agg.begin();
+        return sendToWorkerAsync(w, cmd, timeoutMs).whenComplete((resp, e) -> agg.end(resp, deltaCents, deltaAccounts));
+    }
+
+    // the reply to a command turned away for lack of capacity; the hint is clamped to 1 ms..5 s
+    static String busy(long retryAfterMs) {
+        return "ERROR|Busy|RetryAfterMs:" + Math.max(1, Math.min(5000, retryAfterMs));
+    }
+
+    static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    // amount as workers expect it in text commands, e.g. 1832 -> "18.32"
+    static String amount(long cents) {
+        return java.math.BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+
     // nested helper classes
 
     static class WorkerInfo {
@@ -70,220 +416,4484 @@ public class CentralServer {
         Socket socket;
         BufferedReader in;
         PrintWriter out;
-        WorkerInfo(String id, Socket socket, BufferedReader in, PrintWriter out) {
-            this.id = id; this.socket = socket; this.in = in; this.out = out;
+        int weight = 1;
+        // tagged workers reply "#tag|resp" and may answer out of order; legacy workers reply in order
+        final boolean tagged;
+        private final AtomicLong nextTag = new AtomicLong();
+        private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+        private final Queue<CompletableFuture<String>> inOrder = new ArrayDeque<>(); // guarded by out
+        // senders between queuing their line and flushing; the last one out flushes for the rest
+        private final AtomicInteger writers = new AtomicInteger();
+        private volatile boolean closed;
+        final Health health = new Health();
+        final AtomicInteger inflight = new AtomicInteger(); // commands sent and not answered or timed out
+        private final AdaptiveLimit limit = new AdaptiveLimit();
+        private final ArrayDeque<Call> waiting = new ArrayDeque<>(); // over the limit; guarded by limit
+        private boolean draining;                                    // guarded by limit
+
+        boolean isClosed() { return closed; }
+
+        WorkerInfo(String id, Socket socket, BufferedReader in, PrintWriter out, boolean tagged) {
+            this.id = id; this.socket = socket; this.in = in; this.out = out; this.tagged = tagged;
+        }
+
+        // enqueue a command on this worker's channel; many requests may be in flight at once, up to its
+        // adaptive limit. Beyond it up to WORKER_QUEUE more wait here for a slot (their timeout counts
+        // from now); the rest, and any that time out still waiting, are answered ERROR|Busy
+        CompletableFuture<String> submit(String cmd, long timeoutMs) {
+            CompletableFuture<String> f = new CompletableFuture<>();
+            // breaker open: answer now instead of queueing behind a stalled worker; pings still probe it
+            if (!health.available() && !cmd.equals("PING")) {
+                metrics.workerRejected(id);
+                f.complete("ERROR|WorkerUnavailable");
+                return f;
+            }
+            Call call = new Call(cmd, f);
+            // pings and 2PC outcomes never wait: they probe the worker and release what it holds
+            boolean control = cmd.equals("PING") || cmd.startsWith("COMMIT|") || cmd.startsWith("ABORT|");
+            boolean queued = false;
+            synchronized (limit) {
+                if (control) {
+                    limit.acquire();
+                } else if (!waiting.isEmpty() || !limit.tryAcquire()) {
+                    if (waiting.size() >= WORKER_QUEUE) {
+                        metrics.workerRejected(id);
+                        f.complete(busy(limit.retryAfterMs(waiting.size())));
+                        return f;
+                    }
+                    waiting.add(call);
+                    queued = true;
+                }
+            }
+            ScheduledFuture<?> timeout = timer.schedule(() -> {
+                synchronized (limit) {
+                    if (waiting.remove(call)) {
+                        metrics.workerRejected(id);
+                        f.complete(busy(limit.retryAfterMs(waiting.size())));
+                        return;
+                    }
+                }
+                long t = call.tag;
+                if (t != -1) pending.remove(t);
+                if (f.complete("ERROR|Timeout") && health.failed()) {
+                    System.out.println("Worker " + id + " unavailable: " + HEALTH_FAILURES + " timeouts in a row");
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            f.whenComplete((r, e) -> timeout.cancel(false));
+            if (!queued) send(call);
+            return f;
+        }
+
+        // runs once the call holds a slot of the limit
+        private void send(Call call) {
+            CompletableFuture<String> f = call.reply;
+            long start = System.nanoTime();
+            writers.incrementAndGet();
+            synchronized (out) {
+                if (closed) {
+                    writers.decrementAndGet();
+                    f.completeExceptionally(new IOException("Worker " + id + " disconnected"));
+                    released(start, false);
+                    return;
+                }
+                if (tagged) {
+                    long tag = nextTag.incrementAndGet();
+                    pending.put(tag, f);
+                    call.tag = tag;
+                    out.print('#');
+                    out.print(tag);
+                    out.print('|');
+                } else {
+                    // legacy worker: the reply slot stays queued even after a timeout so a late
+                    // answer is consumed here instead of being matched to the next request
+                    inOrder.add(f);
+                }
+                out.print(call.cmd);
+                out.print('\n');
+            }
+            // lines queued by concurrent senders go out in one write
+            if (writers.decrementAndGet() == 0) {
+                synchronized (out) {
+                    if (out.checkError()) { // flushes
+                        f.completeExceptionally(new IOException("Write to worker " + id + " failed"));
+                        try { socket.close(); } catch (IOException e) {} // the reader fails the rest
+                    }
+                }
+            }
+            inflight.incrementAndGet();
+            f.whenComplete((r, e) -> {
+                inflight.decrementAndGet();
+                metrics.workerCall(id, start, r, e);
+                released(start, e == null && !"ERROR|Timeout".equals(r));
+            });
+        }
+
+        // frees the call's slot and lets waiting calls take the ones now free. Never sends from the
+        // calling thread: it may be this worker's reader, which must not block on the socket
+        private void released(long sentAt, boolean ok) {
+            synchronized (limit) {
+                limit.release(sentAt, ok);
+                if (waiting.isEmpty() || draining) return;
+                draining = true;
+            }
+            pool.execute(() -> {
+                while (true) {
+                    Call next;
+                    synchronized (limit) {
+                        if (waiting.isEmpty() || !limit.tryAcquire()) {
+                            draining = false;
+                            return;
+                        }
+                        next = waiting.poll();
+                    }
+                    send(next);
+                }
+            });
+        }
+
+        String describeLimit() {
+            synchronized (limit) {
+                return limit.describe() + ":queued=" + waiting.size();
+            }
+        }
+
+        private static final class Call {
+            final String cmd;
+            final CompletableFuture<String> reply;
+            volatile long tag = -1;
+            Call(String cmd, CompletableFuture<String> reply) {
+                this.cmd = cmd; this.reply = reply;
+            }
         }
+
         void listen() {
-            // listen for logs from worker in separate thread (non-blocking to main)
-            new Thread(() -> {
+            // single reader per worker: matches replies back to their callers
+            Thread reader = new Thread(() -> {
                 try {
                     String line;
                     while ((line = in.readLine()) != null) {
-                        System.out.println("[Worker " + id + "] " + line);
+                        dispatch(line);
                     }
+                    System.out.println("Worker " + id + " disconnected.");
                 } catch (IOException e) {
                     System.out.println("Worker " + id + " disconnected.");
                 } finally {
                     try { socket.close(); } catch (IOException e) {}
                     workers.remove(this);
+                    failPending();
+                    onMembershipChange();
+                }
+            }, "worker-" + id);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void dispatch(String line) {
+            health.replied();
+            CompletableFuture<String> f = null;
+            String resp = line;
+            if (tagged) {
+                int sep = line.indexOf('|');
+                if (line.startsWith("#") && sep > 1) {
+                    try {
+                        f = pending.remove(Long.parseLong(line.substring(1, sep)));
+                        resp = line.substring(sep + 1);
+                    } catch (NumberFormatException e) {
+                        f = null;
+                    }
                 }
-            }).start();
+            } else {
+                synchronized (out) { f = inOrder.poll(); }
+            }
+            if (f != null) {
+                f.complete(resp);
+            } else if (!tagged || !line.startsWith("#")) {
+                // unsolicited output (or a reply whose caller already timed out)
+                System.out.println("[Worker " + id + "] " + line);
+            }
+        }
+
+        private void failPending() {
+            List<CompletableFuture<String>> failed = new ArrayList<>(pending.values());
+            pending.clear();
+            synchronized (out) {
+                closed = true;
+                failed.addAll(inOrder);
+                inOrder.clear();
+            }
+            synchronized (limit) {
+                for (Call c : waiting) failed.add(c.reply);
+                waiting.clear();
+            }
+            IOException e = new IOException("Worker " + id + " disconnected");
+            for (CompletableFuture<String> f : failed) f.completeExceptionally(e);
         }
     }
 
-    static class ClientHandler implements Runnable {
-        Socket socket;
-        BufferedReader in;
-        PrintWriter out;
-        boolean isChat;
-        ClientHandler(Socket s, BufferedReader in, PrintWriter out, boolean isChat) {
-            this.socket = s; this.in = in; this.out = out; this.isChat = isChat;
+    // Liveness of one worker. HEALTH_FAILURES timeouts in a row (requests or pings) open its breaker:
+    // requests then fail fast and reads go to other replicas, while pings keep probing it until
+    // HEALTH_RECOVERIES of them in a row come back. Ping round trips feed a latency EWMA that
+    // read balancing uses to prefer the quicker copy.
+    static class Health {
+        private static final double ALPHA = 0.2;
+        private double latencyMs = -1;
+        private int failures;
+        private int probes;   // pings answered in a row while open
+        private boolean open;
+        private long openedAt;
+        private boolean pinging;
+
+        synchronized boolean available() {
+            return !open;
         }
-        public void run() {
-            try {
-                String line;
-                out.println("WELCOME|CentralServer");
-                while ((line = in.readLine()) != null) {
-                    System.out.println("Client -> " + line);
-                    String[] parts = line.split("\\|");
-                    String cmd = parts[0];
-
-                    if (cmd.equals("CREATE_ACCOUNTS")) {
-                        int count = Integer.parseInt(parts[1]);
-                        double initial = Double.parseDouble(parts[2]);
-                        out.println("INFO|Creating " + count + " accounts with initial " + initial);
-                        createAccounts(count, initial, out);
-
-                    } else if (cmd.equals("CONSULTAR_CUENTA")) {
-                        int id = Integer.parseInt(parts[1]);
-                        String resp = queryAccount(id);
-                        out.println(resp);
-
-                    } else if (parts[0].equals("TRANSFERIR_CUENTA")) {
-                        if (parts.length < 4) {
-                            out.println("ERROR|FormatoInvalido");
-                            continue;
-                        }
 
-                        int from = Integer.parseInt(parts[1]);
-                        int to = Integer.parseInt(parts[2]);
-                        double amt = Double.parseDouble(parts[3]);
+        // true if this failure opened the breaker
+        synchronized boolean failed() {
+            failures++;
+            probes = 0;
+            if (open || failures < HEALTH_FAILURES) return false;
+            open = true;
+            openedAt = System.currentTimeMillis();
+            return true;
+        }
 
-                        // Usar la función de transferencia corregida
-                        String result = transfer(from, to, amt);
-                        out.println(result);
+        synchronized void replied() {
+            if (!open) failures = 0;
+        }
 
-                    } else if (cmd.equals("ESTADO_PAGO_PRESTAMO")) {
-                        int id = Integer.parseInt(parts[1]);
-                        int idx = workerIndexForAccount(id);
-                        if (idx == -1) {
-                            out.println("ERROR|NoWorkers");
-                            continue;
-                        }
-                        WorkerInfo w = workers.get(idx);
-                        String resp = sendToWorker(w, "ESTADO_PAGO_PRESTAMO|" + id, 5000);
-                        out.println(resp);
+        synchronized boolean startPing() {
+            if (pinging) return false;
+            pinging = true;
+            return true;
+        }
 
-                    } else if (cmd.equals("CREAR_PRESTAMO")) {
-                        if (parts.length < 4) {
-                            out.println("ERROR|FormatoInvalido");
-                            continue;
-                        }
-                        int accountId = Integer.parseInt(parts[1]);
-                        double amount = Double.parseDouble(parts[2]);
-                        double pendingAmount = Double.parseDouble(parts[3]);
-                        String result = createLoan(accountId, amount, pendingAmount);
-                        out.println(result);
-
-                    } else if (cmd.equals("PAGAR_PRESTAMO")) {
-                        if (parts.length < 3) {
-                            out.println("ERROR|FormatoInvalido");
-                            continue;
-                        }
-                        int accountId = Integer.parseInt(parts[1]);
-                        int loanId = Integer.parseInt(parts[2]);
-                        double amount = Double.parseDouble(parts[3]);
-                        String result = payLoan(accountId, loanId, amount);
-                        out.println(result);
+        // true if this ping closed the breaker
+        synchronized boolean pinged(boolean ok, long nanos) {
+            pinging = false;
+            double ms = nanos / 1e6;
+            latencyMs = latencyMs < 0 ? ms : latencyMs + ALPHA * (ms - latencyMs);
+            if (!ok || !open || ++probes < HEALTH_RECOVERIES) return false;
+            open = false;
+            failures = 0;
+            probes = 0;
+            return true;
+        }
 
-                    } else if (cmd.equals("ARQUEO")) {
-                        String result = performArqueo();
-                        out.println(result);
+        // how long the breaker has been open, 0 when closed
+        synchronized long openMillis() {
+            return open ? System.currentTimeMillis() - openedAt : 0;
+        }
 
-                    } else {
-                        out.println("ERROR|UnknownCommand");
-                    }
+        // unknown workers rank as slow as the heartbeat timeout
+        synchronized double latencyMs() {
+            return latencyMs < 0 ? HEARTBEAT_TIMEOUT_MS : latencyMs;
+        }
+
+        synchronized String describe() {
+            return (open ? "open" : "up") + ":ping=" + String.format(Locale.ROOT, "%.1fms", Math.max(0, latencyMs)) + ":fails=" + failures;
+        }
+    }
+
+    // Concurrency limit of one worker channel, adjusted AIMD-style between WORKER_LIMIT_MIN and
+    // WORKER_LIMIT_MAX: it grows by one per limit's worth of quick replies while the channel is kept
+    // busy, and halves when a reply is slower than WORKER_LIMIT_LATENCY_MS or never comes. Only
+    // requests sent after the last cut can cut again, so one slow burst halves it once. Guarded by
+    // its own monitor, which WorkerInfo also holds for its waiting queue.
+    static class AdaptiveLimit {
+        private static final double ALPHA = 0.2;
+        private double limit = Math.max(WORKER_LIMIT_MIN, Math.min(WORKER_LIMIT_MAX, 64));
+        private int inflight;
+        private long lastCut = System.nanoTime();
+        private double latencyMs = -1;
+        private long cuts;
+
+        boolean tryAcquire() {
+            if (inflight >= (int) limit) return false;
+            inflight++;
+            return true;
+        }
+
+        void acquire() {
+            inflight++;
+        }
+
+        void release(long sentAt, boolean ok) {
+            inflight--;
+            long now = System.nanoTime();
+            double ms = (now - sentAt) / 1e6;
+            latencyMs = latencyMs < 0 ? ms : latencyMs + ALPHA * (ms - latencyMs);
+            if (!ok || ms > WORKER_LIMIT_LATENCY_MS) {
+                if (sentAt - lastCut > 0) {
+                    limit = Math.max(WORKER_LIMIT_MIN, limit / 2);
+                    lastCut = now;
+                    cuts++;
                 }
-            } catch (Exception e) {
-                System.err.println("ClientHandler error: " + e.getMessage());
-            } finally {
-                try { socket.close(); } catch (IOException e) {}
+            } else if (inflight + 1 >= limit / 2) {
+                limit = Math.min(WORKER_LIMIT_MAX, limit + 1 / limit);
             }
         }
 
-        private void createAccounts(int count, double initial, PrintWriter clientOut) {
-            if (workers.size() == 0) {
-                clientOut.println("ERROR|NoWorkersRegistered");
-                return;
+        // about how long the calls already waiting will take to get through
+        long retryAfterMs(int waiting) {
+            return (long) (Math.max(1, latencyMs) * (1 + waiting / limit));
+        }
+
+        String describe() {
+            return "limit=" + (int) limit + ":inflight=" + inflight + ":cuts=" + cuts
+                + ":latency=" + String.format(Locale.ROOT, "%.1fms", Math.max(0, latencyMs));
+        }
+    }
+
+    // Running totals for one worker. A full ARQUEO seeds them only if no write to that worker was
+    // in flight while it scanned; afterwards every write routed through sendWrite adjusts them.
+    static class BalanceAggregate {
+        private long cents;
+        private long accounts;
+        private boolean seeded;
+        private int inflight;
+        private long writes;
+
+        synchronized void begin() {
+            inflight++;
+            writes++;
+        }
+
+        synchronized void end(String resp, long deltaCents, int deltaAccounts) {
+            inflight--;
+            if (resp == null || resp.equals("ERROR|Timeout")) {
+                seeded = false; // the worker may or may not have applied it
+            } else if (resp.startsWith("OK")) {
+                cents += deltaCents;
+                accounts += deltaAccounts;
             }
-            int created = 0;
-            for (int i = 1; i <= count; i++) {
-                String cmd = "CREATE_ACCOUNT|" + i + "|" + initial;
-                for (WorkerInfo w : workers) {     
-                    try {
-                        String resp = sendToWorker(w, cmd, 3000);
-                        if (resp != null && resp.startsWith("OK")) created++;
-                    } catch (IOException e) {
-                        System.err.println("Failed to send to worker: " + e.getMessage());
-                    }
+        }
+
+        // marker for a scan about to start; -1 when writes are in flight (the scan cannot seed)
+        synchronized long scanStart() {
+            return inflight == 0 ? writes : -1;
+        }
+
+        synchronized void seed(long marker, long scannedCents, long scannedAccounts) {
+            if (marker < 0 || inflight != 0 || writes != marker || migration != null) return;
+            cents = scannedCents;
+            accounts = scannedAccounts;
+            seeded = true;
+        }
+
+        synchronized void invalidate() {
+            seeded = false;
+        }
+
+        // {cents, accounts}, or null when not seeded
+        synchronized long[] snapshot() {
+            return seeded ? new long[] { cents, accounts } : null;
+        }
+    }
+
+    // Request metrics: a latency histogram per command (text and binary requests share names) and
+    // per worker channel, error/timeout counters and a few gauges. Recording is lock-free; STATS and
+    // the HTTP endpoint read them.
+    static class Metrics {
+        private volatile long since = System.currentTimeMillis();
+        private final Map<String, Histogram> commands = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> commandErrors = new ConcurrentHashMap<>();
+        private final Map<String, Histogram> workerCalls = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> workerTimeouts = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> workerErrors = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> workerRejected = new ConcurrentHashMap<>();
+        final LongAdder inflight = new LongAdder(); // client commands running
+
+        void command(String name, long startNanos) {
+            commands.computeIfAbsent(name, k -> new Histogram()).recordSince(startNanos);
+        }
+
+        void failed(String name) {
+            counter(commandErrors, name).increment();
+        }
+
+        // a reply, a timeout, or the channel failing (e != null)
+        void workerCall(String worker, long startNanos, String resp, Throwable e) {
+            if (e != null) counter(workerErrors, worker).increment();
+            else if ("ERROR|Timeout".equals(resp)) counter(workerTimeouts, worker).increment();
+            else workerCalls.computeIfAbsent(worker, k -> new Histogram()).recordSince(startNanos);
+        }
+
+        // refused by the worker's open circuit breaker
+        void workerRejected(String worker) {
+            counter(workerRejected, worker).increment();
+        }
+
+        void reset() {
+            commands.clear();
+            commandErrors.clear();
+            workerCalls.clear();
+            workerTimeouts.clear();
+            workerErrors.clear();
+            workerRejected.clear();
+            since = System.currentTimeMillis();
+        }
+
+        private static LongAdder counter(Map<String, LongAdder> map, String key) {
+            return map.computeIfAbsent(key, k -> new LongAdder());
+        }
+
+        private static long count(Map<String, LongAdder> map, String key) {
+            LongAdder a = map.get(key);
+            return a == null ? 0 : a.sum();
+        }
+
+        // one line: seconds covered, gauges, then name:n=,err=,p50=,p99=,p999=,max= (ms) per command and worker
+        String summary() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("seconds=").append((System.currentTimeMillis() - since) / 1000)
+              .append("|inflight=").append(inflight.sum())
+              .append("|cache=").append(accountCache.size())
+              .append("|txPending=").append(coordinator == null ? 0 : coordinator.undelivered())
+              .append("|rebalancing=").append(migration != null);
+            for (String name : new TreeSet<>(commands.keySet())) {
+                sb.append('|').append(name).append(":err=").append(count(commandErrors, name));
+                commands.get(name).appendTo(sb);
+            }
+            Set<String> seen = new TreeSet<>();
+            synchronized (workers) {
+                for (WorkerInfo w : workers) seen.add(w.id);
+            }
+            seen.addAll(workerCalls.keySet());
+            for (String id : seen) {
+                WorkerInfo w = workerById(id);
+                sb.append("|worker.").append(id)
+                  .append(":inflight=").append(w == null ? 0 : w.inflight.get())
+                  .append(",timeouts=").append(count(workerTimeouts, id))
+                  .append(",errors=").append(count(workerErrors, id))
+                  .append(",rejected=").append(count(workerRejected, id));
+                Histogram h = workerCalls.get(id);
+                if (h != null) h.appendTo(sb);
+            }
+            return sb.toString();
+        }
+
+        // Prometheus text exposition format
+        String exposition() {
+            StringBuilder sb = new StringBuilder(4096);
+            sb.append("# TYPE central_inflight_commands gauge\ncentral_inflight_commands ").append(inflight.sum()).append('\n');
+            sb.append("# TYPE central_cache_entries gauge\ncentral_cache_entries ").append(accountCache.size()).append('\n');
+            sb.append("# TYPE central_cache_hits_total counter\ncentral_cache_hits_total ").append(accountCache.hits.sum()).append('\n');
+            sb.append("# TYPE central_cache_misses_total counter\ncentral_cache_misses_total ").append(accountCache.misses.sum()).append('\n');
+            sb.append("# TYPE central_tx_undelivered gauge\ncentral_tx_undelivered ").append(coordinator == null ? 0 : coordinator.undelivered()).append('\n');
+            sb.append("# TYPE central_workers gauge\ncentral_workers ").append(workers.size()).append('\n');
+            sb.append("# TYPE central_command_latency_seconds summary\n");
+            for (Map.Entry<String, Histogram> e : new TreeMap<>(commands).entrySet()) {
+                e.getValue().appendExposition(sb, "central_command_latency_seconds", "command=\"" + e.getKey() + "\"");
+            }
+            sb.append("# TYPE central_command_errors_total counter\n");
+            for (String name : new TreeSet<>(commandErrors.keySet())) {
+                sb.append("central_command_errors_total{command=\"").append(name).append("\"} ").append(count(commandErrors, name)).append('\n');
+            }
+            sb.append("# TYPE central_worker_latency_seconds summary\n");
+            for (Map.Entry<String, Histogram> e : new TreeMap<>(workerCalls).entrySet()) {
+                e.getValue().appendExposition(sb, "central_worker_latency_seconds", "worker=\"" + e.getKey() + "\"");
+            }
+            sb.append("# TYPE central_worker_inflight gauge\n");
+            sb.append("# TYPE central_worker_available gauge\n");
+            synchronized (workers) {
+                for (WorkerInfo w : workers) {
+                    sb.append("central_worker_inflight{worker=\"").append(w.id).append("\"} ").append(w.inflight.get()).append('\n');
+                    sb.append("central_worker_available{worker=\"").append(w.id).append("\"} ").append(w.health.available() ? 1 : 0).append('\n');
                 }
             }
-            clientOut.println("DONE|Created:" + created);
+            appendCounters(sb, "central_worker_timeouts_total", workerTimeouts);
+            appendCounters(sb, "central_worker_errors_total", workerErrors);
+            appendCounters(sb, "central_worker_rejected_total", workerRejected);
+            return sb.toString();
         }
 
+        private static void appendCounters(StringBuilder sb, String metric, Map<String, LongAdder> byWorker) {
+            sb.append("# TYPE ").append(metric).append(" counter\n");
+            for (String id : new TreeSet<>(byWorker.keySet())) {
+                sb.append(metric).append("{worker=\"").append(id).append("\"} ").append(count(byWorker, id)).append('\n');
+            }
+        }
 
-        private String queryAccount(int id) {
-            if (workers.size() == 0) return "ERROR|NoWorkers";
-            int idx = workerIndexForAccount(id);
-            WorkerInfo w = workers.get(idx);
+        void serveHttp(int port) {
             try {
-                String resp = sendToWorker(w, "CONSULTAR_CUENTA|" + id, 3000);
-                return resp != null ? resp : "ERROR|NoResponse";
+                com.sun.net.httpserver.HttpServer http =
+                    com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                http.createContext("/metrics", ex -> {
+                    byte[] body = exposition().getBytes(StandardCharsets.UTF_8);
+                    ex.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    ex.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = ex.getResponseBody()) {
+                        os.write(body);
+                    }
+                });
+                http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "metrics-http");
+                    t.setDaemon(true);
+                    return t;
+                }));
+                http.start();
+                System.out.println("Metrics on http://127.0.0.1:" + port + "/metrics");
             } catch (IOException e) {
-                return "ERROR|" + e.getMessage();
+                System.err.println("Metrics endpoint disabled: " + e.getMessage());
             }
         }
+    }
 
-        private String transfer(int from, int to, double monto) {
-            if (workers.size() == 0) return "ERROR|NoWorkers";
-            int idxFrom = workerIndexForAccount(from);
-            int idxTo = workerIndexForAccount(to);
-            if (idxFrom == -1 || idxTo == -1) return "ERROR|NoWorkers";
-            WorkerInfo wFrom = workers.get(idxFrom);
-            WorkerInfo wTo = workers.get(idxTo);
-            try {
-                // 1) request debit
-                String resp1 = sendToWorker(wFrom, "DEBIT|" + from + "|" + monto, 5000);
-                if (!"OK".equals(resp1)) {
-                    return "ERROR|DebitFailed|" + resp1;
-                }
-                // 2) credit destination
-                String resp2 = sendToWorker(wTo, "CREDIT|" + to + "|" + monto, 5000);
-                if (!"OK".equals(resp2)) {
-                    // attempt compensating credit back
-                    sendToWorker(wFrom, "CREDIT|" + from + "|" + monto, 3000);
-                    return "ERROR|CreditFailed|" + resp2;
-                }
-                // record transaction in source worker (they can log)
-                sendToWorker(wFrom, "RECORD_TX|" + from + "|" + to + "|" + monto, 2000);
-                sendToWorker(wTo, "RECORD_TX|" + from + "|" + to + "|" + monto, 2000);
-                return "CONFIRMACION|Transferencia realizada";
-            } catch (IOException e) {
-                return "ERROR|" + e.getMessage();
+    // Log-linear latency histogram in microseconds, in the style of HdrHistogram: each power of two
+    // is split into 64 linear sub-buckets, so any recorded value is reported within ~1.6% of itself
+    // with fixed memory and a single atomic add per sample.
+    static final class Histogram {
+        private static final int SUB_BITS = 7;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int HALF = SUB / 2;
+        private final AtomicLongArray counts = new AtomicLongArray(SUB + (63 - SUB_BITS) * HALF);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sumMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void recordSince(long startNanos) {
+            record(Math.max(0, (System.nanoTime() - startNanos) / 1000));
+        }
+
+        void record(long micros) {
+            counts.incrementAndGet(index(micros));
+            total.increment();
+            sumMicros.add(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) { }
+        }
+
+        static int index(long v) {
+            if (v < SUB) return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS + 1;
+            return SUB + (shift - 1) * HALF + (int) (v >>> shift) - HALF;
+        }
+
+        // highest value that falls in bucket i
+        static long highest(int i) {
+            if (i < SUB) return i;
+            int k = i - SUB;
+            int shift = k / HALF + 1;
+            long sub = k % HALF + HALF;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        // smallest recorded value v such that a fraction q of the samples are <= v
+        long percentile(double q) {
+            long n = total.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(highest(i), maxMicros.get());
             }
+            return maxMicros.get();
         }
 
-        private String createLoan(int accountId, double amount, double pendingAmount) {
-            if (workers.size() == 0) return "ERROR|NoWorkers";
-            int idx = workerIndexForAccount(accountId);
-            WorkerInfo w = workers.get(idx);
-            try {
-                String resp = sendToWorker(w, "CREAR_PRESTAMO|" + accountId + "|" + amount + "|" + pendingAmount, 5000);
-                return resp != null ? resp : "ERROR|NoResponse";
-            } catch (IOException e) {
-                return "ERROR|" + e.getMessage();
+        void appendTo(StringBuilder sb) {
+            sb.append(",n=").append(total.sum())
+              .append(",p50=").append(ms(percentile(0.50)))
+              .append(",p99=").append(ms(percentile(0.99)))
+              .append(",p999=").append(ms(percentile(0.999)))
+              .append(",max=").append(ms(maxMicros.get()));
+        }
+
+        void appendExposition(StringBuilder sb, String metric, String labels) {
+            for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+                sb.append(metric).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+                  .append(percentile(q) / 1e6).append('\n');
             }
+            sb.append(metric).append("_sum{").append(labels).append("} ").append(sumMicros.sum() / 1e6).append('\n');
+            sb.append(metric).append("_count{").append(labels).append("} ").append(total.sum()).append('\n');
         }
 
-        private String payLoan(int accountId, int loanId, double amount) {
-            if (workers.size() == 0) return "ERROR|NoWorkers";
-            int idx = workerIndexForAccount(accountId);
-            WorkerInfo w = workers.get(idx);
+        private static String ms(long micros) {
+            return String.format(Locale.ROOT, "%.2f", micros / 1000.0);
+        }
+    }
+
+    // Client request log: 1 in `every` requests is queued (sampled at random, no shared counter) and a
+    // background thread prints them in batches, so the console never slows a request down. Lines
+    // that do not fit in the queue are dropped and counted.
+    static class RequestLog {
+        private final int every;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(4096);
+        private final LongAdder dropped = new LongAdder();
+
+        RequestLog(int every) {
+            this.every = every;
+            if (every <= 0) return;
+            Thread t = new Thread(this::drain, "request-log");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void log(String kind, String detail) {
+            if (every <= 0 || (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0)) return;
+            if (!queue.offer(kind + detail)) dropped.increment();
+        }
+
+        private void drain() {
+            List<String> batch = new ArrayList<>(256);
+            StringBuilder sb = new StringBuilder();
             try {
-                String resp = sendToWorker(w, "PAGAR_PRESTAMO|" + accountId + "|" + loanId + "|" + amount, 5000);
-                return resp != null ? resp : "ERROR|NoResponse";
-            } catch (IOException e) {
-                return "ERROR|" + e.getMessage();
+                while (true) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, 255);
+                    for (String line : batch) sb.append("Client -> ").append(line).append('\n');
+                    long lost = dropped.sumThenReset();
+                    if (lost > 0) sb.append("(request log: ").append(lost).append(" lines dropped)\n");
+                    System.out.print(sb);
+                    batch.clear();
+                    sb.setLength(0);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
+    }
 
-        private String performArqueo() {
-            if (workers.size() == 0) return "ERROR|NoWorkers";
-            double totalBalance = 0.0;
-            int totalAccounts = 0;
-            try {
-                for (WorkerInfo w : workers) {
-                    String resp = sendToWorker(w, "ARQUEO", 10000);
-                    if (resp != null && resp.startsWith("OK|")) {
-                        String[] data = resp.substring(3).split("\\|");
-                        totalBalance += Double.parseDouble(data[0]);
-                        totalAccounts += Integer.parseInt(data[1]);
-                    }
+    // Bounded LRU of CONSULTAR_CUENTA replies, split into segments so readers of different accounts
+    // rarely contend. A load only fills the cache if no write to its stripe finished meanwhile, so a
+    // reply read before a write can never be cached after that write's invalidation.
+    static class AccountCache {
+        private static final int SEGMENTS = 16;
+        private static final int STRIPES = 1024;
+        private final Segment[] segments = new Segment[SEGMENTS];
+        private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+        private final long maxStaleNanos;
+        private final int capacity;
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+
+        AccountCache(int capacity, long maxStaleMs) {
+            this.capacity = capacity;
+            this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMs);
+            int perSegment = (capacity + SEGMENTS - 1) / SEGMENTS;
+            for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(perSegment);
+        }
+
+        boolean enabled() {
+            return capacity > 0 && maxStaleNanos > 0;
+        }
+
+        // cached reply, or null on a miss (absent or older than the staleness bound)
+        String get(int accountId) {
+            if (!enabled()) return null;
+            Segment seg = segment(accountId);
+            synchronized (seg) {
+                Entry e = seg.get(accountId);
+                if (e != null && System.nanoTime() - e.loadedAt <= maxStaleNanos) {
+                    hits.increment();
+                    return e.reply;
                 }
-                return "OK|TotalBalance:" + totalBalance + "|TotalAccounts:" + totalAccounts;
-            } catch (Exception e) {
-                return "ERROR|" + e.getMessage();
+                if (e != null) seg.remove(accountId);
+            }
+            misses.increment();
+            return null;
+        }
+
+        // taken before asking the worker; put() only succeeds if it is still current
+        long version(int accountId) {
+            return versions.get(stripe(accountId));
+        }
+
+        void put(int accountId, long version, String reply) {
+            if (!enabled()) return;
+            Segment seg = segment(accountId);
+            synchronized (seg) {
+                if (versions.get(stripe(accountId)) == version) seg.put(accountId, new Entry(reply, System.nanoTime()));
+            }
+        }
+
+        // call once the write is answered (or its outcome is unknown)
+        void invalidate(int accountId) {
+            Segment seg = segment(accountId);
+            synchronized (seg) {
+                versions.incrementAndGet(stripe(accountId));
+                seg.remove(accountId);
             }
         }
+
+        void clear() {
+            for (Segment seg : segments) {
+                synchronized (seg) {
+                    seg.clear();
+                }
+            }
+            for (int i = 0; i < STRIPES; i++) versions.incrementAndGet(i);
+        }
+
+        int size() {
+            int n = 0;
+            for (Segment seg : segments) {
+                synchronized (seg) {
+                    n += seg.size();
+                }
+            }
+            return n;
+        }
+
+        String describe() {
+            long h = hits.sum(), m = misses.sum();
+            double rate = h + m == 0 ? 0 : 100.0 * h / (h + m);
+            return "cache|size=" + size() + "/" + capacity + "|hits=" + h + "|misses=" + m
+                + "|hitRate=" + String.format(Locale.ROOT, "%.1f%%", rate) + "|maxStalenessMs="
+                + TimeUnit.NANOSECONDS.toMillis(maxStaleNanos);
+        }
+
+        private Segment segment(int accountId) {
+            return segments[Math.floorMod(accountId * 0x9E3779B9, SEGMENTS)];
+        }
+
+        private int stripe(int accountId) {
+            return Math.floorMod(accountId, STRIPES);
+        }
+
+        private static final class Entry {
+            final String reply;
+            final long loadedAt;
+            Entry(String reply, long loadedAt) {
+                this.reply = reply; this.loadedAt = loadedAt;
+            }
+        }
+
+        // access-ordered map that drops its least recently used entry when full
+        private static final class Segment extends LinkedHashMap<Integer, Entry> {
+            private static final long serialVersionUID = 1L;
+            private final int max;
+            Segment(int max) {
+                super(16, 0.75f, true);
+                this.max = max;
+            }
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > max;
+            }
+        }
+    }
+
+    // Per-account write ordering without a global lock. Accounts hash to stripes; a write runs once it
+    // owns the stripes of every account it touches. It takes all of them or none, checking them in
+    // ascending order and holding nothing while it waits, so writes on the same account never overlap
+    // and never wait on each other in a cycle. A stripe has one owner at a time: a finishing write
+    // hands each of its stripes to the oldest write queued on it. This layer only orders writes: those
+    // on one account run one at a time, each with its own worker round trip. Hot credit accounts are
+    // batched separately, by the coordinator's credit accumulator.
+    static class AccountLocks {
+        private final Stripe[] stripes;
+        private final LongAdder writes = new LongAdder();
+        private final LongAdder queued = new LongAdder();
+        private final LongAdder handoffs = new LongAdder();
+        private final AtomicInteger longestQueue = new AtomicInteger();
+
+        AccountLocks(int n) {
+            stripes = new Stripe[Integer.highestOneBit(Math.max(1, n - 1)) << 1];
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new Stripe();
+        }
+
+        <T> T run(int[] accounts, Supplier<T> write) {
+            writes.increment();
+            Op op = new Op(stripesOf(accounts));
+            if (!admit(op, false)) {
+                queued.increment();
+                op.admitted.join();
+            }
+            try {
+                return write.get();
+            } finally {
+                finish(op);
+            }
+        }
+
+        private int[] stripesOf(int[] accounts) {
+            int[] idx = new int[accounts.length];
+            for (int i = 0; i < accounts.length; i++) {
+                int h = accounts[i] * 0x9E3779B9;
+                idx[i] = (h ^ (h >>> 16)) & (stripes.length - 1);
+            }
+            Arrays.sort(idx);
+            int n = 0;
+            for (int i = 0; i < idx.length; i++) {
+                if (i == 0 || idx[i] != idx[i - 1]) idx[n++] = idx[i];
+            }
+            return Arrays.copyOf(idx, n);
+        }
+
+        // takes every stripe of op when all are free; otherwise queues it on the first busy one, at
+        // the front if it already waited its turn, to be reconsidered when that stripe's owner finishes
+        private boolean admit(Op op, boolean waited) {
+            int locked = 0;
+            try {
+                Stripe busy = null;
+                for (int i : op.stripes) {
+                    Stripe s = stripes[i];
+                    s.lock.lock();
+                    locked++;
+                    if (busy == null && s.owner != null) busy = s;
+                }
+                if (busy != null) {
+                    if (waited) busy.waiting.addFirst(op);
+                    else busy.waiting.addLast(op);
+                    longestQueue.accumulateAndGet(busy.waiting.size(), Math::max);
+                    return false;
+                }
+                for (int i : op.stripes) stripes[i].owner = op;
+                return true;
+            } finally {
+                for (int k = 0; k < locked; k++) stripes[op.stripes[k]].lock.unlock();
+            }
+        }
+
+        // frees op's stripes, then hands each one to the oldest write queued on it. One that still finds
+        // another of its stripes owned waits there instead, and the next in line gets this stripe, so a
+        // free stripe is never left with writes queued on it
+        private void finish(Op op) {
+            for (int i : op.stripes) {
+                Stripe s = stripes[i];
+                s.lock.lock();
+                try {
+                    s.owner = null;
+                } finally {
+                    s.lock.unlock();
+                }
+            }
+            for (int i : op.stripes) {
+                Stripe s = stripes[i];
+                while (true) {
+                    Op head;
+                    s.lock.lock();
+                    try {
+                        head = s.owner == null ? s.waiting.pollFirst() : null;
+                    } finally {
+                        s.lock.unlock();
+                    }
+                    if (head == null) break;
+                    if (!admit(head, true)) continue;
+                    handoffs.increment();
+                    head.admitted.complete(null);
+                }
+            }
+        }
+
+        String describe() {
+            return "locks|stripes=" + stripes.length + "|writes=" + writes.sum() + "|queued=" + queued.sum()
+                + "|handoffs=" + handoffs.sum() + "|longestQueue=" + longestQueue.get();
+        }
+
+        private static final class Stripe {
+            final ReentrantLock lock = new ReentrantLock();
+            Op owner;                                          // guarded by lock
+            final ArrayDeque<Op> waiting = new ArrayDeque<>(); // guarded by lock
+        }
+
+        private static final class Op {
+            final int[] stripes;
+            final CompletableFuture<Void> admitted = new CompletableFuture<>();
+
+            Op(int[] stripes) {
+                this.stripes = stripes;
+            }
+        }
+    }
+
+    // Request rates per account and per worker. Accounts are counted in a count-min sketch, DEPTH rows
+    // of `width` counters each hashed differently, whose smallest counter is the estimate: collisions
+    // only ever overestimate, in a fixed few KB whatever the number of accounts. The topK heaviest are
+    // also kept by id, to be listed. Every counter is halved each window, so an estimate follows the
+    // recent rate (between one and two windows' worth of requests) rather than the all-time total.
+    static class HotKeys {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+        private final AtomicIntegerArray counts;
+        private final int mask, k, hotCount;
+        private final long windowMs;
+        private final Map<Integer, Integer> top = new HashMap<>(); // guarded by this: account -> last estimate
+        private volatile int topFloor; // a request estimated at or below this cannot enter a full top
+        // hot accounts a regular credit has reached, so known to exist; only these are absorbed
+        private final Set<Integer> confirmed = ConcurrentHashMap.newKeySet();
+        private final Map<String, AtomicLong> perWorker = new ConcurrentHashMap<>();
+        private final LongAdder requests = new LongAdder();
+
+        HotKeys(int width, int k, int threshold, long windowMs) {
+            int w = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+            counts = new AtomicIntegerArray(DEPTH * w);
+            mask = w - 1;
+            this.k = Math.max(1, k);
+            this.windowMs = Math.max(1, windowMs);
+            // halving every window holds a steady rate at ~1.5 windows' worth on average
+            hotCount = (int) Math.max(1, threshold * this.windowMs * 3 / 2000);
+        }
+
+        void record(int account) {
+            requests.increment();
+            WorkerInfo owner = workerForAccount(account);
+            if (owner != null) perWorker.computeIfAbsent(owner.id, id -> new AtomicLong()).incrementAndGet();
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) estimate = Math.min(estimate, counts.incrementAndGet(index(row, account)));
+            // every 8th request of an account is enough to rank it
+            if ((estimate & 7) == 0 && estimate > topFloor) rank(account, estimate);
+        }
+
+        boolean isHot(int account) {
+            return estimate(account) >= hotCount;
+        }
+
+        // a credit to this account may skip its worker's PREPARE (see TxCoordinator)
+        boolean absorbable(int account) {
+            return confirmed.contains(account) && isHot(account);
+        }
+
+        void credited(int account) {
+            if (HOT_ABSORB && isHot(account)) confirmed.add(account);
+        }
+
+        private int estimate(int account) {
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) estimate = Math.min(estimate, counts.get(index(row, account)));
+            return estimate;
+        }
+
+        private int index(int row, int account) {
+            int h = account * SEEDS[row];
+            return row * (mask + 1) + ((h ^ (h >>> 16)) & mask);
+        }
+
+        private synchronized void rank(int account, int estimate) {
+            top.put(account, estimate);
+            if (top.size() > k) top.remove(Collections.min(top.entrySet(), Map.Entry.comparingByValue()).getKey());
+            topFloor = top.size() < k ? 0 : Collections.min(top.values());
+        }
+
+        // every window; racing increments may be halved or not, an estimate is approximate anyway
+        void decay() {
+            for (int i = 0; i < counts.length(); i++) counts.set(i, counts.get(i) >> 1);
+            for (AtomicLong n : perWorker.values()) n.set(n.get() >> 1);
+            synchronized (this) {
+                top.replaceAll((account, n) -> n >> 1);
+                top.values().removeIf(n -> n == 0);
+                topFloor = top.size() < k ? 0 : Collections.min(top.values());
+            }
+            confirmed.removeIf(account -> !isHot(account));
+        }
+
+        private long perSecond(long count) {
+            return count * 2000 / (3 * windowMs);
+        }
+
+        String describe() {
+            List<Map.Entry<Integer, Integer>> ranked = new ArrayList<>();
+            Set<Integer> ids;
+            synchronized (this) {
+                ids = new HashSet<>(top.keySet());
+            }
+            // the sketch is fresher than the estimate each account was last ranked with
+            for (int account : ids) ranked.add(new AbstractMap.SimpleEntry<>(account, estimate(account)));
+            StringBuilder accounts = new StringBuilder();
+            ranked.sort(Map.Entry.<Integer, Integer>comparingByValue().reversed());
+            for (Map.Entry<Integer, Integer> e : ranked) {
+                if (accounts.length() > 0) accounts.append(',');
+                accounts.append(e.getKey()).append(':').append(perSecond(e.getValue()));
+                if (e.getValue() >= hotCount) accounts.append(confirmed.contains(e.getKey()) ? ":absorbed" : ":hot");
+            }
+            StringBuilder byWorker = new StringBuilder();
+            long max = 0, sum = 0;
+            for (Map.Entry<String, AtomicLong> e : new TreeMap<>(perWorker).entrySet()) {
+                long rate = perSecond(e.getValue().get());
+                if (byWorker.length() > 0) byWorker.append(',');
+                byWorker.append(e.getKey()).append(':').append(rate);
+                max = Math.max(max, rate);
+                sum += rate;
+            }
+            String skew = sum == 0 ? "1.00" : String.format(Locale.ROOT, "%.2f", (double) max * perWorker.size() / sum);
+            return "hot|windowMs=" + windowMs + "|threshold=" + perSecond(hotCount) + "|requests=" + requests.sum()
+                + "|accounts=" + accounts + "|workers=" + byWorker + "|skew=" + skew;
+        }
+    }
+
+    // Admission control for client commands. A command takes a slot of the global budget and of its
+    // connection's before it is queued anywhere, and gives them back once answered; when either is
+    // spent it is answered ERROR|Busy at once instead of slowing every other request down. Commands
+    // come in three classes: interactive ones (queries, transfers, loans and payments) may use the
+    // whole budget, bulk ones only their share of it, and administrative ones are never refused.
+    static class Admission {
+        enum Priority { INTERACTIVE, BULK, ADMIN }
+
+        private static final double ALPHA = 0.05;
+        private final int global, perClient, bulkLimit;
+        private final AtomicInteger running = new AtomicInteger(), runningBulk = new AtomicInteger();
+        private final LongAdder admitted = new LongAdder(), rejected = new LongAdder(), rejectedBulk = new LongAdder();
+        private volatile double serviceMs = 1; // EWMA of command times, for the retry hint; racy updates are fine
+        private volatile long servedNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(2);
+
+        Admission(int global, int perClient, double bulkShare) {
+            this.global = Math.max(1, global);
+            this.perClient = Math.max(1, perClient);
+            this.bulkLimit = Math.max(1, (int) (this.global * bulkShare));
+        }
+
+        static Priority priorityOf(String name) {
+            switch (name) {
+                case "CONSULTAR_CUENTA":
+                case "TRANSFERIR_CUENTA":
+                case "ESTADO_PAGO_PRESTAMO":
+                case "CREAR_PRESTAMO":
+                case "PAGAR_PRESTAMO":
+                    return Priority.INTERACTIVE;
+                case "CREATE_ACCOUNTS":
+                case "ARQUEO":
+                case "ARQUEO_RAPIDO":
+                case "HISTORIAL_CUENTA":
+                    return Priority.BULK;
+                default:
+                    return Priority.ADMIN;
+            }
+        }
+
+        // true if the command may run; it must then be given back with release()
+        boolean tryAdmit(AtomicInteger client, Priority p) {
+            if (p == Priority.ADMIN) return true;
+            if (client.incrementAndGet() > perClient) {
+                client.decrementAndGet();
+                return refuse(p);
+            }
+            if (p == Priority.BULK && runningBulk.incrementAndGet() > bulkLimit) {
+                runningBulk.decrementAndGet();
+                client.decrementAndGet();
+                return refuse(p);
+            }
+            if (running.incrementAndGet() > global) {
+                running.decrementAndGet();
+                if (p == Priority.BULK) runningBulk.decrementAndGet();
+                client.decrementAndGet();
+                return refuse(p);
+            }
+            admitted.increment();
+            return true;
+        }
+
+        void release(AtomicInteger client, Priority p, long startNanos) {
+            if (p == Priority.ADMIN) return;
+            client.decrementAndGet();
+            running.decrementAndGet();
+            if (p == Priority.BULK) runningBulk.decrementAndGet();
+            if (p == Priority.INTERACTIVE) {
+                long now = System.nanoTime();
+                serviceMs += ALPHA * ((now - startNanos) / 1e6 - serviceMs);
+                servedNanos = now;
+            }
+        }
+
+        // recent interactive command time in ms; 0 when none finished in the last second
+        double interactiveMs() {
+            return System.nanoTime() - servedNanos < TimeUnit.SECONDS.toNanos(1) ? serviceMs : 0;
+        }
+
+        private boolean refuse(Priority p) {
+            (p == Priority.BULK ? rejectedBulk : rejected).increment();
+            return false;
+        }
+
+        // about one interactive command's time, more the fuller the server is
+        String busy() {
+            return CentralServer.busy((long) Math.ceil(serviceMs * Math.max(1.0, (double) running.get() / global)));
+        }
+
+        String describe() {
+            return "admission|running=" + running.get() + "/" + global + "|bulk=" + runningBulk.get() + "/" + bulkLimit
+                + "|perClient=" + perClient + "|admitted=" + admitted.sum() + "|rejected=" + rejected.sum()
+                + "|rejectedBulk=" + rejectedBulk.sum() + "|serviceMs=" + String.format(Locale.ROOT, "%.1f", serviceMs);
+        }
+    }
+
+    // Two-phase transfers between workers. Both owners PREPARE in parallel (the debit side reserves
+    // the amount). If both agree, the decision is forced to the coordinator log before COMMIT goes
+    // out, and COMMIT is retried until each worker acknowledges it, so neither a timeout nor a
+    // restart of this server can lose a transfer half way. No logged decision means abort: a
+    // reconnecting worker's leftover reservations (LIST_PREPARED) are committed or aborted from the log.
+    // A credit to a hot account (see HotKeys) is absorbed instead: the transfer prepares and commits
+    // only its debit, logged with "*" as credit worker, and answers once that is done, with the credit
+    // still waiting here alongside others for the same account. A flush, under that account's lock,
+    // prepares their sum as one credit, logs "F|batch|account|cents|worker|tx,..." (which settles
+    // those transfers), publishes their CREDITO events and commits it. The hot account's worker takes
+    // two commands per flush rather than two per transfer, and its lock one turn per flush rather than
+    // one per transfer. Reads and debits of an account flush it first.
+    static class TxCoordinator {
+        private static final long TIMEOUT_MS = 5000;
+        private static final String ABSORBED = "*";
+        private final TxLog log;
+        private final String prefix = "T" + Long.toString(System.currentTimeMillis(), 36) + ".";
+        private final AtomicLong nextTx = new AtomicLong();
+        private final Set<String> active = new HashSet<>();                   // guarded by this
+        private final Map<String, Decision> decided = new LinkedHashMap<>();  // guarded by this
+        private final Map<String, WorkerAbort> aborts = new ConcurrentHashMap<>();
+        // absorbed credits whose debit is acknowledged, by account; written under this
+        private final Map<Integer, List<Decision>> absorbed = new ConcurrentHashMap<>();
+        private final Map<Integer, CompletableFuture<Void>> flushing = new ConcurrentHashMap<>(); // written under this
+        private final Map<String, Batch> batches = new LinkedHashMap<>(); // guarded by this: logged, commit not acknowledged
+        private final LongAdder absorbedCredits = new LongAdder(), flushes = new LongAdder(), failedFlushes = new LongAdder();
+
+        TxCoordinator(Path path) throws IOException {
+            log = new TxLog(path);
+            for (String record : log.pending()) {
+                if (record.startsWith("F|")) {
+                    Batch b = Batch.parse(record);
+                    batches.put(b.id, b);
+                } else {
+                    Decision d = Decision.parse(record);
+                    decided.put(d.tx, d);
+                }
+            }
+            if (!decided.isEmpty()) System.out.println("Coordinator: " + decided.size() + " committed transfers to deliver");
+            if (!batches.isEmpty()) System.out.println("Coordinator: " + batches.size() + " absorbed credit batches to deliver");
+            timer.scheduleWithFixedDelay(this::retry, 1, 1, TimeUnit.SECONDS);
+            if (HOT_ABSORB) timer.scheduleWithFixedDelay(() -> pool.execute(this::flushAll), HOT_FLUSH_MS, Math.max(1, HOT_FLUSH_MS), TimeUnit.MILLISECONDS);
+        }
+
+        String newTx() {
+            return prefix + nextTx.incrementAndGet();
+        }
+
+        // committed transfers not yet acknowledged by both workers
+        synchronized int undelivered() {
+            return decided.size() + batches.size();
+        }
+
+        // null when a worker does not know PREPARE (the caller falls back to the legacy path)
+        String transfer(String tx, int from, int to, long cents, WorkerInfo wFrom, WorkerInfo wTo) {
+            String monto = amount(cents);
+            synchronized (this) {
+                active.add(tx);
+            }
+            CompletableFuture<String> debit = sendToWorkerAsync(wFrom, "PREPARE_DEBIT|" + tx + "|" + from + "|" + monto, TIMEOUT_MS);
+            CompletableFuture<String> credit = sendToWorkerAsync(wTo, "PREPARE_CREDIT|" + tx + "|" + to + "|" + monto, TIMEOUT_MS);
+            String rDebit = debit.exceptionally(e -> "ERROR|" + e.getMessage()).join();
+            String rCredit = credit.exceptionally(e -> "ERROR|" + e.getMessage()).join();
+            if (!"OK".equals(rDebit) || !"OK".equals(rCredit)) {
+                abort(tx, wFrom, wTo);
+                if ("ERROR|UnknownOp".equals(rDebit) || "ERROR|UnknownOp".equals(rCredit)) return null;
+                return !"OK".equals(rDebit) ? "ERROR|DebitFailed|" + rDebit : "ERROR|CreditFailed|" + rCredit;
+            }
+            return commit(new Decision(tx, from, to, cents, wFrom.id, wTo.id), wFrom, wTo);
+        }
+
+        // a transfer into a hot account on another worker: only the debit is prepared here, the credit
+        // is absorbed. The caller checked the account exists (HotKeys.absorbable)
+        String transferAbsorbed(String tx, int from, int to, long cents, WorkerInfo wFrom) {
+            synchronized (this) {
+                active.add(tx);
+            }
+            String rDebit = sendToWorkerAsync(wFrom, "PREPARE_DEBIT|" + tx + "|" + from + "|" + amount(cents), TIMEOUT_MS)
+                .exceptionally(e -> "ERROR|" + e.getMessage()).join();
+            if (!"OK".equals(rDebit)) {
+                abort(tx, wFrom);
+                return "ERROR|UnknownOp".equals(rDebit) ? null : "ERROR|DebitFailed|" + rDebit;
+            }
+            absorbedCredits.increment();
+            return commit(new Decision(tx, from, to, cents, wFrom.id, ABSORBED), wFrom);
+        }
+
+        private String commit(Decision d, WorkerInfo... participants) {
+            try {
+                long seq;
+                synchronized (this) {
+                    active.remove(d.tx);
+                    decided.put(d.tx, d);
+                    seq = log.write(d.record());
+                }
+                log.sync(seq);
+            } catch (IOException e) {
+                System.err.println("Coordinator log write failed, aborting " + d.tx + ": " + e.getMessage());
+                synchronized (this) {
+                    decided.remove(d.tx);
+                    active.add(d.tx);
+                }
+                abort(d.tx, participants);
+                return "ERROR|TxLog";
+            }
+            // committed from here on; wait for the acknowledgements so the client reads its own write
+            await(deliver(d));
+            return "CONFIRMACION|Transferencia realizada";
+        }
+
+        private static void await(CompletableFuture<Void> f) {
+            try {
+                f.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // the retry loop keeps delivering it
+            }
+        }
+
+        private void abort(String tx, WorkerInfo... participants) {
+            synchronized (this) {
+                active.remove(tx);
+            }
+            for (WorkerInfo w : participants) {
+                WorkerAbort a = new WorkerAbort(tx, w.id);
+                aborts.put(a.key(), a);
+                sendAbort(a, w);
+            }
+        }
+
+        private void sendAbort(WorkerAbort a, WorkerInfo w) {
+            sendToWorkerAsync(w, "ABORT|" + a.tx, TIMEOUT_MS).whenComplete((resp, e) -> {
+                if ("OK".equals(resp) || "ERROR|UnknownOp".equals(resp)) aborts.remove(a.key());
+            });
+        }
+
+        // sends COMMIT to each side that has not acknowledged it yet; one delivery at a time per transaction
+        private CompletableFuture<Void> deliver(Decision d) {
+            synchronized (this) {
+                if (d.sending || !decided.containsKey(d.tx)) return CompletableFuture.completedFuture(null);
+                d.sending = true;
+            }
+            String cmd = "COMMIT|" + d.tx + "|" + d.from + "|" + d.to + "|" + amount(d.cents);
+            List<CompletableFuture<Void>> sends = new ArrayList<>(2);
+            if (!d.debitDone) sends.add(commitSide(d, cmd, true));
+            if (!d.creditDone && !d.absorbed()) sends.add(commitSide(d, cmd, false));
+            return CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> {
+                synchronized (this) {
+                    d.sending = false;
+                }
+            });
+        }
+
+        private CompletableFuture<Void> commitSide(Decision d, String cmd, boolean debitSide) {
+            WorkerInfo w = workerById(debitSide ? d.debitWorker : d.creditWorker);
+            if (w == null) return CompletableFuture.completedFuture(null); // not connected; retried later
+            long delta = debitSide ? -d.cents : d.cents;
+            return sendWriteAsync(w, cmd, TIMEOUT_MS, delta, 0)
+                .exceptionally(e -> null)
+                .thenAccept(resp -> {
+                    if (!"OK".equals(resp)) return;
+                    accountWritten(debitSide ? d.from : d.to);
+                    acknowledged(d, debitSide);
+                });
+        }
+
+        private void acknowledged(Decision d, boolean debitSide) {
+            synchronized (this) {
+                if (debitSide) d.debitDone = true;
+                else d.creditDone = true;
+                if (d.absorbed()) {
+                    // the batch its credit goes out in settles it
+                    if (debitSide && !d.queued) queue(d);
+                    return;
+                }
+                if (!d.debitDone || !d.creditDone) return;
+                decided.remove(d.tx);
+                try {
+                    log.write("E|" + d.tx); // no fsync: a lost end record only repeats an idempotent COMMIT
+                    if (decided.isEmpty() && batches.isEmpty()) log.resetIfLarge();
+                } catch (IOException e) {
+                    System.err.println("Coordinator log write failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void retry() {
+            List<Decision> undelivered;
+            synchronized (this) {
+                undelivered = new ArrayList<>(decided.values());
+            }
+            for (Decision d : undelivered) deliver(d);
+            List<Batch> open;
+            synchronized (this) {
+                open = new ArrayList<>(batches.values());
+            }
+            for (Batch b : open) deliver(b);
+            for (WorkerAbort a : aborts.values()) {
+                WorkerInfo w = workerById(a.workerId);
+                if (w != null) sendAbort(a, w);
+            }
+        }
+
+        // under this
+        private void queue(Decision d) {
+            d.queued = true;
+            List<Decision> credits = absorbed.computeIfAbsent(d.to, k -> new ArrayList<>());
+            credits.add(d);
+            if (credits.size() == HOT_FLUSH_MAX) pool.execute(() -> flush(d.to));
+        }
+
+        private void flushAll() {
+            for (int account : absorbed.keySet()) flush(account);
+        }
+
+        // returns once the account's absorbed credits, including any already flushing, reached its
+        // worker (or TIMEOUT_MS passed); cheap when there are none
+        void settle(int account) {
+            if (absorbed.containsKey(account) || flushing.containsKey(account)) await(flush(account));
+        }
+
+        void settleAll() {
+            List<CompletableFuture<Void>> all = new ArrayList<>();
+            for (int account : new HashSet<>(absorbed.keySet())) all.add(flush(account));
+            all.addAll(flushing.values());
+            await(CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])));
+        }
+
+        // one flush per account at a time; asked while one runs, it flushes again after it
+        private CompletableFuture<Void> flush(int account) {
+            List<Decision> credits;
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            synchronized (this) {
+                CompletableFuture<Void> running = flushing.get(account);
+                if (running != null) return running.thenCompose(v -> flush(account));
+                credits = absorbed.remove(account);
+                if (credits == null) return CompletableFuture.completedFuture(null);
+                flushing.put(account, done);
+            }
+            pool.execute(() -> {
+                try {
+                    flush(account, credits);
+                } finally {
+                    synchronized (this) {
+                        flushing.remove(account);
+                    }
+                    done.complete(null);
+                }
+            });
+            return done;
+        }
+
+        // under the account's lock like any other write to it, so its CREDITO events take their turn
+        private void flush(int account, List<Decision> credits) {
+            accountLocks.run(new int[] { account }, () -> {
+                ChangeFeed.Ticket ticket = changeFeed.ticket(account);
+                try {
+                    if (flushLocked(account, credits)) {
+                        for (Decision d : credits) ticket.add("CREDITO", d.cents, String.valueOf(d.from));
+                    }
+                } finally {
+                    ticket.done();
+                }
+                return null;
+            });
+        }
+
+        // true once the batch is committed (logged); its COMMIT may still be on its way
+        private boolean flushLocked(int account, List<Decision> credits) {
+            long cents = 0;
+            List<String> txs = new ArrayList<>(credits.size());
+            for (Decision d : credits) {
+                cents += d.cents;
+                txs.add(d.tx);
+            }
+            String id = newTx();
+            Lease lease = null;
+            try {
+                lease = lease(account, true);
+                WorkerInfo w = lease.owner;
+                synchronized (this) {
+                    active.add(id);
+                }
+                String resp = sendToWorkerAsync(w, "PREPARE_CREDIT|" + id + "|" + account + "|" + amount(cents), TIMEOUT_MS)
+                    .exceptionally(e -> "ERROR|" + e.getMessage()).join();
+                if (!"OK".equals(resp)) throw new IOException(resp);
+                Batch b = new Batch(id, account, cents, w.id, txs);
+                long seq;
+                synchronized (this) {
+                    active.remove(id);
+                    batches.put(id, b);
+                    for (String tx : txs) decided.remove(tx);
+                    seq = log.write(b.record());
+                }
+                try {
+                    log.sync(seq);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        batches.remove(id);
+                        for (Decision d : credits) decided.put(d.tx, d);
+                        active.add(id);
+                    }
+                    throw e;
+                }
+                flushes.increment();
+                await(deliver(b));
+                return true;
+            } catch (IOException e) {
+                // the credits wait for the next flush; whatever was prepared is released
+                failedFlushes.increment();
+                WorkerInfo w = lease != null ? lease.owner : null;
+                if (w != null) abort(id, w);
+                synchronized (this) {
+                    active.remove(id);
+                    absorbed.computeIfAbsent(account, k -> new ArrayList<>()).addAll(0, credits);
+                }
+                return false;
+            } finally {
+                if (lease != null) lease.release();
+            }
+        }
+
+        private CompletableFuture<Void> deliver(Batch b) {
+            synchronized (this) {
+                if (b.sending || !batches.containsKey(b.id)) return CompletableFuture.completedFuture(null);
+                b.sending = true;
+            }
+            WorkerInfo w = workerById(b.worker);
+            if (w == null) { // not connected; retried later
+                synchronized (this) {
+                    b.sending = false;
+                }
+                return CompletableFuture.completedFuture(null);
+            }
+            // no debit was prepared under the batch id, so COMMIT only applies the credit, from account 0
+            return sendWriteAsync(w, "COMMIT|" + b.id + "|0|" + b.account + "|" + amount(b.cents), TIMEOUT_MS, b.cents, 0)
+                .exceptionally(e -> null)
+                .thenAccept(resp -> {
+                    synchronized (this) {
+                        b.sending = false;
+                        if (!"OK".equals(resp)) return;
+                        batches.remove(b.id);
+                        try {
+                            log.write("E|" + b.id);
+                            if (decided.isEmpty() && batches.isEmpty()) log.resetIfLarge();
+                        } catch (IOException e) {
+                            System.err.println("Coordinator log write failed: " + e.getMessage());
+                        }
+                    }
+                    accountWritten(b.account);
+                });
+        }
+
+        synchronized String describeAbsorbed() {
+            int waiting = 0;
+            for (List<Decision> credits : absorbed.values()) waiting += credits.size();
+            return "absorbed=" + absorbedCredits.sum() + "|flushes=" + flushes.sum() + "|failedFlushes=" + failedFlushes.sum()
+                + "|waiting=" + waiting + "|batchesOpen=" + batches.size();
+        }
+
+        // a worker that (re)connects may still hold reservations from before a crash or disconnect
+        void resolvePrepared(WorkerInfo w) {
+            String resp;
+            try {
+                resp = sendToWorker(w, "LIST_PREPARED", TIMEOUT_MS);
+            } catch (IOException e) {
+                return;
+            }
+            if (resp == null || !resp.startsWith("OK|") || resp.length() == 3) return;
+            for (String tx : resp.substring(3).split(",")) {
+                Decision d;
+                Batch b;
+                synchronized (this) {
+                    if (active.contains(tx)) continue; // still being decided
+                    d = decided.get(tx);
+                    b = batches.get(tx);
+                }
+                if (d != null) {
+                    deliver(d);
+                } else if (b != null) {
+                    deliver(b);
+                } else {
+                    System.out.println("Coordinator: aborting undecided " + tx + " on " + w.id);
+                    WorkerAbort a = new WorkerAbort(tx, w.id);
+                    aborts.put(a.key(), a);
+                    sendAbort(a, w);
+                }
+            }
+        }
+
+        static final class Decision {
+            final String tx;
+            final int from, to;
+            final long cents;
+            final String debitWorker, creditWorker;
+            boolean debitDone, creditDone, sending, queued; // guarded by the coordinator
+
+            Decision(String tx, int from, int to, long cents, String debitWorker, String creditWorker) {
+                this.tx = tx; this.from = from; this.to = to; this.cents = cents;
+                this.debitWorker = debitWorker; this.creditWorker = creditWorker;
+            }
+
+            boolean absorbed() {
+                return creditWorker.equals(ABSORBED);
+            }
+
+            String record() {
+                return "C|" + tx + "|" + from + "|" + to + "|" + cents + "|" + debitWorker + "|" + creditWorker;
+            }
+
+            static Decision parse(String record) {
+                String[] f = record.split("\\|");
+                return new Decision(f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]), Long.parseLong(f[4]), f[5], f[6]);
+            }
+        }
+
+        static final class Batch {
+            final String id, worker;
+            final int account;
+            final long cents;
+            final List<String> txs;
+            boolean sending; // guarded by the coordinator
+
+            Batch(String id, int account, long cents, String worker, List<String> txs) {
+                this.id = id; this.account = account; this.cents = cents; this.worker = worker; this.txs = txs;
+            }
+
+            String record() {
+                return "F|" + id + "|" + account + "|" + cents + "|" + worker + "|" + String.join(",", txs);
+            }
+
+            static Batch parse(String record) {
+                String[] f = record.split("\\|");
+                return new Batch(f[1], Integer.parseInt(f[2]), Long.parseLong(f[3]), f[4], Arrays.asList(f[5].split(",")));
+            }
+        }
+
+        static final class WorkerAbort {
+            final String tx, workerId;
+            WorkerAbort(String tx, String workerId) {
+                this.tx = tx; this.workerId = workerId;
+            }
+            String key() {
+                return tx + "@" + workerId;
+            }
+        }
+    }
+
+    // Append-only coordinator log: "C|tx|..." commit decisions and "E|tx" once both sides have
+    // acknowledged; "F|batch|..." absorbed credits flushed together, which ends the transfers it lists
+    // and is itself ended by "E|batch". Every record carries a CRC so a line torn by a crash is ignored. Decisions
+    // written concurrently share one force() (group commit).
+    static class TxLog {
+        private static final long RESET_BYTES = 1 << 20;
+        private final FileChannel ch;
+        private final Object syncLock = new Object();
+        private final List<String> pending = new ArrayList<>();
+        private long written; // guarded by this
+        private long synced;  // guarded by syncLock
+
+        TxLog(Path path) throws IOException {
+            Map<String, String> open = new LinkedHashMap<>();
+            if (Files.exists(path)) {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    String record = verify(line);
+                    if (record == null) continue;
+                    String[] f = record.split("\\|");
+                    if (record.startsWith("F|")) {
+                        for (String tx : f[5].split(",")) open.remove(tx);
+                    }
+                    if (record.startsWith("C|") || record.startsWith("F|")) open.put(f[1], record);
+                    else open.remove(f[1]);
+                }
+            }
+            pending.addAll(open.values());
+            // compact: keep only the undelivered decisions, swapped in atomically
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (String record : pending) out.write(ByteBuffer.wrap(frame(record)));
+                out.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            ch = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        List<String> pending() {
+            return pending;
+        }
+
+        // returns a sequence number for sync()
+        synchronized long write(String record) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(frame(record));
+            while (b.hasRemaining()) ch.write(b);
+            return ++written;
+        }
+
+        // returns once the record numbered seq is on disk; one caller forces for all waiting behind it
+        void sync(long seq) throws IOException {
+            synchronized (syncLock) {
+                if (synced >= seq) return;
+                long upTo;
+                synchronized (this) {
+                    upTo = written;
+                }
+                ch.force(false);
+                synced = upTo;
+            }
+        }
+
+        // only called with no undelivered decision left
+        synchronized void resetIfLarge() throws IOException {
+            if (ch.size() > RESET_BYTES) ch.truncate(0);
+        }
+
+        private static byte[] frame(String record) {
+            return (record + "|" + crc(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String verify(String line) {
+            int bar = line.lastIndexOf('|');
+            if (bar < 0) return null;
+            String record = line.substring(0, bar);
+            return line.substring(bar + 1).equals(crc(record)) ? record : null;
+        }
+
+        private static String crc(String record) {
+            CRC32 crc = new CRC32();
+            crc.update(record.getBytes(StandardCharsets.UTF_8));
+            return Long.toHexString(crc.getValue());
+        }
+    }
+
+    // LOTE_PRESTAMOS: interest accrual or a loan report over every account, run in the background.
+    // All workers are walked at once, each in chunks of BATCH_CHUNK ids (ACCRUE_INTEREST or
+    // LOAN_REPORT from the last id done), and every chunk is checkpointed to BATCH_LOG before the next
+    // one, so repeating the run id after a crash or a failed run continues from there. A change of
+    // membership starts a new pass over the new placement: interest is charged once per loan and run
+    // anyway, a report simply starts over. Chunks sleep a pause that doubles while interactive
+    // commands miss BATCH_SLO_MS and halves once they meet it.
+    static class LoanBatch {
+        enum Kind { INTERES, REPORTE }
+
+        private static final int PASSES = 3;
+        // per kind, which total is an amount in cents; the totals follow the worker's reply after its last id
+        private static final boolean[] INTEREST_MONEY = { false, false, true };
+        private static final boolean[] REPORT_MONEY = { false, false, false, true, true, false, true };
+
+        private final FileChannel ch; // guarded by this
+        private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "loan-batch");
+            t.setDaemon(true);
+            return t;
+        });
+        private Job current;   // guarded by this
+        private Job unfinished; // checkpoints of the last run that did not complete, guarded by this
+        private String last;   // guarded by this
+
+        LoanBatch(Path path) throws IOException {
+            if (Files.exists(path)) {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    String record = TxLog.verify(line);
+                    if (record != null) unfinished = replay(unfinished, record.split("\\|", -1));
+                }
+            }
+            ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        // S|run|kind|arg starts a run, P|run|pass|members|carried a pass, C|run|worker|after|done|totals ends a chunk
+        private static Job replay(Job job, String[] r) {
+            if (r[0].equals("S")) return new Job(r[1], Kind.valueOf(r[2]), r[3]);
+            if (job == null || !job.run.equals(r[1])) return job;
+            if (r[0].equals("P")) {
+                job.pass = Integer.parseInt(r[2]);
+                job.members = r[3].isEmpty() ? Collections.emptyList() : Arrays.asList(r[3].split(","));
+                job.carried = longs(r[4]);
+                job.progress.clear();
+                for (String id : job.members) job.progress.put(id, job.fresh());
+            } else if (r[0].equals("C")) {
+                long[] at = job.fresh();
+                at[0] = Long.parseLong(r[3]);
+                at[1] = Long.parseLong(r[4]);
+                System.arraycopy(longs(r[5]), 0, at, 2, at.length - 2);
+                job.progress.put(r[2], at);
+            }
+            return job;
+        }
+
+        synchronized String start(String run, Kind kind, String arg) {
+            if (current != null) return "ERROR|LoteEnCurso|" + current.run;
+            if (workers.size() == 0) return "ERROR|NoWorkers";
+            Job job = unfinished != null && unfinished.run.equals(run) ? unfinished : null;
+            if (job != null && job.kind != kind) return "ERROR|LoteDistinto|" + job.kind;
+            boolean resumed = job != null;
+            try {
+                if (job == null) {
+                    // a different run id abandons the unfinished one
+                    job = new Job(run, kind, arg);
+                    ch.truncate(0);
+                    log("S|" + run + "|" + kind + "|" + arg);
+                }
+            } catch (IOException e) {
+                return "ERROR|LogLote|" + e.getMessage();
+            }
+            unfinished = null;
+            current = job;
+            Job started = job;
+            runner.execute(() -> execute(started));
+            return "OK|" + (resumed ? "Resumed" : "Started") + "|" + run;
+        }
+
+        synchronized String status() {
+            Job job = current;
+            if (job == null) {
+                return "OK|Idle" + (unfinished != null ? "|Unfinished:" + unfinished.run : "")
+                    + (last != null ? "|Last:" + last : "");
+            }
+            int done = 0;
+            for (long[] at : job.progress.values()) if (at[1] == 1) done++;
+            return "OK|Running|" + job.run + "|" + job.kind + "|pass=" + job.pass + "|workers=" + done + "/"
+                + job.progress.size() + "|accounts=" + job.totals()[0] + "|pauseMs=" + job.pauseMs;
+        }
+
+        private void execute(Job job) {
+            String result;
+            try {
+                result = passes(job);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = "ERROR|Interrupted";
+            } catch (IOException e) {
+                result = "ERROR|LogLote|" + e.getMessage();
+            }
+            System.out.println("Loan batch " + job.run + ": " + result);
+            synchronized (this) {
+                current = null;
+                last = result.startsWith("OK|") ? result.substring(3) : result;
+                if (result.startsWith("OK|")) {
+                    try {
+                        ch.truncate(0);
+                    } catch (IOException e) {
+                        System.err.println("Could not clear " + BATCH_LOG + ": " + e.getMessage());
+                    }
+                } else {
+                    unfinished = job; // its checkpoints stay in the log
+                }
+            }
+        }
+
+        private String passes(Job job) throws IOException, InterruptedException {
+            for (int attempt = 0; attempt < PASSES; attempt++) {
+                while (migration != null) Thread.sleep(100);
+                Partitioner placement = partitioner;
+                List<String> members = new ArrayList<>();
+                for (WorkerInfo w : placement.members()) members.add(w.id);
+                if (members.isEmpty()) return "ERROR|NoWorkers";
+                Collections.sort(members); // registration order does not matter, only who is there
+                if (!members.equals(job.members)) newPass(job, members);
+                List<CompletableFuture<Boolean>> loops = new ArrayList<>();
+                for (WorkerInfo w : placement.members()) {
+                    loops.add(CompletableFuture.supplyAsync(() -> walk(job, placement, w), pool));
+                }
+                boolean complete = true;
+                for (CompletableFuture<Boolean> loop : loops) complete &= loop.join();
+                if (complete) return job.result();
+            }
+            return "ERROR|LoteIncompleto|" + job.run + "|Pass:" + job.pass;
+        }
+
+        // accounts moved: the old cursors mean nothing on the new owners
+        private void newPass(Job job, List<String> members) throws IOException {
+            long[] carried = new long[job.width()];
+            if (job.kind == Kind.INTERES) {
+                carried = job.totals();
+                carried[0] = 0; // every account is counted again by the new pass
+            }
+            job.pass++;
+            job.members = members;
+            job.carried = carried;
+            job.progress.clear();
+            for (String id : members) job.progress.put(id, job.fresh());
+            log("P|" + job.run + "|" + job.pass + "|" + String.join(",", members) + "|" + csv(carried));
+        }
+
+        // one worker's chunks, in id order from its checkpoint; false if it failed or placement changed
+        private boolean walk(Job job, Partitioner placement, WorkerInfo w) {
+            long[] at = job.progress.get(w.id);
+            try {
+                while (at[1] == 0) {
+                    String resp;
+                    unmanagedLeases.increment();
+                    try {
+                        // like a lease: a migration published from here on waits for this chunk before copying
+                        if (migration != null || partitioner != placement) return false;
+                        resp = sendToWorker(w, job.command(at[0]), BATCH_TIMEOUT_MS);
+                    } finally {
+                        unmanagedLeases.decrement();
+                    }
+                    if (resp.startsWith("ERROR|Busy")) {
+                        Thread.sleep(Math.max(10, job.pauseMs));
+                        continue;
+                    }
+                    if (!resp.startsWith("OK|")) {
+                        System.err.println("Loan batch " + job.run + " on " + w.id + ": " + resp);
+                        return false;
+                    }
+                    String[] f = resp.split("\\|", -1);
+                    long[] next = job.fresh();
+                    long lastId = Long.parseLong(f[1]);
+                    next[0] = lastId < 0 ? at[0] : lastId;
+                    next[1] = lastId < 0 || Long.parseLong(f[2]) < BATCH_CHUNK ? 1 : 0;
+                    boolean[] money = job.kind == Kind.INTERES ? INTEREST_MONEY : REPORT_MONEY;
+                    for (int k = 0; k < money.length; k++) {
+                        next[2 + k] = at[2 + k] + (money[k] ? toCents(Double.parseDouble(f[2 + k])) : Long.parseLong(f[2 + k]));
+                    }
+                    if (job.kind == Kind.INTERES && !f[5].isEmpty()) {
+                        for (String charged : f[5].split(",")) {
+                            String[] idInterest = charged.split(":");
+                            int id = Integer.parseInt(idInterest[0]);
+                            accountWritten(id);
+                            changeFeed.publish("INTERES", id, toCents(Double.parseDouble(idInterest[1])), job.run);
+                        }
+                    }
+                    log("C|" + job.run + "|" + w.id + "|" + next[0] + "|" + next[1] + "|" + csv(Arrays.copyOfRange(next, 2, next.length)));
+                    job.progress.put(w.id, next);
+                    at = next;
+                    throttle(job);
+                }
+                return true;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Loan batch " + job.run + " on " + w.id + ": " + e.getMessage());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        // back off while interactive commands miss the SLO, creep back once they meet it; racy updates are fine
+        private static void throttle(Job job) throws InterruptedException {
+            long pause = job.pauseMs;
+            pause = admission.interactiveMs() > BATCH_SLO_MS ? Math.min(BATCH_MAX_PAUSE_MS, Math.max(10, pause * 2)) : pause / 2;
+            job.pauseMs = pause;
+            if (pause > 0) Thread.sleep(pause);
+        }
+
+        // one checkpoint record, on disk before the next chunk is asked for
+        private synchronized void log(String record) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(TxLog.frame(record));
+            while (b.hasRemaining()) ch.write(b);
+            ch.force(false);
+        }
+
+        private static String csv(long[] values) {
+            StringBuilder sb = new StringBuilder();
+            for (long v : values) sb.append(sb.length() > 0 ? "," : "").append(v);
+            return sb.toString();
+        }
+
+        private static long[] longs(String csv) {
+            if (csv.isEmpty()) return new long[0];
+            String[] f = csv.split(",");
+            long[] values = new long[f.length];
+            for (int i = 0; i < f.length; i++) values[i] = Long.parseLong(f[i]);
+            return values;
+        }
+
+        private static final class Job {
+            final String run;
+            final Kind kind;
+            final String arg; // rate % for INTERES, cutoff date for REPORTE
+            volatile int pass;
+            volatile long pauseMs;
+            List<String> members = Collections.emptyList();
+            long[] carried;
+            // worker id -> [last id done, 1 when done, totals...]
+            final Map<String, long[]> progress = new ConcurrentHashMap<>();
+
+            Job(String run, Kind kind, String arg) {
+                this.run = run; this.kind = kind; this.arg = arg;
+                carried = new long[width()];
+            }
+
+            int width() {
+                return kind == Kind.INTERES ? INTEREST_MONEY.length : REPORT_MONEY.length;
+            }
+
+            long[] fresh() {
+                long[] at = new long[2 + width()];
+                at[0] = -1;
+                return at;
+            }
+
+            String command(long after) {
+                return kind == Kind.INTERES
+                    ? "ACCRUE_INTEREST|" + run + "|" + arg + "|" + after + "|" + BATCH_CHUNK
+                    : "LOAN_REPORT|" + after + "|" + BATCH_CHUNK + "|" + arg;
+            }
+
+            long[] totals() {
+                long[] t = carried.clone();
+                for (long[] at : progress.values()) {
+                    for (int k = 0; k < t.length; k++) t[k] += at[2 + k];
+                }
+                return t;
+            }
+
+            String result() {
+                long[] t = totals();
+                String tail = "|Workers:" + progress.size() + "|Pass:" + pass;
+                if (kind == Kind.INTERES) {
+                    return "OK|Intereses:" + run + "|Tasa:" + arg + "|Cuentas:" + t[0] + "|Prestamos:" + t[1]
+                        + "|Interes:" + amount(t[2]) + tail;
+                }
+                return "OK|Reporte:" + run + "|Corte:" + arg + "|Cuentas:" + t[0] + "|Activos:" + t[1] + "|Cancelados:" + t[2]
+                    + "|MontoTotal:" + amount(t[3]) + "|Pendiente:" + amount(t[4]) + "|Pagado:" + amount(t[3] - t[4])
+                    + "|Morosos:" + t[5] + "|PendienteMoroso:" + amount(t[6]) + tail;
+            }
+        }
+    }
+
+    // Change stream for SUBSCRIBE. Writes routed through this server publish what they committed
+    // (each side of a transfer, new loans, payments, interest) as numbered events. A write takes a
+    // ticket for each account as it starts, while it owns the account's lock stripe and so in the
+    // order the account's worker commits it, and an account's events enter the stream in ticket
+    // order whenever they are published; one that comes early waits for the tickets before it.
+    // Interest, charged a chunk of accounts at a time outside their locks, takes no ticket. The last
+    // `retain` events stay in a ring, so a subscriber can resume from any retained offset.
+    // Subscribers pull from the ring on the shared pool and publishing never waits for them. One with
+    // more than `buffer` of its own events not yet taken is told ERROR|SlowConsumer with the offset to
+    // resume from and disconnected, or with drop=true skips to the newest event after a GAP line.
+    static class ChangeFeed {
+        private static final int SCAN = 1024; // ring slots a subscriber looks at per pass
+
+        final long epoch = System.currentTimeMillis();
+        private final String[] lines;
+        private final int[] accounts;
+        private final int buffer;
+        private final boolean drop;
+        private volatile long head = 1; // offset of the next event; written under this
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private final LongAdder published = new LongAdder(), gaps = new LongAdder(), slow = new LongAdder();
+        // accounts with tickets not yet published or skipped; guarded by this
+        private final Map<Integer, Order> orders = new HashMap<>();
+
+        ChangeFeed(int retain, int buffer, boolean drop) {
+            lines = new String[Math.max(1, retain)];
+            accounts = new int[lines.length];
+            this.buffer = Math.max(1, Math.min(buffer, lines.length));
+            this.drop = drop;
+        }
+
+        // the account's next place in line; taken by a write that owns the account's lock
+        synchronized Ticket ticket(int account) {
+            return new Ticket(account, orders.computeIfAbsent(account, a -> new Order()).taken++);
+        }
+
+        // EV|offset|ms|type|account|amount|ref, ref being the other account, a loan id or a run id
+        void publish(String type, int account, long cents, String ref) {
+            synchronized (this) {
+                append(type, account, cents, ref);
+            }
+            notifySubscribers();
+        }
+
+        private void notifySubscribers() {
+            for (Subscriber s : subscribers) s.published();
+        }
+
+        // under this
+        private void append(String type, int account, long cents, String ref) {
+            long offset = head;
+            int slot = (int) (offset % lines.length);
+            lines[slot] = "EV|" + offset + "|" + System.currentTimeMillis() + "|" + type + "|" + account + "|" + amount(cents) + "|" + ref;
+            accounts[slot] = account;
+            head = offset + 1;
+            for (Subscriber s : subscribers) {
+                if (s.matches(account) && ++s.backlog > buffer) s.overflow = true;
+            }
+            published.increment();
+        }
+
+        // a ticket's events (none when its write failed); they and any held behind them go out once
+        // every earlier ticket of the account is done
+        private void done(Ticket t, List<Event> events) {
+            boolean appended = false;
+            synchronized (this) {
+                Order o = orders.get(t.account);
+                if (t.number != o.next) {
+                    o.held.put(t.number, events);
+                    return;
+                }
+                while (true) {
+                    for (Event e : events) {
+                        append(e.type, t.account, e.cents, e.ref);
+                        appended = true;
+                    }
+                    o.next++;
+                    events = o.held.remove(o.next);
+                    if (events == null) break;
+                }
+                if (o.next == o.taken) orders.remove(t.account);
+            }
+            if (appended) notifySubscribers();
+        }
+
+        private static final class Order {
+            long taken, next;
+            final Map<Long, List<Event>> held = new HashMap<>();
+        }
+
+        private static final class Event {
+            final String type, ref;
+            final long cents;
+
+            Event(String type, long cents, String ref) {
+                this.type = type; this.cents = cents; this.ref = ref;
+            }
+        }
+
+        // one account's place among its writes' events; done exactly once, with or without events
+        final class Ticket {
+            private final int account;
+            private final long number;
+            private final List<Event> events = new ArrayList<>(1);
+            private boolean done;
+
+            Ticket(int account, long number) {
+                this.account = account; this.number = number;
+            }
+
+            Ticket add(String type, long cents, String ref) {
+                events.add(new Event(type, cents, ref));
+                return this;
+            }
+
+            void done() {
+                if (done) return;
+                done = true;
+                ChangeFeed.this.done(this, events);
+            }
+        }
+
+        long oldest() {
+            return Math.max(1, head - lines.length);
+        }
+
+        // from: an offset, 0 for the oldest retained event or -1 for the next one. Registered but idle
+        // until start(), so the caller's reply goes out first; null if from is no longer retained
+        synchronized Subscriber subscribe(long from, int[][] ranges, Consumer<List<String>> sink, Runnable disconnect) {
+            long position = from < 0 ? head : from == 0 ? oldest() : Math.min(from, head);
+            if (position < oldest()) return null;
+            Subscriber s = new Subscriber(position, ranges, sink, disconnect);
+            subscribers.add(s);
+            return s;
+        }
+
+        String describe() {
+            return "cdc|epoch=" + epoch + "|head=" + head + "|oldest=" + oldest() + "|subscribers=" + subscribers.size()
+                + "|published=" + published.sum() + "|policy=" + (drop ? "drop" : "disconnect") + "|buffer=" + buffer
+                + "|gaps=" + gaps.sum() + "|slowConsumers=" + slow.sum();
+        }
+
+        // "1-100,250,300-400"; "*" or empty is every account
+        static int[][] parseRanges(String spec) {
+            if (spec.isEmpty() || spec.equals("*")) return null;
+            String[] parts = spec.split(",");
+            int[][] ranges = new int[parts.length][];
+            for (int i = 0; i < parts.length; i++) {
+                int dash = parts[i].indexOf('-', 1);
+                int lo = Integer.parseInt(dash < 0 ? parts[i] : parts[i].substring(0, dash));
+                int hi = dash < 0 ? lo : Integer.parseInt(parts[i].substring(dash + 1));
+                ranges[i] = new int[] { lo, hi };
+            }
+            return ranges;
+        }
+
+        final class Subscriber {
+            private final int[][] ranges; // null: every account
+            private final Consumer<List<String>> sink;
+            private final Runnable disconnect;
+            private final long live; // events from here on count against the buffer; older ones are replay
+            private long backlog; // matching live events published but not yet taken; under the feed lock
+            private volatile boolean overflow;
+            private volatile long position; // next offset to send; advanced by the draining task only
+            private final AtomicBoolean scheduled = new AtomicBoolean(true);
+            private final AtomicBoolean cancelled = new AtomicBoolean();
+
+            Subscriber(long position, int[][] ranges, Consumer<List<String>> sink, Runnable disconnect) {
+                this.position = position; this.ranges = ranges; this.sink = sink; this.disconnect = disconnect;
+                this.live = head;
+            }
+
+            long position() {
+                return position;
+            }
+
+            void start() {
+                pool.execute(this::drain);
+            }
+
+            // true for the call that actually cancelled it
+            boolean cancel() {
+                if (!cancelled.compareAndSet(false, true)) return false;
+                subscribers.remove(this);
+                return true;
+            }
+
+            // a sink stuck on a consumer that stopped reading never gets to see its own overflow
+            private void published() {
+                if (!drop && overflow) {
+                    kill();
+                    return;
+                }
+                if (scheduled.compareAndSet(false, true)) pool.execute(this::drain);
+            }
+
+            private void kill() {
+                if (!cancel()) return;
+                slow.increment();
+                disconnect.run();
+            }
+
+            private boolean matches(int account) {
+                if (ranges == null) return true;
+                for (int[] r : ranges) {
+                    if (account >= r[0] && account <= r[1]) return true;
+                }
+                return false;
+            }
+
+            private void drain() {
+                while (!cancelled.get()) {
+                    List<String> out = new ArrayList<>();
+                    boolean tooSlow = false;
+                    long next;
+                    synchronized (ChangeFeed.this) {
+                        next = position;
+                        if (overflow || next < oldest()) {
+                            if (drop) {
+                                gaps.increment();
+                                out.add("GAP|" + next + "|" + (head - 1));
+                                next = head;
+                                backlog = 0;
+                                overflow = false;
+                            } else {
+                                tooSlow = true;
+                                out.add("ERROR|SlowConsumer|Offset:" + next);
+                            }
+                        }
+                        for (int scanned = 0; !tooSlow && next < head && scanned < SCAN; scanned++, next++) {
+                            int slot = (int) (next % lines.length);
+                            if (!matches(accounts[slot])) continue;
+                            out.add(lines[slot]);
+                            if (next >= live) backlog--;
+                        }
+                    }
+                    if (tooSlow) {
+                        if (!cancel()) return;
+                        slow.increment();
+                        sink.accept(out);
+                        disconnect.run();
+                        return;
+                    }
+                    if (!out.isEmpty()) sink.accept(out);
+                    position = next;
+                    if (next < head) continue;
+                    scheduled.set(false);
+                    // an event published after the check above found nothing scheduled
+                    if (head == next || !scheduled.compareAndSet(false, true)) return;
+                }
+            }
+        }
+    }
+
+    // Primary/backup copies. Writes still go to the primary only; once it acknowledges one, the
+    // account's full state is shipped (EXPORT_ACCOUNT, then REPLICA_PUT on each backup) tagged with a
+    // version. A backup serves reads only while it holds the latest version the primary acknowledged,
+    // so a read never sees a state older than a write that already completed. Backups keep replicas
+    // apart from their own accounts: ARQUEO, LIST_ACCOUNTS and migrations never see them.
+    static class Replicator {
+        private static final long TIMEOUT_MS = 5000;
+        private final int factor;
+        // versions only grow, across restarts too, so a backup can drop a put older than its copy
+        private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+        // replaced on every membership change; ships still running for an old epoch are ignored
+        private volatile Map<Integer, Replica> state = new ConcurrentHashMap<>();
+        private final LongAdder shipped = new LongAdder();
+        private final LongAdder backupReads = new LongAdder();
+        private final LongAdder primaryReads = new LongAdder();
+        private final LongAdder failovers = new LongAdder();
+
+        Replicator(int factor) {
+            this.factor = factor;
+        }
+
+        void reset() {
+            state = new ConcurrentHashMap<>();
+        }
+
+        void written(int accountId) {
+            if (factor < 2) return;
+            Map<Integer, Replica> epoch = state;
+            Replica r = epoch.computeIfAbsent(accountId, k -> new Replica());
+            boolean start;
+            synchronized (r) {
+                r.version = versions.incrementAndGet();
+                start = !r.shipping;
+                r.shipping = true;
+            }
+            if (start) ship(accountId, r, epoch);
+        }
+
+        // a backup holding the latest version, picked among those and the primary; null means read
+        // from the primary
+        WorkerInfo backupFor(int accountId, WorkerInfo primary) {
+            WorkerInfo w = pick(accountId, primary, null);
+            if (w == null) primaryReads.increment();
+            else backupReads.increment();
+            return w;
+        }
+
+        // another current copy to read once the primary (and the backup already tried) did not answer
+        WorkerInfo failoverFor(int accountId, WorkerInfo primary, WorkerInfo tried) {
+            // the primary holds no replica version, so passing null leaves it out
+            WorkerInfo w = pick(accountId, null, tried == null ? primary : tried);
+            if (w != null) failovers.increment();
+            return w;
+        }
+
+        // two random candidates among the available current copies, the one answering pings faster
+        // wins; null stands for the primary (or no copy at all)
+        private WorkerInfo pick(int accountId, WorkerInfo primary, WorkerInfo exclude) {
+            if (factor < 2 || migration != null) return null;
+            Replica r = state.get(accountId);
+            if (r == null) return null;
+            List<WorkerInfo> current = new ArrayList<>(factor);
+            for (WorkerInfo w : replicasForAccount(accountId)) {
+                if (w == exclude || w.isClosed() || !w.health.available()) continue;
+                if (w == primary || r.caughtUp(w)) current.add(w);
+            }
+            if (current.isEmpty()) return null;
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            WorkerInfo a = current.get(rnd.nextInt(current.size()));
+            WorkerInfo b = current.get(rnd.nextInt(current.size()));
+            WorkerInfo w = b.health.latencyMs() < a.health.latencyMs() ? b : a;
+            return w == primary ? null : w;
+        }
+
+        private void ship(int accountId, Replica r, Map<Integer, Replica> epoch) {
+            long v;
+            synchronized (r) {
+                v = r.version;
+            }
+            List<WorkerInfo> set = replicasForAccount(accountId);
+            if (set.size() < 2) {
+                finish(accountId, r, v, epoch, true);
+                return;
+            }
+            sendToWorkerAsync(set.get(0), "EXPORT_ACCOUNT|" + accountId, TIMEOUT_MS).thenCompose(resp -> {
+                if ("ERROR|NoExiste".equals(resp)) {
+                    epoch.remove(accountId, r);
+                    return CompletableFuture.completedFuture(true);
+                }
+                // ERROR|Reservada: a transfer is half way, retried once it settles
+                if (resp == null || !resp.startsWith("OK|")) return CompletableFuture.completedFuture(false);
+                String put = "REPLICA_PUT|" + v + "|" + resp.substring(3);
+                List<CompletableFuture<Boolean>> puts = new ArrayList<>();
+                for (WorkerInfo b : set.subList(1, set.size())) {
+                    puts.add(sendToWorkerAsync(b, put, TIMEOUT_MS).exceptionally(e -> null).thenApply(ok -> {
+                        if (!"OK".equals(ok)) return false;
+                        r.applied(b, v);
+                        shipped.increment();
+                        return true;
+                    }));
+                }
+                return CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(x -> puts.stream().allMatch(CompletableFuture::join));
+            }).whenComplete((ok, e) -> finish(accountId, r, v, epoch, Boolean.TRUE.equals(ok)));
+        }
+
+        // ships again if a write landed meanwhile; a failed ship is retried shortly while its epoch lasts
+        private void finish(int accountId, Replica r, long shippedVersion, Map<Integer, Replica> epoch, boolean ok) {
+            boolean again;
+            synchronized (r) {
+                again = r.version > shippedVersion;
+                if (!again && ok) r.shipping = false;
+            }
+            if (again) {
+                ship(accountId, r, epoch);
+            } else if (!ok) {
+                timer.schedule(() -> {
+                    if (state == epoch && epoch.get(accountId) == r) ship(accountId, r, epoch);
+                    else synchronized (r) { r.shipping = false; }
+                }, 1, TimeUnit.SECONDS);
+            }
+        }
+
+        // copies every account to its current backups, paced like a migration; runs on the rebalancer
+        // thread after each membership change. A page of accounts sharing the same backups travels in
+        // one EXPORT_ACCOUNTS / REPLICA_PUT_BATCH pair instead of a round trip per account.
+        void resync() {
+            if (factor < 2 || migration != null) return; // a later resync follows that migration
+            Map<Integer, Replica> epoch = state;
+            Partitioner placement = partitioner;
+            long pause = TimeUnit.SECONDS.toNanos(1) / Math.max(1, REBALANCE_RATE);
+            int marked = 0;
+            for (WorkerInfo w : placement.members()) {
+                int after = 0;
+                while (state == epoch && !w.isClosed()) {
+                    String resp;
+                    try {
+                        resp = sendToWorker(w, "LIST_ACCOUNTS|" + after + "|" + Migration.PAGE, 10000);
+                    } catch (IOException e) {
+                        break;
+                    }
+                    if (resp == null || !resp.startsWith("OK|") || resp.length() == 3) break;
+                    Map<List<WorkerInfo>, List<Integer>> byBackups = new LinkedHashMap<>();
+                    for (String id : resp.substring(3).split(",")) {
+                        int accountId = Integer.parseInt(id);
+                        after = Math.max(after, accountId);
+                        if (placement.ownerOf(accountId) != w) continue;
+                        List<WorkerInfo> set = replicasForAccount(accountId);
+                        if (set.size() < 2 || set.get(0) != w) continue;
+                        byBackups.computeIfAbsent(new ArrayList<>(set.subList(1, set.size())), k -> new ArrayList<>()).add(accountId);
+                    }
+                    for (Map.Entry<List<WorkerInfo>, List<Integer>> e : byBackups.entrySet()) {
+                        if (state != epoch) break;
+                        marked += shipPage(w, e.getKey(), e.getValue(), epoch);
+                        LockSupport.parkNanos(pause * e.getValue().size());
+                    }
+                }
+            }
+            if (marked > 0) System.out.println("Replication: resynced " + marked + " accounts, factor " + factor);
+        }
+
+        // ships a page of one primary's accounts to the backups they share; whatever the batch does
+        // not cover (a worker without the batch commands, an account with a 2PC hold, a failed put)
+        // falls back to ship(), one account at a time
+        private int shipPage(WorkerInfo primary, List<WorkerInfo> backups, List<Integer> ids, Map<Integer, Replica> epoch) {
+            long v = versions.incrementAndGet();
+            Map<Integer, Replica> page = new LinkedHashMap<>();
+            for (int accountId : ids) {
+                Replica r = epoch.computeIfAbsent(accountId, k -> new Replica());
+                synchronized (r) {
+                    // a ship under way covers it already; a newer version was shipped since v was taken
+                    if (r.shipping || r.version > v) continue;
+                    r.version = v;
+                    r.shipping = true;
+                }
+                page.put(accountId, r);
+            }
+            if (page.isEmpty()) return 0;
+            StringBuilder csv = new StringBuilder();
+            for (int accountId : page.keySet()) {
+                if (csv.length() > 0) csv.append(',');
+                csv.append(accountId);
+            }
+            Set<Integer> exported = new HashSet<>();
+            boolean ok = false;
+            try {
+                String resp = sendToWorker(primary, "EXPORT_ACCOUNTS|" + csv, 10000);
+                int bar = resp == null || !resp.startsWith("OK|") ? -1 : resp.indexOf('|', 3);
+                if (bar > 0) {
+                    for (String id : resp.substring(3, bar).split(",")) {
+                        if (!id.isEmpty()) exported.add(Integer.parseInt(id));
+                    }
+                    String put = "REPLICA_PUT_BATCH|" + v + "|" + resp.substring(bar + 1);
+                    ok = true;
+                    for (WorkerInfo b : backups) ok &= "OK".equals(sendToWorker(b, put, 10000));
+                }
+            } catch (IOException | RuntimeException e) {
+                ok = false;
+            }
+            for (Map.Entry<Integer, Replica> e : page.entrySet()) {
+                int accountId = e.getKey();
+                Replica r = e.getValue();
+                if (ok && exported.contains(accountId)) {
+                    for (WorkerInfo b : backups) r.applied(b, v);
+                    shipped.add(backups.size());
+                    finish(accountId, r, v, epoch, true);
+                } else {
+                    ship(accountId, r, epoch);
+                }
+            }
+            return page.size();
+        }
+
+        String describe() {
+            int lagging = 0;
+            Map<Integer, Replica> epoch = state;
+            for (Replica r : epoch.values()) {
+                synchronized (r) {
+                    if (r.shipping) lagging++;
+                }
+            }
+            return "factor=" + factor + "|tracked=" + epoch.size() + "|lagging=" + lagging + "|shipped=" + shipped.sum()
+                + "|primaryReads=" + primaryReads.sum() + "|backupReads=" + backupReads.sum() + "|failovers=" + failovers.sum();
+        }
+
+        String describe(int accountId) {
+            List<WorkerInfo> set = replicasForAccount(accountId);
+            if (set.isEmpty()) return "ERROR|NoWorkers";
+            Replica r = state.get(accountId);
+            StringBuilder sb = new StringBuilder("OK|" + accountId + "|" + set.get(0).id);
+            for (WorkerInfo b : set.subList(1, set.size())) {
+                sb.append('|').append(b.id).append(r != null && r.caughtUp(b) ? ":ok" : ":lag");
+            }
+            return sb.toString();
+        }
+
+        static final class Replica {
+            long version;     // latest write the primary acknowledged
+            boolean shipping; // a ship is running or scheduled
+            private final Map<WorkerInfo, Long> applied = new HashMap<>(4);
+
+            synchronized void applied(WorkerInfo backup, long v) {
+                applied.merge(backup, v, Math::max);
+            }
+
+            synchronized boolean caughtUp(WorkerInfo backup) {
+                Long v = applied.get(backup);
+                return v != null && v >= version;
+            }
+        }
+    }
+
+    // account placement strategy; implementations are immutable snapshots of the membership
+    interface Partitioner {
+        // null when there are no workers
+        WorkerInfo ownerOf(int accountId);
+        // the owner followed by the next distinct workers of the placement, at most n in total
+        List<WorkerInfo> replicasFor(int accountId, int n);
+        // key of the range (ring arc or modulo bucket) an account falls in; ranges cut over as a unit
+        long rangeOf(int accountId);
+        List<WorkerInfo> members();
+        // one-line summary for the RING admin command
+        String describe();
+    }
+
+    static class ModuloPartitioner implements Partitioner {
+        private final WorkerInfo[] members;
+        ModuloPartitioner(List<WorkerInfo> members) {
+            this.members = members.toArray(new WorkerInfo[0]);
+        }
+        public WorkerInfo ownerOf(int accountId) {
+            if (members.length == 0) return null;
+            return members[Math.floorMod(accountId, members.length)];
+        }
+        public List<WorkerInfo> replicasFor(int accountId, int n) {
+            List<WorkerInfo> set = new ArrayList<>(n);
+            int first = Math.floorMod(accountId, Math.max(1, members.length));
+            for (int k = 0; k < Math.min(n, members.length); k++) set.add(members[(first + k) % members.length]);
+            return set;
+        }
+        public long rangeOf(int accountId) {
+            return members.length == 0 ? 0 : Math.floorMod(accountId, members.length);
+        }
+        public List<WorkerInfo> members() {
+            return Arrays.asList(members);
+        }
+        public String describe() {
+            StringBuilder sb = new StringBuilder("modulo");
+            for (WorkerInfo w : members) sb.append('|').append(w.id);
+            return sb.toString();
+        }
+    }
+
+    // Consistent hashing: each worker owns weight*vnodes points on a 64-bit ring and an account
+    // belongs to the first point at or after its hash, so a join or leave only moves the
+    // accounts on the arcs that worker gains or loses (about 1/N of them).
+    static class HashRing implements Partitioner {
+        private final long[] points;        // sorted
+        private final WorkerInfo[] owners;  // owners[i] owns the arc ending at points[i]
+        private final List<WorkerInfo> members;
+
+        HashRing(List<WorkerInfo> members, int vnodes) {
+            this.members = new ArrayList<>(members);
+            TreeMap<Long, WorkerInfo> ring = new TreeMap<>();
+            for (WorkerInfo w : members) {
+                for (int v = 0; v < vnodes * w.weight; v++) {
+                    ring.putIfAbsent(hash(w.id + "#" + v), w);
+                }
+            }
+            points = new long[ring.size()];
+            owners = new WorkerInfo[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, WorkerInfo> e : ring.entrySet()) {
+                points[i] = e.getKey();
+                owners[i++] = e.getValue();
+            }
+        }
+
+        public WorkerInfo ownerOf(int accountId) {
+            if (points.length == 0) return null;
+            return owners[indexOf(accountId)];
+        }
+
+        // walks the ring clockwise from the owner's point, skipping vnodes of workers already taken
+        public List<WorkerInfo> replicasFor(int accountId, int n) {
+            List<WorkerInfo> set = new ArrayList<>(n);
+            if (points.length == 0) return set;
+            int want = Math.min(n, members.size());
+            int start = indexOf(accountId);
+            for (int k = 0; k < points.length && set.size() < want; k++) {
+                WorkerInfo w = owners[(start + k) % points.length];
+                if (!set.contains(w)) set.add(w);
+            }
+            return set;
+        }
+
+        public long rangeOf(int accountId) {
+            return points.length == 0 ? 0 : points[indexOf(accountId)];
+        }
+
+        public List<WorkerInfo> members() {
+            return members;
+        }
+
+        private int indexOf(int accountId) {
+            int i = Arrays.binarySearch(points, mix(accountId));
+            if (i < 0) i = -i - 1;
+            return i == points.length ? 0 : i;
+        }
+
+        public String describe() {
+            Map<WorkerInfo, Double> share = new LinkedHashMap<>();
+            Map<WorkerInfo, Integer> vnodes = new LinkedHashMap<>();
+            for (WorkerInfo w : members) { share.put(w, 0.0); vnodes.put(w, 0); }
+            for (int i = 0; i < points.length; i++) {
+                long prev = points[i == 0 ? points.length - 1 : i - 1];
+                long arc = points[i] - prev; // unsigned distance, wraps correctly
+                double len = arc >= 0 ? arc : arc + 0x1p64;
+                if (points.length == 1) len = 0x1p64;
+                share.merge(owners[i], len / 0x1p64, Double::sum);
+                vnodes.merge(owners[i], 1, Integer::sum);
+            }
+            StringBuilder sb = new StringBuilder("ring|vnodes=" + points.length);
+            for (WorkerInfo w : members) {
+                sb.append('|').append(w.id).append(':').append(vnodes.get(w)).append(':')
+                  .append(String.format(Locale.ROOT, "%.1f%%", share.get(w) * 100));
+            }
+            return sb.toString();
+        }
+
+        static long hash(String key) {
+            long h = 0xcbf29ce484222325L; // FNV-1a, then mixed
+            for (int i = 0; i < key.length(); i++) {
+                h ^= key.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return mix(h);
+        }
+
+        // murmur3 finalizer
+        static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+    // pins the routing of one account for the duration of a request
+    static final class Lease {
+        final WorkerInfo owner;
+        private final RangeGate gate;
+        private boolean released;
+        Lease(WorkerInfo owner, RangeGate gate) {
+            this.owner = owner; this.gate = gate;
+        }
+        // may be called from any thread, more than once
+        synchronized void release() {
+            if (released) return;
+            released = true;
+            if (gate != null) gate.exit();
+            else unmanagedLeases.decrement();
+        }
+    }
+
+    // admission to a range under migration: requests enter freely until the rebalancer freezes the
+    // range, which waits for in-flight requests to leave and holds new ones until it thaws
+    static class RangeGate {
+        private int inflight;
+        private boolean frozen;
+
+        synchronized boolean enter(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (frozen) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            inflight++;
+            return true;
+        }
+
+        synchronized void exit() {
+            if (--inflight == 0) notifyAll();
+        }
+
+        synchronized void freeze() throws InterruptedException {
+            frozen = true;
+            while (inflight > 0) wait();
+        }
+
+        synchronized void thaw() {
+            frozen = false;
+            notifyAll();
+        }
+    }
+
+    // Moves accounts whose owner differs between two placements. Each range of the target
+    // placement is pre-copied while still served by its old owner, then frozen, topped up with
+    // whatever was written during the pre-copy, and cut over; the old copies are deleted last.
+    static class Migration implements Partitioner {
+        private static final int PAGE = 1000;
+
+        final Partitioner from, to;
+        // ranges still served by their old owner; null while the plan is being built (all of them)
+        private volatile Set<Long> pending;
+        // taken by writers while they record a write and pick its owner, and exclusively to publish the plan
+        private final ReentrantReadWriteLock planLock = new ReentrantReadWriteLock();
+        private final Set<Long> done = ConcurrentHashMap.newKeySet();
+        private final Map<Long, RangeGate> gates = new ConcurrentHashMap<>();
+        private final Map<Long, Set<Integer>> written = new ConcurrentHashMap<>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile boolean cancelled;
+        private volatile int rangesTotal;
+        private final AtomicInteger rangesDone = new AtomicInteger();
+        private final AtomicLong accountsCopied = new AtomicLong();
+        // accounts whose owner left, rebuilt from a backup copy (REPLICA_EXPORT) instead of moved
+        private final Set<Integer> promoted = ConcurrentHashMap.newKeySet();
+        private long nextCopyNanos = System.nanoTime();
+
+        Migration(Partitioner from, Partitioner to) {
+            this.from = from; this.to = to;
+        }
+
+        public WorkerInfo ownerOf(int accountId) {
+            WorkerInfo dst = to.ownerOf(accountId);
+            WorkerInfo src = from.ownerOf(accountId);
+            if (src == null || src == dst || src.isClosed()) return dst;
+            Set<Long> p = pending;
+            long range = to.rangeOf(accountId);
+            if (p == null || (p.contains(range) && !done.contains(range))) return src;
+            return dst;
+        }
+
+        // records a write and routes it atomically with respect to publishing the plan, so an
+        // account created on its old owner while planning is always part of some pending range
+        WorkerInfo routeWrite(long range, int accountId) {
+            planLock.readLock().lock();
+            try {
+                noteWrite(range, accountId);
+                return ownerOf(accountId);
+            } finally {
+                planLock.readLock().unlock();
+            }
+        }
+
+        // whoever serves the account right now, then the backups of the target placement
+        public List<WorkerInfo> replicasFor(int accountId, int n) {
+            List<WorkerInfo> set = new ArrayList<>(n);
+            WorkerInfo owner = ownerOf(accountId);
+            if (owner != null) set.add(owner);
+            for (WorkerInfo w : to.replicasFor(accountId, n)) {
+                if (set.size() < n && !set.contains(w)) set.add(w);
+            }
+            return set;
+        }
+        public long rangeOf(int accountId) { return to.rangeOf(accountId); }
+        public List<WorkerInfo> members() { return to.members(); }
+        public String describe() { return to.describe(); }
+
+        RangeGate gate(long range) {
+            return gates.computeIfAbsent(range, r -> new RangeGate());
+        }
+
+        void noteWrite(long range, int accountId) {
+            if (!done.contains(range)) written.computeIfAbsent(range, r -> ConcurrentHashMap.newKeySet()).add(accountId);
+        }
+
+        // blocks until the range being copied has been cut over or restored
+        void cancel() {
+            cancelled = true;
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        String status() {
+            return rangesDone.get() + "/" + rangesTotal + "|Copied:" + accountsCopied.get();
+        }
+
+        void run() {
+            try {
+                // requests routed before this migration was published must not race the copy
+                while (unmanagedLeases.sum() > 0 && !cancelled) Thread.sleep(1);
+                Map<Long, Map<Integer, WorkerInfo>> plan = plan();
+                planLock.writeLock().lock();
+                try {
+                    // ranges written while listing may hold accounts the listing missed
+                    for (Long range : written.keySet()) plan.computeIfAbsent(range, r -> new HashMap<>());
+                    pending = new HashSet<>(plan.keySet());
+                } finally {
+                    planLock.writeLock().unlock();
+                }
+                rangesTotal = plan.size();
+                System.out.println("Rebalance started: " + rangesTotal + " ranges to move");
+                while (!plan.isEmpty() && !cancelled) {
+                    Iterator<Map.Entry<Long, Map<Integer, WorkerInfo>>> it = plan.entrySet().iterator();
+                    while (it.hasNext() && !cancelled) {
+                        Map.Entry<Long, Map<Integer, WorkerInfo>> e = it.next();
+                        if (moveRange(e.getKey(), e.getValue())) {
+                            it.remove();
+                            rangesDone.incrementAndGet();
+                        }
+                    }
+                    if (!plan.isEmpty() && !cancelled) Thread.sleep(1000); // a copy failed; retry
+                }
+                System.out.println("Rebalance " + (cancelled ? "superseded" : "finished") + ": " + status());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("Rebalance error: " + e.getMessage());
+            } finally {
+                // count down first: cancel() waits on this latch while holding membershipLock
+                finished.countDown();
+                synchronized (membershipLock) {
+                    if (migration == this && !cancelled) migration = null;
+                }
+            }
+        }
+
+        // accounts that change owner, grouped by target range: range -> (account -> current holder)
+        private Map<Long, Map<Integer, WorkerInfo>> plan() throws IOException {
+            Map<Long, Map<Integer, WorkerInfo>> plan = new HashMap<>();
+            List<WorkerInfo> live;
+            synchronized (workers) {
+                live = new ArrayList<>(workers);
+            }
+            for (WorkerInfo w : live) {
+                int after = 0;
+                while (!cancelled) {
+                    String resp = sendToWorker(w, "LIST_ACCOUNTS|" + after + "|" + PAGE, 10000);
+                    if (resp == null || !resp.startsWith("OK|")) {
+                        System.err.println("Rebalance: cannot list accounts on " + w.id + ": " + resp);
+                        break;
+                    }
+                    if (resp.length() == 3) break;
+                    for (String id : resp.substring(3).split(",")) {
+                        int accountId = Integer.parseInt(id);
+                        after = Math.max(after, accountId);
+                        if (from.ownerOf(accountId) != w) continue; // not the authoritative copy
+                        if (to.ownerOf(accountId) == w) continue;
+                        plan.computeIfAbsent(to.rangeOf(accountId), r -> new HashMap<>()).put(accountId, w);
+                    }
+                }
+            }
+            if (REPLICAS > 1) planPromotions(plan, live);
+            return plan;
+        }
+
+        // backups of accounts whose owner is gone; the copy with the newest version is promoted
+        private void planPromotions(Map<Long, Map<Integer, WorkerInfo>> plan, List<WorkerInfo> live) throws IOException {
+            Map<Integer, Long> newest = new HashMap<>();
+            for (WorkerInfo w : live) {
+                int after = 0;
+                while (!cancelled) {
+                    String resp = sendToWorker(w, "LIST_REPLICAS|" + after + "|" + PAGE, 10000);
+                    if (resp == null || !resp.startsWith("OK|") || resp.length() == 3) break;
+                    for (String entry : resp.substring(3).split(",")) {
+                        int colon = entry.indexOf(':');
+                        int accountId = Integer.parseInt(entry.substring(0, colon));
+                        long version = Long.parseLong(entry.substring(colon + 1));
+                        after = Math.max(after, accountId);
+                        WorkerInfo owner = from.ownerOf(accountId);
+                        if (owner != null && !owner.isClosed()) continue; // its primary is still there
+                        Long seen = newest.get(accountId);
+                        if (seen != null && seen >= version) continue;
+                        newest.put(accountId, version);
+                        plan.computeIfAbsent(to.rangeOf(accountId), r -> new HashMap<>()).put(accountId, w);
+                    }
+                }
+            }
+            promoted.addAll(newest.keySet());
+            if (!newest.isEmpty()) System.out.println("Rebalance: promoting " + newest.size() + " backup copies of departed owners");
+        }
+
+        private boolean moveRange(long range, Map<Integer, WorkerInfo> accounts) throws InterruptedException {
+            written.computeIfAbsent(range, r -> ConcurrentHashMap.newKeySet());
+            for (Map.Entry<Integer, WorkerInfo> a : accounts.entrySet()) {
+                if (cancelled || !copy(a.getKey(), a.getValue())) return false;
+            }
+            RangeGate gate = gate(range);
+            gate.freeze();
+            try {
+                Set<Integer> dirty = written.get(range);
+                for (int accountId : dirty) {
+                    if (promoted.contains(accountId)) continue; // written on its new owner already
+                    WorkerInfo src = accounts.containsKey(accountId) ? accounts.get(accountId) : from.ownerOf(accountId);
+                    if (src == to.ownerOf(accountId)) continue;
+                    if (cancelled || !copy(accountId, src)) return false;
+                    accounts.put(accountId, src);
+                }
+                done.add(range);
+            } finally {
+                gate.thaw();
+            }
+            written.remove(range);
+            for (Map.Entry<Integer, WorkerInfo> a : accounts.entrySet()) {
+                if (promoted.contains(a.getKey())) continue; // the source was a backup copy
+                if (a.getValue() != null && !a.getValue().isClosed()) {
+                    sendToWorkerAsync(a.getValue(), "DELETE_ACCOUNT|" + a.getKey(), 5000);
+                }
+            }
+            return true;
+        }
+
+        private boolean copy(int accountId, WorkerInfo src) throws InterruptedException {
+            WorkerInfo dst = to.ownerOf(accountId);
+            if (src == null || src.isClosed()) return true; // nothing left to copy from
+            throttle();
+            try {
+                String export = promoted.contains(accountId) ? "REPLICA_EXPORT|" : "EXPORT_ACCOUNT|";
+                String state = sendToWorker(src, export + accountId, 5000);
+                if ("ERROR|NoExiste".equals(state)) return true;
+                if (state == null || !state.startsWith("OK|")) return false;
+                String resp = sendToWorker(dst, "IMPORT_ACCOUNT|" + state.substring(3), 5000);
+                if (!"OK".equals(resp)) return false;
+                accountsCopied.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void throttle() throws InterruptedException {
+            long now = System.nanoTime();
+            if (nextCopyNanos > now) TimeUnit.NANOSECONDS.sleep(nextCopyNanos - now);
+            nextCopyNanos = Math.max(now, nextCopyNanos) + TimeUnit.SECONDS.toNanos(1) / Math.max(1, REBALANCE_RATE);
+        }
+    }
+
+    static class ClientHandler implements Runnable {
+        Socket socket;
+        BufferedReader in;
+        PrintWriter out;
+        boolean isChat;
+        // pipelined commands: ordered per account, at most PIPELINE_DEPTH running at once
+        private final Sequencer sequencer = new Sequencer(new LimitedExecutor(pool, PIPELINE_DEPTH));
+        private final Semaphore window = new Semaphore(PIPELINE_WINDOW);
+        private final AtomicInteger admitted = new AtomicInteger(); // this connection's share of the admission budget
+        private Batch batch; // MULTI being collected, reader thread only
+        private volatile ChangeFeed.Subscriber subscription;
+        // closes the connection at once; set by the NIO engine for its connections
+        Runnable disconnect = () -> {
+            try { if (socket != null) socket.close(); } catch (IOException e) {}
+        };
+        ClientHandler(Socket s, BufferedReader in, PrintWriter out, boolean isChat) {
+            this.socket = s; this.in = in; this.out = out; this.isChat = isChat;
+        }
+
+        // the connection is gone
+        void closed() {
+            ChangeFeed.Subscriber s = subscription;
+            if (s != null) s.cancel();
+        }
+        public void run() {
+            try {
+                String line;
+                out.println("WELCOME|CentralServer");
+                while ((line = in.readLine()) != null) {
+                    handleLine(line);
+                }
+            } catch (Exception e) {
+                System.err.println("ClientHandler error: " + e.getMessage());
+            } finally {
+                closed();
+                try { socket.close(); } catch (IOException e) {}
+            }
+        }
+
+        // CLIENT_BANK_BIN: one length-prefixed request frame at a time, replies written as frames
+        void runBinary(InputStream is, OutputStream os) {
+            FrameWriter frames = new FrameWriter(os);
+            DataInputStream in = new DataInputStream(is);
+            ByteBuffer req = ByteBuffer.allocate(256);
+            try {
+                while (!frames.checkError()) {
+                    int len;
+                    try {
+                        len = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (len < Frames.MIN_REQUEST || len > MAX_LINE) {
+                        frames.write(Frames.error(0, (byte) 0, "FrameTooLong"));
+                        break;
+                    }
+                    if (req.capacity() < len) req = ByteBuffer.allocate(len);
+                    req.clear();
+                    in.readFully(req.array(), 0, len);
+                    req.limit(len);
+                    handleFrame(req, frames);
+                }
+            } catch (Exception e) {
+                System.err.println("ClientHandler error: " + e.getMessage());
+            } finally {
+                try { socket.close(); } catch (IOException e) {}
+            }
+        }
+
+        // binary counterpart of handleLine. Every frame is tagged, so it is dispatched like a "#tag|"
+        // line: fields are decoded here (the request buffer is reused) and the call runs concurrently
+        void handleFrame(ByteBuffer req, FrameWriter frames) {
+            int tag = req.getInt();
+            byte op = req.get();
+            requestLog.log("BIN ", Frames.name(op));
+            try {
+                if (op == Frames.OP_MULTI) {
+                    handleMultiFrame(tag, req, frames);
+                    return;
+                }
+                FrameCall call = parseFrame(tag, op, req);
+                admit(Frames.name(op), call.keys, () -> call.run(frames), busy -> {
+                    reply(frames, tag, op, busy);
+                    return null;
+                });
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                frames.begin(tag, op, Frames.ERROR).text("FormatoInvalido").send();
+            }
+        }
+
+        // OP_MULTI: int n, then n sub-requests [int len][int tag][byte op][fields]; their replies
+        // are written together, in request order, followed by the MULTI's own OK carrying n
+        private void handleMultiFrame(int tag, ByteBuffer req, FrameWriter frames) {
+            int n = req.getInt();
+            if (n < 1 || n > PIPELINE_WINDOW) throw new IllegalArgumentException("MULTI size " + n);
+            List<FrameCall> calls = new ArrayList<>(n);
+            int[] tags = new int[n];
+            for (int i = 0; i < n; i++) {
+                int len = req.getInt();
+                ByteBuffer sub = req.duplicate();
+                sub.limit(req.position() + len);
+                req.position(req.position() + len);
+                int subTag = tags[i] = sub.getInt();
+                byte subOp = sub.get();
+                calls.add(subOp == Frames.OP_MULTI ? FrameCall.error(subTag, subOp, "UnknownCommand") : parseFrame(subTag, subOp, sub));
+            }
+            List<ByteArrayOutputStream> replies = new ArrayList<>(n);
+            List<CompletableFuture<Void>> done = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                FrameCall call = calls.get(i);
+                int subTag = tags[i];
+                ByteArrayOutputStream reply = new ByteArrayOutputStream(64);
+                replies.add(reply);
+                done.add(admit(Frames.name(call.op), call.keys, () -> call.run(new FrameWriter(reply)), busy -> {
+                    reply(new FrameWriter(reply), subTag, call.op, busy);
+                    return null;
+                }));
+            }
+            CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                ByteArrayOutputStream all = new ByteArrayOutputStream();
+                for (ByteArrayOutputStream reply : replies) all.write(reply.toByteArray(), 0, reply.size());
+                new FrameWriter(all).begin(tag, Frames.OP_MULTI, Frames.OK).putInt(n).send();
+                frames.write(all.toByteArray());
+            });
+        }
+
+        private FrameCall parseFrame(int tag, byte op, ByteBuffer req) {
+            switch (op) {
+                case Frames.OP_QUERY: {
+                    int id = req.getInt();
+                    return new FrameCall(op, new int[] { id }, f -> reply(f, tag, op, queryAccount(id)));
+                }
+                case Frames.OP_TRANSFER: {
+                    int from = req.getInt(), to = req.getInt();
+                    long cents = req.getLong();
+                    return new FrameCall(op, new int[] { from, to }, f -> reply(f, tag, op, transfer(from, to, cents)));
+                }
+                case Frames.OP_LOAN_STATUS: {
+                    int id = req.getInt();
+                    return new FrameCall(op, new int[] { id }, f -> reply(f, tag, op, loanStatus(id)));
+                }
+                case Frames.OP_CREATE_LOAN: {
+                    int accountId = req.getInt();
+                    long amountCents = req.getLong(), pendingCents = req.getLong();
+                    return new FrameCall(op, new int[] { accountId }, f -> reply(f, tag, op, createLoan(accountId, amountCents, pendingCents)));
+                }
+                case Frames.OP_PAY_LOAN: {
+                    int accountId = req.getInt(), loanId = req.getInt();
+                    long cents = req.getLong();
+                    return new FrameCall(op, new int[] { accountId }, f -> reply(f, tag, op, payLoan(accountId, loanId, cents)));
+                }
+                case Frames.OP_ARQUEO: {
+                    int timeoutMs = req.getInt();
+                    byte mode = req.get();
+                    return new FrameCall(op, null, f -> {
+                        ArqueoTotals totals = performArqueo(timeoutMs > 0 ? timeoutMs : ARQUEO_TIMEOUT_MS);
+                        boolean strict = mode == 0 ? ARQUEO_STRICT : mode == 1;
+                        if (totals == null) {
+                            f.begin(tag, op, Frames.ERROR).text("NoWorkers").send();
+                        } else if (strict && !totals.complete()) {
+                            f.begin(tag, op, Frames.ERROR).text("ArqueoIncompleto|Workers:" + totals.answered + "/" + totals.asked).send();
+                        } else {
+                            totals.write(f.begin(tag, op, Frames.OK)).send();
+                        }
+                    });
+                }
+                case Frames.OP_ARQUEO_RAPIDO:
+                    return new FrameCall(op, null, f -> {
+                        ArqueoTotals totals = fastArqueo();
+                        if (totals == null) f.begin(tag, op, Frames.ERROR).text("NoWorkers").send();
+                        else totals.write(f.begin(tag, op, Frames.OK)).putInt(totals.cached).send();
+                    });
+                case Frames.OP_CREATE_ACCOUNTS: {
+                    int count = req.getInt();
+                    long initialCents = req.getLong();
+                    return new FrameCall(op, null, f -> {
+                        int created = createAccounts(count, initialCents,
+                            (done, total) -> f.begin(tag, op, Frames.PROGRESS).putInt(done).putInt(total).send());
+                        if (created < 0) f.begin(tag, op, Frames.ERROR).text("NoWorkersRegistered").send();
+                        else f.begin(tag, op, Frames.OK).putInt(created).send();
+                    });
+                }
+                default:
+                    return FrameCall.error(tag, op, "UnknownCommand");
+            }
+        }
+
+        // a decoded binary request: the accounts it touches and the work that writes its reply
+        private static final class FrameCall {
+            final byte op;
+            final int[] keys;
+            private final Consumer<FrameWriter> body;
+            FrameCall(byte op, int[] keys, Consumer<FrameWriter> body) {
+                this.op = op; this.keys = keys; this.body = body;
+            }
+            Void run(FrameWriter frames) {
+                long start = System.nanoTime();
+                metrics.inflight.increment();
+                try {
+                    body.accept(frames);
+                } finally {
+                    metrics.inflight.decrement();
+                    metrics.command(Frames.name(op), start); // errors are counted as their frames begin
+                }
+                return null;
+            }
+            static FrameCall error(int tag, byte op, String code) {
+                return new FrameCall(op, new int[0], f -> f.begin(tag, op, Frames.ERROR).text(code).send());
+            }
+        }
+
+        // text results map onto frames as status + whatever follows the first '|'
+        private static void reply(FrameWriter frames, int tag, byte op, String resp) {
+            int bar = resp.indexOf('|');
+            frames.begin(tag, op, resp.startsWith("ERROR") ? Frames.ERROR : Frames.OK)
+                .text(bar < 0 ? "" : resp.substring(bar + 1)).send();
+        }
+
+        // Process one request line; replies are written to out. A "#tag|CMD" line is dispatched
+        // and the next line read at once; its reply comes back as "#tag|reply" whenever it is ready.
+        // An untagged command is answered before the next line is read. "MULTI|n" makes the next n
+        // lines one batch that runs concurrently and is answered "MULTI|n" plus n replies in order.
+        // Commands of one connection on the same account always run in the order they arrived.
+        void handleLine(String line) throws IOException {
+            requestLog.log("", line);
+            if (batch != null) {
+                batch.lines.add(line);
+                if (batch.lines.size() == batch.size) {
+                    Batch b = batch;
+                    batch = null;
+                    runBatch(b);
+                }
+                return;
+            }
+            String prefix = "";
+            if (line.startsWith("#")) {
+                int bar = line.indexOf('|');
+                if (bar < 0) {
+                    emit("ERROR|FormatoInvalido");
+                    return;
+                }
+                prefix = line.substring(0, bar + 1);
+                line = line.substring(bar + 1);
+            }
+            if (line.equals("SUBSCRIBE") || line.startsWith("SUBSCRIBE|")) {
+                subscribe(prefix, line);
+                return;
+            }
+            if (line.startsWith("MULTI|")) {
+                int n;
+                try {
+                    n = Integer.parseInt(line.substring(6));
+                } catch (NumberFormatException e) {
+                    n = -1;
+                }
+                if (n < 1 || n > PIPELINE_WINDOW) emit(prefix + "ERROR|FormatoInvalido");
+                else batch = new Batch(prefix, n);
+                return;
+            }
+            String command = line, tag = prefix;
+            if (tag.isEmpty() && sequencer.idle()) {
+                // nothing in flight to order against
+                Admission.Priority priority = Admission.priorityOf(commandName(command));
+                if (!admission.tryAdmit(admitted, priority)) {
+                    emit(admission.busy());
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    emit(execute(command, this::emit));
+                } finally {
+                    admission.release(admitted, priority, start);
+                }
+                return;
+            }
+            CompletableFuture<String> reply = admit(commandName(command), keysOf(command), () -> execute(command, s -> emit(tag + s)), busy -> busy);
+            if (tag.isEmpty()) emit(reply.join());
+            else reply.thenAccept(r -> emit(tag + r));
+        }
+
+        private void runBatch(Batch b) {
+            List<CompletableFuture<String>> replies = new ArrayList<>(b.size);
+            for (String l : b.lines) replies.add(admit(commandName(l), keysOf(l), () -> execute(l, null), busy -> busy));
+            CompletableFuture<Void> all = CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                synchronized (out) {
+                    out.println(b.prefix + "MULTI|" + b.size);
+                    for (CompletableFuture<String> r : replies) out.println(r.join());
+                }
+            });
+            if (b.prefix.isEmpty()) all.join();
+        }
+
+        private static final class Batch {
+            final String prefix;
+            final int size;
+            final List<String> lines;
+            Batch(String prefix, int size) {
+                this.prefix = prefix; this.size = size; this.lines = new ArrayList<>(size);
+            }
+        }
+
+        // dispatch() behind admission control: a command over the limits is not queued, its result
+        // is what onBusy makes of the Busy reply
+        private <T> CompletableFuture<T> admit(String name, int[] keys, Supplier<T> task, Function<String, T> onBusy) {
+            Admission.Priority priority = Admission.priorityOf(name);
+            if (!admission.tryAdmit(admitted, priority)) return CompletableFuture.completedFuture(onBusy.apply(admission.busy()));
+            long start = System.nanoTime();
+            CompletableFuture<T> f = dispatch(keys, task);
+            f.whenComplete((r, e) -> admission.release(admitted, priority, start));
+            return f;
+        }
+
+        // waits (pausing the reader) while PIPELINE_WINDOW commands are already unanswered
+        private <T> CompletableFuture<T> dispatch(int[] keys, Supplier<T> task) {
+            window.acquireUninterruptibly();
+            CompletableFuture<T> f = sequencer.submit(keys, task);
+            f.whenComplete((r, e) -> window.release());
+            return f;
+        }
+
+        private void emit(String line) {
+            synchronized (out) {
+                out.println(line);
+            }
+        }
+
+        private void emitAll(List<String> lines) {
+            synchronized (out) {
+                for (String line : lines) out.println(line);
+            }
+        }
+
+        // SUBSCRIBE[|from[|ranges[|epoch]]] -> OK|Subscribed|Desde:<offset>|Epoca:<epoch>, then EV lines
+        // as writes commit. from: an offset, INICIO (oldest retained) or FIN / empty (from now on).
+        // Runs on the reader thread so the reply goes out before the first event.
+        private void subscribe(String prefix, String line) {
+            String[] parts = line.split("\\|", -1);
+            if (subscription != null) {
+                emit(prefix + "ERROR|YaSuscrito");
+                return;
+            }
+            try {
+                String from = parts.length > 1 ? parts[1] : "";
+                long offset = from.isEmpty() || from.equals("FIN") ? -1 : from.equals("INICIO") ? 0 : Long.parseLong(from);
+                int[][] ranges = ChangeFeed.parseRanges(parts.length > 2 ? parts[2] : "");
+                if (parts.length > 3 && !parts[3].isEmpty() && Long.parseLong(parts[3]) != changeFeed.epoch) {
+                    // the server restarted: offsets of the old stream mean nothing here
+                    emit(prefix + "ERROR|EpocaDistinta|Epoca:" + changeFeed.epoch + "|Oldest:" + changeFeed.oldest());
+                    return;
+                }
+                ChangeFeed.Subscriber s = offset < -1 ? null : changeFeed.subscribe(offset, ranges, this::emitAll, disconnect);
+                if (s == null) {
+                    emit(prefix + "ERROR|OffsetExpirado|Oldest:" + changeFeed.oldest() + "|Epoca:" + changeFeed.epoch);
+                    return;
+                }
+                subscription = s;
+                emit(prefix + "OK|Subscribed|Desde:" + s.position() + "|Epoca:" + changeFeed.epoch);
+                s.start();
+            } catch (NumberFormatException e) {
+                emit(prefix + "ERROR|FormatoInvalido");
+            }
+        }
+
+        static String commandName(String line) {
+            int bar = line.indexOf('|');
+            return bar < 0 ? line : line.substring(0, bar);
+        }
+
+        // accounts a command touches; null for commands that must not overlap any other
+        static int[] keysOf(String line) {
+            String[] parts = line.split("\\|");
+            try {
+                switch (parts[0]) {
+                    case "CONSULTAR_CUENTA":
+                    case "ESTADO_PAGO_PRESTAMO":
+                    case "CREAR_PRESTAMO":
+                    case "PAGAR_PRESTAMO":
+                    case "HISTORIAL_CUENTA":
+                        return new int[] { Integer.parseInt(parts[1]) };
+                    case "TRANSFERIR_CUENTA":
+                        return new int[] { Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) };
+                    default:
+                        return null;
+                }
+            } catch (RuntimeException e) {
+                return new int[0]; // malformed: execute() answers with an error right away
+            }
+        }
+
+        // runs one command and returns its final reply line; interim lines (INFO, PROGRESS) go to
+        // the given sink, or are dropped when it is null
+        private String execute(String line, Consumer<String> interim) {
+            long start = System.nanoTime();
+            metrics.inflight.increment();
+            String resp = null;
+            try {
+                resp = executeCommand(line, interim);
+                return resp;
+            } finally {
+                metrics.inflight.decrement();
+                // names of unknown commands come from clients: keep them out of the metrics
+                String name = "ERROR|UnknownCommand".equals(resp) ? "OTHER" : commandName(line);
+                metrics.command(name, start);
+                if (resp == null || resp.startsWith("ERROR")) metrics.failed(name);
+            }
+        }
+
+        private String executeCommand(String line, Consumer<String> interim) {
+            String[] parts = line.split("\\|");
+            String cmd = parts[0];
+            try {
+                if (cmd.equals("CREATE_ACCOUNTS")) {
+                    int count = Integer.parseInt(parts[1]);
+                    double initial = Double.parseDouble(parts[2]);
+                    if (interim != null) interim.accept("INFO|Creating " + count + " accounts with initial " + initial);
+                    int created = createAccounts(count, toCents(initial),
+                        (done, total) -> { if (interim != null) interim.accept("PROGRESS|" + done + "|" + total); });
+                    return created < 0 ? "ERROR|NoWorkersRegistered" : "DONE|Created:" + created;
+
+                } else if (cmd.equals("CONSULTAR_CUENTA")) {
+                    int id = Integer.parseInt(parts[1]);
+                    return queryAccount(id);
+
+                } else if (parts[0].equals("TRANSFERIR_CUENTA")) {
+                    if (parts.length < 4) return "ERROR|FormatoInvalido";
+
+                    int from = Integer.parseInt(parts[1]);
+                    int to = Integer.parseInt(parts[2]);
+                    double amt = Double.parseDouble(parts[3]);
+
+                    // Usar la función de transferencia corregida
+                    return transfer(from, to, toCents(amt));
+
+                } else if (cmd.equals("ESTADO_PAGO_PRESTAMO")) {
+                    int id = Integer.parseInt(parts[1]);
+                    return loanStatus(id);
+
+                } else if (cmd.equals("HISTORIAL_CUENTA")) {
+                    // HISTORIAL_CUENTA|id[|cursor[|limit[|from[|to[|min[|max]]]]]]
+                    return history(parts, interim);
+
+                } else if (cmd.equals("CREAR_PRESTAMO")) {
+                    if (parts.length < 4) return "ERROR|FormatoInvalido";
+                    int accountId = Integer.parseInt(parts[1]);
+                    double amount = Double.parseDouble(parts[2]);
+                    double pendingAmount = Double.parseDouble(parts[3]);
+                    return createLoan(accountId, toCents(amount), toCents(pendingAmount));
+
+                } else if (cmd.equals("PAGAR_PRESTAMO")) {
+                    if (parts.length < 4) return "ERROR|FormatoInvalido";
+                    int accountId = Integer.parseInt(parts[1]);
+                    int loanId = Integer.parseInt(parts[2]);
+                    double amount = Double.parseDouble(parts[3]);
+                    return payLoan(accountId, loanId, toCents(amount));
+
+                } else if (cmd.equals("ARQUEO")) {
+                    // ARQUEO[|timeoutMs[|ESTRICTO]]
+                    long timeoutMs = parts.length > 1 ? Long.parseLong(parts[1]) : ARQUEO_TIMEOUT_MS;
+                    boolean strict = parts.length > 2 ? parts[2].equals("ESTRICTO") : ARQUEO_STRICT;
+                    coordinator.settleAll(); // absorbed credits are still in flight until then
+                    ArqueoTotals totals = performArqueo(timeoutMs);
+                    if (totals == null) return "ERROR|NoWorkers";
+                    if (strict && !totals.complete()) return "ERROR|ArqueoIncompleto|Workers:" + totals.answered + "/" + totals.asked;
+                    return totals.format();
+
+                } else if (cmd.equals("ARQUEO_RAPIDO")) {
+                    coordinator.settleAll();
+                    ArqueoTotals totals = fastArqueo();
+                    return totals == null ? "ERROR|NoWorkers" : totals.format() + "|Cached:" + totals.cached;
+
+                } else if (cmd.equals("CACHE")) {
+                    return "OK|" + accountCache.describe();
+
+                } else if (cmd.equals("SUBSCRIBE")) {
+                    // only as a line of its own: a MULTI or binary reply cannot carry a stream
+                    return "ERROR|StreamingNotSupported";
+
+                } else if (cmd.equals("UNSUBSCRIBE")) {
+                    ChangeFeed.Subscriber s = subscription;
+                    if (s == null) return "ERROR|NoSuscrito";
+                    s.cancel();
+                    subscription = null;
+                    return "OK|Unsubscribed|Offset:" + s.position();
+
+                } else if (cmd.equals("HOT_KEYS")) {
+                    return "OK|" + hotKeys.describe() + "|" + coordinator.describeAbsorbed();
+
+                } else if (cmd.equals("CDC")) {
+                    return "OK|" + changeFeed.describe();
+
+                } else if (cmd.equals("LOCKS")) {
+                    return "OK|" + accountLocks.describe();
+
+                } else if (cmd.equals("ADMISSION")) {
+                    StringBuilder sb = new StringBuilder("OK|").append(admission.describe());
+                    synchronized (workers) {
+                        for (WorkerInfo w : workers) sb.append('|').append(w.id).append(':').append(w.describeLimit());
+                    }
+                    return sb.toString();
+
+                } else if (cmd.equals("REPLICAS")) {
+                    // REPLICAS -> replication summary; REPLICAS|<accountId> -> its copies and whether each is current
+                    if (parts.length > 1) return replicator.describe(Integer.parseInt(parts[1]));
+                    return "OK|" + replicator.describe();
+
+                } else if (cmd.equals("STATS")) {
+                    // STATS -> latency percentiles (ms) per command and per worker, counters and gauges; STATS|RESET clears them
+                    if (parts.length > 1 && parts[1].equals("RESET")) {
+                        metrics.reset();
+                        return "OK|Reset";
+                    }
+                    return "OK|" + metrics.summary();
+
+                } else if (cmd.equals("HEALTH")) {
+                    StringBuilder sb = new StringBuilder("OK");
+                    synchronized (workers) {
+                        for (WorkerInfo w : workers) sb.append('|').append(w.id).append(':').append(w.health.describe());
+                    }
+                    return sb.toString();
+
+                } else if (cmd.equals("LOTE_PRESTAMOS")) {
+                    // LOTE_PRESTAMOS -> state of the batch; LOTE_PRESTAMOS|INTERES|<run>|<rate%> or
+                    // LOTE_PRESTAMOS|REPORTE|<run>[|graceDays] starts one, and repeating an unfinished run resumes it
+                    if (parts.length == 1) return loanBatch.status();
+                    String run = parts[2];
+                    if (run.isEmpty() || run.contains(",")) return "ERROR|FormatoInvalido";
+                    if (parts[1].equals("INTERES")) {
+                        double rate = Double.parseDouble(parts[3]);
+                        if (!(rate > 0 && rate <= 100)) return "ERROR|TasaInvalida";
+                        return loanBatch.start(run, LoanBatch.Kind.INTERES, String.valueOf(rate));
+                    }
+                    if (parts[1].equals("REPORTE")) {
+                        int days = parts.length > 3 ? Integer.parseInt(parts[3]) : BATCH_GRACE_DAYS;
+                        String cutoff = java.time.LocalDateTime.now().minusDays(days)
+                            .format(java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+                        return loanBatch.start(run, LoanBatch.Kind.REPORTE, cutoff);
+                    }
+                    return "ERROR|FormatoInvalido";
+
+                } else if (cmd.equals("REBALANCE")) {
+                    Migration m = migration;
+                    return m == null ? "OK|Idle" : "OK|Running|" + m.status();
+
+                } else if (cmd.equals("RING")) {
+                    // RING -> placement summary; RING|<accountId> -> owner of that account
+                    if (parts.length > 1) {
+                        WorkerInfo w = workerForAccount(Integer.parseInt(parts[1]));
+                        return w == null ? "ERROR|NoWorkers" : "OK|" + parts[1] + "|" + w.id;
+                    }
+                    return "OK|" + partitioner.describe();
+
+                } else {
+                    return "ERROR|UnknownCommand";
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return "ERROR|FormatoInvalido";
+            }
+        }
+
+        // ids are grouped by owning worker and shipped as CREATE_ACCOUNTS_BATCH frames, with up to
+        // CREATE_WINDOW frames in flight per worker; returns how many were created, -1 without workers
+        private int createAccounts(int count, long initialCents, Progress progress) {
+            if (workers.size() == 0) return -1;
+            CreateBatches batches = new CreateBatches(amount(initialCents));
+            long[] lastProgress = { System.nanoTime() };
+            try {
+                for (int i = 1; i <= count; i++) {
+                    Lease lease;
+                    try {
+                        lease = lease(i, true, 0);
+                    } catch (IOException busy) {
+                        // the range is cutting over: don't sit on leases the rebalancer is waiting for
+                        batches.flushAll();
+                        try {
+                            lease = lease(i, true, LEASE_WAIT_MS);
+                        } catch (IOException e) {
+                            continue;
+                        }
+                    }
+                    if (lease.owner == null) {
+                        lease.release();
+                        break;
+                    }
+                    if (batches.add(lease, i)) reportProgress(progress, batches.created.get(), count, lastProgress);
+                }
+                batches.flushAll();
+                CompletableFuture<Void> all = batches.allSent();
+                while (true) {
+                    try {
+                        all.get(200, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException te) {
+                        reportProgress(progress, batches.created.get(), count, lastProgress);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                System.err.println("Failed to send to worker: " + e.getMessage());
+            } finally {
+                batches.releaseUnsent();
+            }
+            return batches.created.get();
+        }
+
+        // progress of a long-running command, reported at most every 200ms
+        interface Progress {
+            void report(int done, int total);
+        }
+
+        // per-worker CREATE_ACCOUNTS_BATCH frames being filled; each id's lease is held until its frame is answered
+        private static class CreateBatches {
+            final AtomicInteger created = new AtomicInteger();
+            private final String initial;
+            private final Map<WorkerInfo, StringBuilder> ids = new HashMap<>();
+            private final Map<WorkerInfo, List<Lease>> leases = new HashMap<>();
+            private final Map<WorkerInfo, Semaphore> windows = new HashMap<>();
+            private final List<CompletableFuture<Void>> sent = new ArrayList<>();
+
+            CreateBatches(String initial) { this.initial = initial; }
+
+            // returns true when a full frame was sent
+            boolean add(Lease lease, int accountId) throws InterruptedException {
+                WorkerInfo w = lease.owner;
+                StringBuilder batch = ids.computeIfAbsent(w, k -> new StringBuilder());
+                if (batch.length() > 0) batch.append(',');
+                batch.append(accountId);
+                List<Lease> held = leases.computeIfAbsent(w, k -> new ArrayList<>());
+                held.add(lease);
+                if (held.size() < CREATE_BATCH) return false;
+                flush(w);
+                return true;
+            }
+
+            void flushAll() throws InterruptedException {
+                for (WorkerInfo w : new ArrayList<>(ids.keySet())) flush(w);
+            }
+
+            private void flush(WorkerInfo w) throws InterruptedException {
+                Semaphore window = windows.computeIfAbsent(w, k -> new Semaphore(CREATE_WINDOW));
+                window.acquire();
+                String batch = ids.remove(w).toString();
+                List<Lease> held = leases.remove(w);
+                sent.add(send(w, batch, held.size()).whenComplete((r, e) -> {
+                    window.release();
+                    for (Lease l : held) l.release();
+                }));
+            }
+
+            CompletableFuture<Void> allSent() {
+                return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
+            }
+
+            void releaseUnsent() {
+                for (List<Lease> held : leases.values()) {
+                    for (Lease l : held) l.release();
+                }
+                leases.clear();
+            }
+
+            // one frame per call; falls back to pipelined CREATE_ACCOUNT for workers without batch support.
+            // Creating over an existing account replaces it, so the worker's running totals are
+            // rebuilt by the next full ARQUEO rather than adjusted here.
+            private CompletableFuture<Void> send(WorkerInfo w, String batch, int size) {
+                return sendWriteAsync(w, "CREATE_ACCOUNTS_BATCH|" + initial + "|" + batch, 3000L + 10L * size, 0, 0)
+                    .thenCompose(resp -> {
+                        if (resp != null && resp.startsWith("OK|")) {
+                            created.addAndGet(Integer.parseInt(resp.substring(3)));
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        if (!"ERROR|UnknownOp".equals(resp)) {
+                            System.err.println("Batch create on worker " + w.id + " failed: " + resp);
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        List<CompletableFuture<String>> single = new ArrayList<>();
+                        for (String id : batch.split(",")) {
+                            single.add(sendWriteAsync(w, "CREATE_ACCOUNT|" + id + "|" + initial, 3000, 0, 0)
+                                .whenComplete((r, e) -> { if (r != null && r.startsWith("OK")) created.incrementAndGet(); }));
+                        }
+                        return CompletableFuture.allOf(single.toArray(new CompletableFuture<?>[0]));
+                    })
+                    .exceptionally(e -> {
+                        System.err.println("Failed to send to worker: " + e.getMessage());
+                        return null;
+                    })
+                    .whenComplete((r, e) -> {
+                        aggregateOf(w).invalidate();
+                        for (String id : batch.split(",")) accountWritten(Integer.parseInt(id));
+                    });
+            }
+        }
+
+        private void reportProgress(Progress progress, int created, int total, long[] last) {
+            long now = System.nanoTime();
+            if (now - last[0] < TimeUnit.MILLISECONDS.toNanos(200)) return;
+            last[0] = now;
+            progress.report(created, total);
+        }
+
+
+        private String queryAccount(int id) {
+            if (workers.size() == 0) return "ERROR|NoWorkers";
+            hotKeys.record(id);
+            coordinator.settle(id);
+            String cached = accountCache.get(id);
+            if (cached != null) return cached;
+            long version = accountCache.version(id);
+            Lease lease = null;
+            try {
+                lease = lease(id, false);
+                WorkerInfo backup = replicator.backupFor(id, lease.owner);
+                String resp = backup != null ? readReplica(backup, id) : null; // null: ask the primary
+                IOException failure = null;
+                if (resp == null) {
+                    try {
+                        resp = sendToWorker(lease.owner, "CONSULTAR_CUENTA|" + id, 3000);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null || "ERROR|Timeout".equals(resp) || "ERROR|WorkerUnavailable".equals(resp)
+                        || (resp != null && resp.startsWith("ERROR|Busy"))) {
+                    // the primary stalled, left or is saturated: another copy holding its last acknowledged write answers
+                    WorkerInfo other = replicator.failoverFor(id, lease.owner, backup);
+                    String again = other != null ? readReplica(other, id) : null;
+                    if (again != null) {
+                        resp = again;
+                        failure = null;
+                    }
+                }
+                if (failure != null) throw failure;
+                Migration m = migration;
+                if ("ERROR|NoExiste".equals(resp) && m != null && REPLICAS > 1) {
+                    // its owner left and a backup is being promoted: read one of the old backups meanwhile
+                    WorkerInfo gone = m.from.ownerOf(id);
+                    if (gone != null && gone.isClosed()) {
+                        for (WorkerInfo w : m.from.replicasFor(id, REPLICAS)) {
+                            String copy = w.isClosed() ? null : readReplica(w, id);
+                            if (copy != null) return copy;
+                        }
+                    }
+                }
+                if (resp != null && resp.startsWith("OK|")) accountCache.put(id, version, resp);
+                return resp != null ? resp : "ERROR|NoResponse";
+            } catch (IOException e) {
+                return "ERROR|" + e.getMessage();
+            } finally {
+                if (lease != null) lease.release();
+            }
+        }
+
+        // a backup's copy of the account, or null when it has none or does not answer
+        private String readReplica(WorkerInfo w, int id) {
+            try {
+                String resp = sendToWorker(w, "REPLICA_GET|" + id, 3000);
+                return resp != null && resp.startsWith("OK|") ? resp : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        // Entries go out as "MOV|pos|type|amount|peer|time" lines, one worker page (HISTORY_CHUNK) at a
+        // time: neither the worker, this server nor the connection holds more than a page, and each
+        // page takes a lease of its own, so a long statement does not hold up a rebalance. DONE carries
+        // the cursor to continue from, -1 once the history is over. Filters are epoch milliseconds and
+        // amounts, empty for none.
+        private String history(String[] parts, Consumer<String> interim) {
+            if (interim == null) return "ERROR|StreamingNotSupported"; // inside MULTI there is no line to stream on
+            int id = Integer.parseInt(parts[1]);
+            long cursor = parts.length > 2 && !parts[2].isEmpty() ? Long.parseLong(parts[2]) : 0;
+            int limit = parts.length > 3 && !parts[3].isEmpty() ? Integer.parseInt(parts[3]) : HISTORY_LIMIT;
+            if (cursor < 0 || limit < 1) return "ERROR|FormatoInvalido";
+            limit = Math.min(limit, HISTORY_MAX);
+            StringBuilder filters = new StringBuilder();
+            for (int i = 4; i < 8; i++) {
+                String f = i < parts.length ? parts[i] : "";
+                if (!f.isEmpty()) {
+                    if (i < 6) Long.parseLong(f); // times must be numbers, amounts are normalized
+                    else f = amount(toCents(Double.parseDouble(f)));
+                }
+                filters.append('|').append(f);
+            }
+            if (workers.size() == 0) return "ERROR|NoWorkers";
+            hotKeys.record(id);
+            coordinator.settle(id);
+            int sent = 0;
+            while (sent < limit && cursor >= 0) {
+                String resp;
+                Lease lease = null;
+                try {
+                    lease = lease(id, false);
+                    resp = sendToWorker(lease.owner, "HISTORIAL|" + id + "|" + cursor + "|" + Math.min(HISTORY_CHUNK, limit - sent) + filters, 5000);
+                } catch (IOException e) {
+                    return "ERROR|" + e.getMessage();
+                } finally {
+                    if (lease != null) lease.release();
+                }
+                if (resp == null || !resp.startsWith("OK|")) return resp != null ? resp : "ERROR|NoResponse";
+                // OK|next|pos,type,amount,peer,time;...
+                int bar = resp.indexOf('|', 3);
+                cursor = Long.parseLong(resp.substring(3, bar));
+                for (int start = bar + 1; start < resp.length(); ) {
+                    int end = resp.indexOf(';', start);
+                    if (end < 0) end = resp.length();
+                    String[] e = resp.substring(start, end).split(",", -1);
+                    interim.accept("MOV|" + e[0] + "|" + e[1] + "|" + amount(toCents(Double.parseDouble(e[2]))) + "|" + e[3] + "|" + e[4]);
+                    sent++;
+                    start = end + 1;
+                }
+            }
+            return "DONE|Movimientos:" + sent + "|Cursor:" + cursor;
+        }
+
+        private String loanStatus(int id) {
+            if (workers.size() == 0) return "ERROR|NoWorkers";
+            hotKeys.record(id);
+            Lease lease = null;
+            try {
+                lease = lease(id, false);
+                String resp = sendToWorker(lease.owner, "ESTADO_PAGO_PRESTAMO|" + id, 5000);
+                return resp != null ? resp : "ERROR|NoResponse";
+            } catch (IOException e) {
+                return "ERROR|" + e.getMessage();
+            } finally {
+                if (lease != null) lease.release();
+            }
+        }
+
+        // same-worker transfers are one TRANSFER_LOCAL; otherwise a two-phase commit through the
+        // coordinator. Workers that predate both fall back to DEBIT/CREDIT with compensation
+        private String transfer(int from, int to, long cents) {
+            if (workers.size() == 0) return "ERROR|NoWorkers";
+            hotKeys.record(from);
+            hotKeys.record(to);
+            // absorbed credits to the debited account first; a flush takes the account's lock itself
+            coordinator.settle(from);
+            if (HOT_ABSORB && from != to && hotKeys.absorbable(to)) {
+                // credits commute, so only the debited account needs its writes ordered
+                String resp = accountLocks.run(new int[] { from }, () -> {
+                    ChangeFeed.Ticket debit = changeFeed.ticket(from);
+                    try {
+                        String r = transferAbsorbed(from, to, cents);
+                        // its CREDITO goes out with the batch that applies it
+                        if (r != null && r.startsWith("CONFIRMACION")) debit.add("DEBITO", cents, String.valueOf(to));
+                        return r;
+                    } finally {
+                        debit.done();
+                    }
+                });
+                if (resp != null) return resp;
+            }
+            return accountLocks.run(new int[] { from, to }, () -> {
+                // both accounts are this write's until it returns, so the tickets follow commit order
+                ChangeFeed.Ticket debit = changeFeed.ticket(from), credit = changeFeed.ticket(to);
+                try {
+                    String resp = transferLocked(from, to, cents);
+                    if (resp.startsWith("CONFIRMACION")) {
+                        debit.add("DEBITO", cents, String.valueOf(to));
+                        credit.add("CREDITO", cents, String.valueOf(from));
+                        hotKeys.credited(to);
+                    }
+                    return resp;
+                } finally {
+                    debit.done();
+                    credit.done();
+                }
+            });
+        }
+
+        // null when the accounts share a worker, a rebalance is running or the worker is too old for
+        // PREPARE: the regular path handles those
+        private String transferAbsorbed(int from, int to, long cents) {
+            if (migration != null) return null;
+            Lease lease = null;
+            try {
+                lease = lease(from, true);
+                WorkerInfo wFrom = lease.owner;
+                if (wFrom == null || wFrom == workerForAccount(to)) return null;
+                return coordinator.transferAbsorbed(coordinator.newTx(), from, to, cents, wFrom);
+            } catch (IOException e) {
+                return "ERROR|" + e.getMessage();
+            } finally {
+                accountWritten(from);
+                if (lease != null) lease.release();
+            }
+        }
+
+        private String transferLocked(int from, int to, long cents) {
+            Lease lFrom = null, lTo = null;
+            try {
+                lFrom = lease(from, true);
+                lTo = lease(to, true);
+                WorkerInfo wFrom = lFrom.owner;
+                WorkerInfo wTo = lTo.owner;
+                if (wFrom == null || wTo == null) return "ERROR|NoWorkers";
+                String monto = amount(cents);
+                String tx = coordinator.newTx();
+                if (wFrom == wTo) {
+                    // net zero for the worker's totals, but an unknown outcome still invalidates them
+                    String resp = sendWrite(wFrom, "TRANSFER_LOCAL|" + tx + "|" + from + "|" + to + "|" + monto, 5000, 0, 0);
+                    if ("OK".equals(resp)) return "CONFIRMACION|Transferencia realizada";
+                    if ("ERROR|DestinoNoExiste".equals(resp)) return "ERROR|CreditFailed|ERROR|NoExiste";
+                    if (!"ERROR|UnknownOp".equals(resp)) return "ERROR|DebitFailed|" + resp;
+                    return legacyTransfer(from, to, cents, wFrom, wTo);
+                }
+                String result = coordinator.transfer(tx, from, to, cents, wFrom, wTo);
+                return result != null ? result : legacyTransfer(from, to, cents, wFrom, wTo);
+            } catch (IOException e) {
+                return "ERROR|" + e.getMessage();
+            } finally {
+                accountWritten(from);
+                accountWritten(to);
+                if (lFrom != null) lFrom.release();
+                if (lTo != null) lTo.release();
+            }
+        }
+
+        private String legacyTransfer(int from, int to, long cents, WorkerInfo wFrom, WorkerInfo wTo) throws IOException {
+            String monto = amount(cents);
+            // 1) request debit
+            String resp1 = sendWrite(wFrom, "DEBIT|" + from + "|" + monto, 5000, -cents, 0);
+            if (!"OK".equals(resp1)) {
+                return "ERROR|DebitFailed|" + resp1;
+            }
+            // 2) credit destination
+            String resp2 = sendWrite(wTo, "CREDIT|" + to + "|" + monto, 5000, cents, 0);
+            if (!"OK".equals(resp2)) {
+                // attempt compensating credit back
+                String back = sendWrite(wFrom, "CREDIT|" + from + "|" + monto, 3000, cents, 0);
+                if (!"OK".equals(back)) System.err.println("Compensation failed for transfer " + from + "->" + to + " (" + monto + "): " + back);
+                return "ERROR|CreditFailed|" + resp2;
+            }
+            // record transaction in source worker (they can log)
+            sendToWorker(wFrom, "RECORD_TX|" + from + "|" + to + "|" + monto, 2000);
+            sendToWorker(wTo, "RECORD_TX|" + from + "|" + to + "|" + monto, 2000);
+            return "CONFIRMACION|Transferencia realizada";
+        }
+
+        private String createLoan(int accountId, long amountCents, long pendingCents) {
+            if (workers.size() == 0) return "ERROR|NoWorkers";
+            hotKeys.record(accountId);
+            return accountLocks.run(new int[] { accountId }, () -> {
+                ChangeFeed.Ticket ticket = changeFeed.ticket(accountId);
+                try {
+                    String resp = createLoanLocked(accountId, amountCents, pendingCents);
+                    if (resp.startsWith("OK|LoanID:")) ticket.add("PRESTAMO", amountCents, resp.substring(10));
+                    return resp;
+                } finally {
+                    ticket.done();
+                }
+            });
+        }
+
+        private String createLoanLocked(int accountId, long amountCents, long pendingCents) {
+            Lease lease = null;
+            try {
+                lease = lease(accountId, true);
+                String resp = sendToWorker(lease.owner, "CREAR_PRESTAMO|" + accountId + "|" + amount(amountCents) + "|" + amount(pendingCents), 5000);
+                return resp != null ? resp : "ERROR|NoResponse";
+            } catch (IOException e) {
+                return "ERROR|" + e.getMessage();
+            } finally {
+                accountWritten(accountId);
+                if (lease != null) lease.release();
+            }
+        }
+
+        private String payLoan(int accountId, int loanId, long cents) {
+            if (workers.size() == 0) return "ERROR|NoWorkers";
+            hotKeys.record(accountId);
+            return accountLocks.run(new int[] { accountId }, () -> {
+                ChangeFeed.Ticket ticket = changeFeed.ticket(accountId);
+                try {
+                    String resp = payLoanLocked(accountId, loanId, cents);
+                    if (resp.startsWith("OK|")) ticket.add("PAGO", cents, String.valueOf(loanId));
+                    return resp;
+                } finally {
+                    ticket.done();
+                }
+            });
+        }
+
+        private String payLoanLocked(int accountId, int loanId, long cents) {
+            Lease lease = null;
+            try {
+                lease = lease(accountId, true);
+                String resp = sendToWorker(lease.owner, "PAGAR_PRESTAMO|" + accountId + "|" + loanId + "|" + amount(cents), 5000);
+                return resp != null ? resp : "ERROR|NoResponse";
+            } catch (IOException e) {
+                return "ERROR|" + e.getMessage();
+            } finally {
+                accountWritten(accountId);
+                if (lease != null) lease.release();
+            }
+        }
+
+        // all workers are asked in parallel and partial totals are merged as replies arrive;
+        // workers that miss the deadline are left out and reported in Workers:answered/asked.
+        // null when there are no workers
+        private ArqueoTotals performArqueo(long timeoutMs) {
+            List<WorkerInfo> targets;
+            synchronized (workers) {
+                targets = new ArrayList<>(workers);
+            }
+            if (targets.isEmpty()) return null;
+            ArqueoTotals totals = scan(targets, timeoutMs);
+            totals.asked = targets.size();
+            return totals;
+        }
+
+        // answers from the running per-worker totals; only workers without a valid total are scanned
+        private ArqueoTotals fastArqueo() {
+            List<WorkerInfo> targets;
+            synchronized (workers) {
+                targets = new ArrayList<>(workers);
+            }
+            if (targets.isEmpty()) return null;
+            ArqueoTotals totals = new ArqueoTotals();
+            List<WorkerInfo> unseeded = new ArrayList<>();
+            for (WorkerInfo w : targets) {
+                long[] snap = aggregateOf(w).snapshot();
+                if (snap == null) unseeded.add(w);
+                else totals.add(snap[0], snap[1]);
+            }
+            totals.cached = totals.answered;
+            if (!unseeded.isEmpty()) totals.merge(scan(unseeded, ARQUEO_TIMEOUT_MS));
+            totals.asked = targets.size();
+            return totals;
+        }
+
+        private ArqueoTotals scan(List<WorkerInfo> targets, long timeoutMs) {
+            ArqueoTotals totals = new ArqueoTotals();
+            List<CompletableFuture<Void>> replies = new ArrayList<>();
+            for (WorkerInfo w : targets) {
+                BalanceAggregate agg = aggregateOf(w);
+                long marker = agg.scanStart();
+                replies.add(sendToWorkerAsync(w, "ARQUEO", timeoutMs).thenAccept(resp -> {
+                    if (resp == null || !resp.startsWith("OK|")) return;
+                    String[] data = resp.substring(3).split("\\|");
+                    long cents = toCents(Double.parseDouble(data[0]));
+                    long accounts = Long.parseLong(data[1]);
+                    totals.add(cents, accounts);
+                    agg.seed(marker, cents, accounts);
+                }).exceptionally(e -> null));
+            }
+            CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).join();
+            return totals;
+        }
+
+        private static class ArqueoTotals {
+            long cents;
+            long accounts;
+            int answered;
+            int asked;
+            int cached;
+
+            synchronized void add(long cents, long accounts) {
+                this.cents += cents;
+                this.accounts += accounts;
+                answered++;
+            }
+
+            synchronized void merge(ArqueoTotals other) {
+                synchronized (other) {
+                    cents += other.cents;
+                    accounts += other.accounts;
+                    answered += other.answered;
+                }
+            }
+
+            synchronized boolean complete() {
+                return answered == asked;
+            }
+
+            synchronized String format() {
+                return "OK|TotalBalance:" + (cents / 100.0) + "|TotalAccounts:" + accounts + "|Workers:" + answered + "/" + asked;
+            }
+
+            synchronized FrameWriter.Frame write(FrameWriter.Frame frame) {
+                return frame.putLong(cents).putLong(accounts).putInt(answered).putInt(asked);
+            }
+        }
+    }
+
+    // CLIENT_BANK_BIN wire format, big-endian. Request: [int len][int tag][byte op][fields];
+    // reply: [int len][int tag][byte op][byte status][fields]. len counts the bytes after itself,
+    // tag is echoed back untouched, amounts are long cents and a text field runs to the frame end.
+    static final class Frames {
+        static final byte OP_QUERY = 1;           // int account -> text (account JSON)
+        static final byte OP_TRANSFER = 2;        // int from, int to, long cents -> text
+        static final byte OP_LOAN_STATUS = 3;     // int account -> text
+        static final byte OP_CREATE_LOAN = 4;     // int account, long cents, long pendingCents -> text
+        static final byte OP_PAY_LOAN = 5;        // int account, int loanId, long cents -> text
+        static final byte OP_ARQUEO = 6;          // int timeoutMs (0 = default), byte mode (0 default, 1 strict, 2 partial)
+                                                  //   -> long cents, long accounts, int answered, int asked
+        static final byte OP_ARQUEO_RAPIDO = 7;   // -> as OP_ARQUEO, then int cached
+        static final byte OP_CREATE_ACCOUNTS = 8; // int count, long initialCents -> PROGRESS int done, int total ...; int created
+        static final byte OP_MULTI = 9;           // int n, n x [int len][int tag][byte op][fields] -> the n replies in order, then int n
+        private static final String[] NAMES = { "?", "CONSULTAR_CUENTA", "TRANSFERIR_CUENTA", "ESTADO_PAGO_PRESTAMO",
+            "CREAR_PRESTAMO", "PAGAR_PRESTAMO", "ARQUEO", "ARQUEO_RAPIDO", "CREATE_ACCOUNTS", "MULTI" };
+
+        static final byte OK = 0;
+        static final byte ERROR = 1;       // text error code, as after "ERROR|" in the text protocol
+        static final byte PROGRESS = 2;    // more frames with the same tag follow
+
+        static final int MIN_REQUEST = 5;  // tag + op
+
+        static String name(byte op) {
+            return op > 0 && op < NAMES.length ? NAMES[op] : "op" + op;
+        }
+
+        static byte[] error(int tag, byte op, String code) {
+            byte[] text = code.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer b = ByteBuffer.allocate(10 + text.length);
+            b.putInt(6 + text.length).putInt(tag).put(op).put(ERROR).put(text);
+            return b.array();
+        }
+    }
+
+    // Reply frames of one connection. begin() hands out a pooled Frame with its own reused buffer,
+    // so concurrent commands build replies in parallel; send() writes the frame with a single call.
+    // Like PrintWriter it never throws: checkError() reports a failed write.
+    static class FrameWriter {
+        private static final int MAX_FREE = 16;
+        private final OutputStream os;
+        private final Deque<Frame> free = new ArrayDeque<>(); // guarded by itself
+        private volatile boolean error;
+
+        FrameWriter(OutputStream os) { this.os = os; }
+
+        Frame begin(int tag, byte op, byte status) {
+            if (status == Frames.ERROR) metrics.failed(Frames.name(op));
+            Frame f;
+            synchronized (free) {
+                f = free.poll();
+            }
+            if (f == null) f = new Frame();
+            f.buf.clear();
+            f.buf.putInt(0).putInt(tag).put(op).put(status);
+            return f;
+        }
+
+        // frames that are already encoded, written back to back
+        void write(byte[] frames) {
+            write(frames, frames.length);
+        }
+
+        boolean checkError() { return error; }
+
+        private void write(byte[] b, int len) {
+            synchronized (os) {
+                try {
+                    os.write(b, 0, len);
+                    os.flush();
+                } catch (IOException e) {
+                    error = true;
+                }
+            }
+        }
+
+        final class Frame {
+            private ByteBuffer buf = ByteBuffer.allocate(256);
+
+            Frame putInt(int v) {
+                room(4).putInt(v);
+                return this;
+            }
+
+            Frame putLong(long v) {
+                room(8).putLong(v);
+                return this;
+            }
+
+            Frame text(String s) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                room(b.length).put(b);
+                return this;
+            }
+
+            void send() {
+                buf.putInt(0, buf.position() - 4);
+                write(buf.array(), buf.position());
+                synchronized (free) {
+                    if (free.size() < MAX_FREE) free.push(this);
+                }
+            }
+
+            private ByteBuffer room(int n) {
+                if (buf.remaining() < n) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+                    buf.flip();
+                    bigger.put(buf);
+                    buf = bigger;
+                }
+                return buf;
+            }
+        }
+    }
+
+    // runs tasks on a shared pool, at most `parallelism` at a time; the rest wait in arrival order
+    static class LimitedExecutor implements Executor {
+        private final Executor pool;
+        private final int parallelism;
+        private final Queue<Runnable> queue = new ArrayDeque<>(); // guarded by this
+        private int running;                                      // guarded by this
+
+        LimitedExecutor(Executor pool, int parallelism) {
+            this.pool = pool; this.parallelism = parallelism;
+        }
+
+        public void execute(Runnable task) {
+            synchronized (this) {
+                queue.add(task);
+                if (running >= parallelism) return;
+                running++;
+            }
+            pool.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = queue.poll();
+                    if (task == null) {
+                        running--;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("ClientHandler error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Orders the pipelined commands of one connection: a command waits for earlier ones on the same
+    // accounts; a command without accounts (null keys) waits for everything before it, and
+    // everything after it waits for it. Independent commands run concurrently.
+    static class Sequencer {
+        private final Executor executor;
+        private final Map<Integer, CompletableFuture<?>> tails = new HashMap<>(); // guarded by this
+        private CompletableFuture<?> barrier = CompletableFuture.completedFuture(null);
+        private int inflight;
+
+        Sequencer(Executor executor) { this.executor = executor; }
+
+        synchronized boolean idle() {
+            return inflight == 0;
+        }
+
+        synchronized <T> CompletableFuture<T> submit(int[] keys, Supplier<T> task) {
+            List<CompletableFuture<?>> deps = new ArrayList<>();
+            if (!barrier.isDone()) deps.add(barrier);
+            if (keys == null) {
+                deps.addAll(tails.values());
+            } else {
+                for (int k : keys) {
+                    CompletableFuture<?> tail = tails.get(k);
+                    if (tail != null) deps.add(tail);
+                }
+            }
+            CompletableFuture<T> f = deps.isEmpty()
+                ? CompletableFuture.supplyAsync(task, executor)
+                : CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[0])).handleAsync((v, e) -> task.get(), executor);
+            inflight++;
+            if (keys == null) {
+                barrier = f;
+                tails.clear();
+            } else {
+                for (int k : keys) tails.put(k, f);
+            }
+            f.whenComplete((r, e) -> finished(keys, f));
+            return f;
+        }
+
+        private synchronized void finished(int[] keys, CompletableFuture<?> f) {
+            inflight--;
+            if (keys != null) for (int k : keys) tails.remove(k, f);
+        }
+    }
+
+    // readLine() that refuses lines longer than maxChars instead of buffering them whole
+    static class BoundedLineReader extends BufferedReader {
+        private final int maxChars;
+        BoundedLineReader(Reader in, int maxChars) {
+            super(in, 1024);
+            this.maxChars = maxChars;
+        }
+        @Override
+        public String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder(64);
+            int c;
+            while ((c = read()) != -1) {
+                if (c == '\n') break;
+                if (c == '\r') continue;
+                if (sb.length() >= maxChars) throw new IOException("Line too long");
+                sb.append((char) c);
+            }
+            if (c == -1 && sb.length() == 0) return null;
+            return sb.toString();
+        }
+    }
+
+    // Selector-based front end: one reactor thread owns every client socket and hands complete
+    // lines (or frames, for CLIENT_BANK_BIN) to a fixed pool of handler threads. Each connection
+    // holds at most MAX_LINE bytes of unparsed input, MAX_QUEUED_REQUESTS parsed commands and
+    // MAX_PENDING_OUT bytes of unsent output; reading from a connection pauses while either queue is full.
+    static class NioServer {
+        private static final int MAX_QUEUED_REQUESTS = 64;
+        private static final int MAX_PENDING_OUT = 256 * 1024;
+
+        private final Selector selector;
+        private final ServerSocketChannel server;
+        private final ExecutorService handlers;
+        // connections whose interest set must be recomputed on the reactor thread
+        private final Queue<Conn> dirty = new ConcurrentLinkedQueue<>();
+        private final List<Conn> handoffs = new ArrayList<>();
+
+        NioServer(int port, int handlerThreads) throws IOException {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            handlers = Executors.newFixedThreadPool(handlerThreads);
+        }
+
+        void run() throws IOException {
+            while (true) {
+                selector.select();
+                Conn c;
+                while ((c = dirty.poll()) != null) c.updateInterest();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Conn conn = (Conn) key.attachment();
+                    try {
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.onWritable();
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+                if (!handoffs.isEmpty()) handOffWorkers();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel ch;
+            while ((ch = server.accept()) != null) {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Conn conn = new Conn(ch);
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+            }
+        }
+
+        // worker channels keep the blocking reader/writer model used by WorkerInfo
+        private void handOffWorkers() {
+            try {
+                selector.selectNow(); // flush cancelled keys so the channels can go blocking
+            } catch (IOException e) {
+                System.err.println("Selector error: " + e.getMessage());
+            }
+            for (Conn conn : handoffs) {
+                try {
+                    conn.ch.configureBlocking(true);
+                    Socket s = conn.ch.socket();
+                    InputStream is = new SequenceInputStream(new ByteArrayInputStream(conn.leftover), s.getInputStream());
+                    BufferedReader in = new BufferedReader(new InputStreamReader(is));
+                    PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+                    registerWorker(conn.roleLine, s, in, out);
+                } catch (IOException e) {
+                    System.err.println("Connection handler error: " + e.getMessage());
+                    conn.close();
+                }
+            }
+            handoffs.clear();
+        }
+
+        class Conn {
+            final SocketChannel ch;
+            SelectionKey key;
+            private ByteBuffer inBuf = ByteBuffer.allocate(1024);
+            private final Deque<ByteBuffer> outQ = new ArrayDeque<>(); // guarded by this
+            private int outBytes;                                       // guarded by this
+            private final Deque<Object> requests = new ArrayDeque<>();  // lines or frame payloads; guarded by this
+            private boolean draining;                                   // guarded by this
+            private boolean eof; // client half-closed: finish queued commands, then close
+            private ClientHandler handler; // null until the role line arrives
+            private boolean binary;        // CLIENT_BANK_BIN: length-prefixed frames follow the role line
+            private FrameWriter frames;
+            private String roleLine;
+            private byte[] leftover;
+            private volatile boolean closed;
+
+            Conn(SocketChannel ch) { this.ch = ch; }
+
+            void onReadable() throws IOException {
+                synchronized (this) {
+                    if (eof) return;
+                }
+                int n = ch.read(inBuf);
+                if (n < 0) {
+                    synchronized (this) { eof = true; }
+                    updateInterest();
+                    return;
+                }
+                inBuf.flip();
+                int start = inBuf.position();
+                if (!binary) {
+                    start = scanLines(start);
+                    if (closed || eof || leftover != null) return;
+                }
+                if (binary) {
+                    start = scanFrames(start);
+                    if (eof) return;
+                }
+                inBuf.position(start);
+                inBuf.compact();
+                int max = binary ? MAX_LINE + 4 : MAX_LINE;
+                if (!inBuf.hasRemaining()) {
+                    if (inBuf.capacity() >= max) {
+                        // reply, then close once the error has been written
+                        synchronized (this) {
+                            requests.clear();
+                            eof = true;
+                        }
+                        send("ERROR|LineTooLong");
+                        return;
+                    }
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.min(inBuf.capacity() * 2, max));
+                    inBuf.flip();
+                    bigger.put(inBuf);
+                    inBuf = bigger;
+                }
+                updateInterest();
+            }
+
+            // returns the offset of the first unconsumed byte; stops right after a role line that
+            // switches the connection to binary frames
+            private int scanLines(int start) throws IOException {
+                for (int i = start; i < inBuf.limit(); i++) {
+                    if (inBuf.get(i) != '\n') continue;
+                    int end = (i > start && inBuf.get(i - 1) == '\r') ? i - 1 : i;
+                    String line = new String(inBuf.array(), start, end - start, "UTF-8");
+                    start = i + 1;
+                    if (handler == null) {
+                        onRole(line, start);
+                        if (closed || eof || leftover != null || binary) return start;
+                    } else {
+                        enqueueRequest(line);
+                    }
+                }
+                return start;
+            }
+
+            private int scanFrames(int start) {
+                while (inBuf.limit() - start >= 4) {
+                    int len = inBuf.getInt(start);
+                    if (len < Frames.MIN_REQUEST || len > MAX_LINE) {
+                        synchronized (this) {
+                            requests.clear();
+                            eof = true;
+                        }
+                        enqueue(Frames.error(0, (byte) 0, "FrameTooLong"), false);
+                        return inBuf.limit();
+                    }
+                    if (inBuf.limit() - start - 4 < len) break;
+                    enqueueRequest(Arrays.copyOfRange(inBuf.array(), start + 4, start + 4 + len));
+                    start += 4 + len;
+                }
+                return start;
+            }
+
+            private void onRole(String line, int consumed) {
+                if (line.startsWith("WORKER")) {
+                    roleLine = line;
+                    leftover = Arrays.copyOfRange(inBuf.array(), consumed, inBuf.limit());
+                    key.cancel();
+                    handoffs.add(this);
+                } else if (line.startsWith("CLIENT_BANK_BIN")) {
+                    System.out.println("Accepted client connection: " + line);
+                    handler = new ClientHandler(null, null, null, false);
+                    frames = new FrameWriter(new ConnOutputStream(this));
+                    binary = true;
+                    send("WELCOME|CentralServer|BIN");
+                } else if (line.startsWith("CLIENT_BANK") || line.startsWith("CLIENT_CHAT")) {
+                    System.out.println("Accepted client connection: " + line);
+                    PrintWriter out = new PrintWriter(new ConnWriter(this), true);
+                    handler = new ClientHandler(null, null, out, line.startsWith("CLIENT_CHAT"));
+                    handler.disconnect = this::close;
+                    out.println("WELCOME|CentralServer");
+                } else {
+                    synchronized (this) { eof = true; }
+                    send("ERROR|Unknown role");
+                }
+            }
+
+            private void enqueueRequest(Object request) {
+                synchronized (this) {
+                    requests.add(request);
+                    if (draining) return;
+                    draining = true;
+                }
+                handlers.execute(this::drain);
+            }
+
+            // runs on a handler thread; commands of one connection are processed in order
+            private void drain() {
+                while (true) {
+                    Object request;
+                    synchronized (this) {
+                        request = requests.poll();
+                        if (request == null || closed) {
+                            draining = false;
+                            if (eof) requestUpdate();
+                            return;
+                        }
+                        if (requests.size() == MAX_QUEUED_REQUESTS - 1) requestUpdate();
+                    }
+                    try {
+                        if (request instanceof String) handler.handleLine((String) request);
+                        else handler.handleFrame(ByteBuffer.wrap((byte[]) request), frames);
+                    } catch (Exception e) {
+                        System.err.println("ClientHandler error: " + e.getMessage());
+                        close();
+                    }
+                }
+            }
+
+            // reactor thread only: never waits for the output queue to drain
+            void send(String line) {
+                try {
+                    enqueue((line + "\n").getBytes("UTF-8"), false);
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            // handler threads pass mayBlock so they wait while the connection has too much unsent output
+            void enqueue(byte[] bytes, boolean mayBlock) {
+                synchronized (this) {
+                    while (mayBlock && !closed && outBytes > MAX_PENDING_OUT) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    if (closed) return;
+                    outQ.add(ByteBuffer.wrap(bytes));
+                    outBytes += bytes.length;
+                }
+                requestUpdate();
+            }
+
+            void onWritable() throws IOException {
+                synchronized (this) {
+                    ByteBuffer head;
+                    while ((head = outQ.peek()) != null) {
+                        outBytes -= ch.write(head);
+                        if (head.hasRemaining()) break;
+                        outQ.poll();
+                    }
+                    notifyAll();
+                }
+                updateInterest();
+            }
+
+            private void requestUpdate() {
+                dirty.add(this);
+                selector.wakeup();
+            }
+
+            // reactor thread only
+            void updateInterest() {
+                if (closed || !key.isValid()) return;
+                int ops = 0;
+                synchronized (this) {
+                    if (eof && !draining && requests.isEmpty() && outQ.isEmpty()) {
+                        close();
+                        return;
+                    }
+                    if (!eof && outBytes <= MAX_PENDING_OUT && requests.size() < MAX_QUEUED_REQUESTS) ops |= SelectionKey.OP_READ;
+                    if (!outQ.isEmpty()) ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+
+            void close() {
+                synchronized (this) {
+                    if (closed) return;
+                    closed = true;
+                    outQ.clear();
+                    notifyAll();
+                }
+                if (handler != null) handler.closed();
+                try { ch.close(); } catch (IOException e) {}
+            }
+        }
+
+        // PrintWriter target: each flush (println with autoflush) becomes one queued buffer
+        static class ConnWriter extends Writer {
+            private final Conn conn;
+            private final StringBuilder buf = new StringBuilder();
+            ConnWriter(Conn conn) { this.conn = conn; }
+            @Override public void write(char[] c, int off, int len) { buf.append(c, off, len); }
+            @Override public void flush() throws IOException {
+                if (buf.length() == 0) return;
+                byte[] bytes = buf.toString().getBytes("UTF-8");
+                buf.setLength(0);
+                conn.enqueue(bytes, true);
+            }
+            @Override public void close() throws IOException { flush(); }
+        }
+
+        // FrameWriter target: every write is one whole frame and becomes one queued buffer
+        static class ConnOutputStream extends OutputStream {
+            private final Conn conn;
+            ConnOutputStream(Conn conn) { this.conn = conn; }
+            @Override public void write(int b) { write(new byte[] { (byte) b }, 0, 1); }
+            @Override public void write(byte[] b, int off, int len) { conn.enqueue(Arrays.copyOfRange(b, off, off + len), true); }
+        }
     }
 }
@@ -1,26 +1,35 @@
 import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ChatClient {
-    private static Socket socket;
-    private static BufferedReader in;
-    private static PrintWriter out;
+    // conexión compartida por todas las pestañas; los botones nunca esperan al servidor
+    private static BankConnection client;
     private static JTextArea logArea;
 
     public static void main(String[] args) throws Exception {
         String host = (args.length>0)?args[0]:"localhost";
         int port = 9000;
-        socket = new Socket(host, port);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
         // identify as chat client
-        out.println("CLIENT_CHAT|chat1");
-        // consume welcome
-        String welcome = in.readLine();
-        System.out.println("Server: " + welcome);
+        client = new BankConnection(host, port, "CLIENT_CHAT|chat1");
+        System.out.println("Server: " + client.welcome);
 
         SwingUtilities.invokeLater(() -> {
             JFrame frame = new JFrame("Sistema Bancario - Cliente GUI");
@@ -52,6 +61,12 @@ public class ChatClient {
             // Pestaña 5: Pagar Préstamos
             tabbedPane.addTab("Pagar Préstamo", createPayLoanPanel());
 
+            // Pestaña 6: Operaciones por lote
+            tabbedPane.addTab("Lote", createBatchPanel());
+
+            // Pestaña 7: Saldos que se actualizan solos
+            tabbedPane.addTab("Saldos en Vivo", createWatchPanel());
+
             // Layout principal
             frame.getContentPane().setLayout(new BorderLayout(10, 10));
             frame.getContentPane().add(tabbedPane, BorderLayout.CENTER);
@@ -76,19 +91,12 @@ public class ChatClient {
         JButton btnConsult = new JButton("Consultar Saldo");
 
         btnConsult.addActionListener(e -> {
-            try {
-                String id = txtAccount.getText().trim();
-                if (id.isEmpty()) {
-                    log("❌ Error: Ingresa un ID de cuenta");
-                    return;
-                }
-                out.println("CONSULTAR_CUENTA|" + id);
-                String resp = in.readLine();
-                log("🔍 Consulta Cuenta " + id + ":");
-                log("   " + resp);
-            } catch (Exception ex) {
-                log("❌ Error: " + ex.getMessage());
+            String id = txtAccount.getText().trim();
+            if (id.isEmpty()) {
+                log("❌ Error: Ingresa un ID de cuenta");
+                return;
             }
+            request("CONSULTAR_CUENTA|" + id, "🔍 Consulta Cuenta " + id + ":");
         });
 
         gbc.gridx = 0; gbc.gridy = 0;
@@ -117,23 +125,17 @@ public class ChatClient {
         JButton btnTransfer = new JButton("Transferir");
 
         btnTransfer.addActionListener(e -> {
-            try {
-                String from = txtFrom.getText().trim();
-                String to = txtTo.getText().trim();
-                String amount = txtAmount.getText().trim();
+            String from = txtFrom.getText().trim();
+            String to = txtTo.getText().trim();
+            String amount = txtAmount.getText().trim();
 
-                if (from.isEmpty() || to.isEmpty() || amount.isEmpty()) {
-                    log("❌ Error: Completa todos los campos");
-                    return;
-                }
-
-                out.println("TRANSFERIR_CUENTA|" + from + "|" + to + "|" + amount);
-                String resp = in.readLine();
-                log("💸 Transferencia: " + from + " → " + to + " ($" + amount + ")");
-                log("   " + resp);
-            } catch (Exception ex) {
-                log("❌ Error: " + ex.getMessage());
+            if (from.isEmpty() || to.isEmpty() || amount.isEmpty()) {
+                log("❌ Error: Completa todos los campos");
+                return;
             }
+
+            request("TRANSFERIR_CUENTA|" + from + "|" + to + "|" + amount,
+                "💸 Transferencia: " + from + " → " + to + " ($" + amount + ")");
         });
 
         gbc.gridx = 0; gbc.gridy = 0;
@@ -171,22 +173,16 @@ public class ChatClient {
         JButton btnCreate = new JButton("Crear Préstamo");
 
         btnCreate.addActionListener(e -> {
-            try {
-                String account = txtAccount.getText().trim();
-                String amount = txtAmount.getText().trim();
+            String account = txtAccount.getText().trim();
+            String amount = txtAmount.getText().trim();
 
-                if (account.isEmpty() || amount.isEmpty()) {
-                    log("❌ Error: Completa todos los campos");
-                    return;
-                }
-
-                out.println("CREAR_PRESTAMO|" + account + "|" + amount + "|" + amount);
-                String resp = in.readLine();
-                log("💰 Nuevo Préstamo para cuenta " + account + " por $" + amount);
-                log("   " + resp);
-            } catch (Exception ex) {
-                log("❌ Error: " + ex.getMessage());
+            if (account.isEmpty() || amount.isEmpty()) {
+                log("❌ Error: Completa todos los campos");
+                return;
             }
+
+            request("CREAR_PRESTAMO|" + account + "|" + amount + "|" + amount,
+                "💰 Nuevo Préstamo para cuenta " + account + " por $" + amount);
         });
 
         gbc.gridx = 0; gbc.gridy = 0;
@@ -221,23 +217,17 @@ public class ChatClient {
         JButton btnPay = new JButton("Pagar Préstamo");
 
         btnPay.addActionListener(e -> {
-            try {
-                String account = txtAccount.getText().trim();
-                String loanId = txtLoanId.getText().trim();
-                String amount = txtAmount.getText().trim();
-
-                if (account.isEmpty() || loanId.isEmpty() || amount.isEmpty()) {
-                    log("❌ Error: Completa todos los campos");
-                    return;
-                }
+            String account = txtAccount.getText().trim();
+            String loanId = txtLoanId.getText().trim();
+            String amount = txtAmount.getText().trim();
 
-                out.println("PAGAR_PRESTAMO|" + account + "|" + loanId + "|" + amount);
-                String resp = in.readLine();
-                log("💵 Pago de Préstamo #" + loanId + " (Cuenta " + account + ") - $" + amount);
-                log("   " + resp);
-            } catch (Exception ex) {
-                log("❌ Error: " + ex.getMessage());
+            if (account.isEmpty() || loanId.isEmpty() || amount.isEmpty()) {
+                log("❌ Error: Completa todos los campos");
+                return;
             }
+
+            request("PAGAR_PRESTAMO|" + account + "|" + loanId + "|" + amount,
+                "💵 Pago de Préstamo #" + loanId + " (Cuenta " + account + ") - $" + amount);
         });
 
         gbc.gridx = 0; gbc.gridy = 0;
@@ -273,21 +263,14 @@ public class ChatClient {
         JButton btnStatus = new JButton("Consultar Estado de Préstamos");
 
         btnStatus.addActionListener(e -> {
-            try {
-                String account = txtAccount.getText().trim();
-
-                if (account.isEmpty()) {
-                    log("❌ Error: Ingresa un ID de cuenta");
-                    return;
-                }
+            String account = txtAccount.getText().trim();
 
-                out.println("ESTADO_PAGO_PRESTAMO|" + account);
-                String resp = in.readLine();
-                log("📊 Estado de Préstamos - Cuenta " + account + ":");
-                log("   " + resp);
-            } catch (Exception ex) {
-                log("❌ Error: " + ex.getMessage());
+            if (account.isEmpty()) {
+                log("❌ Error: Ingresa un ID de cuenta");
+                return;
             }
+
+            request("ESTADO_PAGO_PRESTAMO|" + account, "📊 Estado de Préstamos - Cuenta " + account + ":");
         });
 
         gbc.gridx = 0; gbc.gridy = 0;
@@ -301,6 +284,127 @@ public class ChatClient {
         return panel;
     }
 
+    // Panel para enviar varias operaciones en un solo MULTI
+    private static JPanel createBatchPanel() {
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        JTextArea txtCommands = new JTextArea(
+            "CONSULTAR_CUENTA|1\nCONSULTAR_CUENTA|2\nTRANSFERIR_CUENTA|1|2|10.0\nESTADO_PAGO_PRESTAMO|1", 8, 40);
+        txtCommands.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        JButton btnSend = new JButton("Enviar Lote");
+
+        btnSend.addActionListener(e -> {
+            List<String> commands = new ArrayList<>();
+            for (String line : txtCommands.getText().split("\n")) {
+                if (!line.trim().isEmpty()) commands.add(line.trim());
+            }
+            if (commands.isEmpty()) {
+                log("❌ Error: Escribe al menos una operación");
+                return;
+            }
+            btnSend.setEnabled(false);
+            // el servidor las atiende en paralelo; la interfaz no se bloquea mientras tanto
+            client.multi(commands).whenComplete((replies, ex) -> {
+                if (ex != null) {
+                    log("❌ Error: " + cause(ex).getMessage());
+                } else if (replies.size() < commands.size()) {
+                    // el servidor rechazó el lote entero con una sola línea
+                    log("❌ Error: " + replies.get(0));
+                } else {
+                    log("📦 Lote de " + commands.size() + " operaciones:");
+                    for (int i = 0; i < commands.size(); i++) {
+                        log("   " + commands.get(i) + " -> " + replies.get(i));
+                    }
+                }
+                SwingUtilities.invokeLater(() -> btnSend.setEnabled(true));
+            });
+        });
+
+        panel.add(new JLabel("Una operación por línea (se envían juntas con MULTI):"), BorderLayout.NORTH);
+        panel.add(new JScrollPane(txtCommands), BorderLayout.CENTER);
+        panel.add(btnSend, BorderLayout.SOUTH);
+        return panel;
+    }
+
+    // Panel de saldos que se actualizan solos: todas las cuentas se piden en un solo MULTI
+    private static JPanel createWatchPanel() {
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        JTextField txtAccounts = new JTextField("1,2,3,4,5", 25);
+        JTextField txtSeconds = new JTextField("2", 3);
+        JCheckBox chkAuto = new JCheckBox("Actualizar cada");
+        JCheckBox chkLive = new JCheckBox("Al haber cambios");
+        JButton btnRefresh = new JButton("Actualizar");
+        DefaultTableModel model = new DefaultTableModel(new Object[] { "Cuenta", "Saldo", "Actualizado" }, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        BalanceView view = new BalanceView(model);
+        Timer timer = new Timer(2000, e -> view.refresh(txtAccounts.getText()));
+
+        btnRefresh.addActionListener(e -> view.refresh(txtAccounts.getText()));
+        chkAuto.addActionListener(e -> {
+            if (!chkAuto.isSelected()) {
+                timer.stop();
+                return;
+            }
+            try {
+                timer.setDelay(Math.max(1, Integer.parseInt(txtSeconds.getText().trim())) * 1000);
+            } catch (NumberFormatException ex) {
+                log("❌ Error: Segundos inválidos");
+                chkAuto.setSelected(false);
+                return;
+            }
+            view.refresh(txtAccounts.getText());
+            timer.start();
+        });
+        // sin sondeo: el servidor avisa (SUBSCRIBE) cuando cambia alguna de las cuentas
+        chkLive.addActionListener(e -> {
+            if (!chkLive.isSelected()) {
+                client.unsubscribe();
+                return;
+            }
+            String accounts = txtAccounts.getText();
+            String ranges = String.join(",", accounts.trim().split("[,\\s]+"));
+            client.subscribe(ranges, event -> view.refresh(accounts)).whenComplete((resp, ex) -> {
+                String error = ex != null ? cause(ex).getMessage() : resp.startsWith("OK|") ? null : resp;
+                if (error == null) {
+                    view.refresh(accounts);
+                    return;
+                }
+                log("❌ Error: " + error);
+                SwingUtilities.invokeLater(() -> chkLive.setSelected(false));
+            });
+        });
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(new JLabel("Cuentas:"));
+        controls.add(txtAccounts);
+        controls.add(btnRefresh);
+        controls.add(chkAuto);
+        controls.add(txtSeconds);
+        controls.add(new JLabel("s"));
+        controls.add(chkLive);
+        panel.add(controls, BorderLayout.NORTH);
+        panel.add(new JScrollPane(new JTable(model)), BorderLayout.CENTER);
+        return panel;
+    }
+
+    // envía una operación y registra su respuesta cuando llegue
+    private static void request(String command, String title) {
+        client.send(command).whenComplete((resp, ex) -> {
+            if (ex != null) {
+                log("❌ Error: " + cause(ex).getMessage());
+            } else {
+                log(title + "\n   " + resp);
+            }
+        });
+    }
+
+    private static Throwable cause(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+
     // Método helper para agregar mensajes al log
     private static void log(String message) {
         SwingUtilities.invokeLater(() -> {
@@ -308,4 +412,240 @@ public class ChatClient {
             logArea.setCaretPosition(logArea.getDocument().getLength());
         });
     }
+
+    // Tabla de saldos. Cada actualización pide todas las cuentas en un solo MULTI. Las que se piden
+    // mientras otra está en vuelo se juntan en una sola al volver, así un servidor lento no acumula
+    // consultas.
+    static class BalanceView {
+        private static final Pattern BALANCE = Pattern.compile("\"balance\":\\s*(-?[0-9.Ee+-]+)");
+        private final DefaultTableModel model;
+        private final AtomicBoolean inFlight = new AtomicBoolean();
+        private final AtomicReference<String> again = new AtomicReference<>();
+
+        BalanceView(DefaultTableModel model) {
+            this.model = model;
+        }
+
+        // accounts: ids separados por comas o espacios
+        void refresh(String accounts) {
+            List<String> ids = new ArrayList<>();
+            for (String id : accounts.split("[,\\s]+")) {
+                if (!id.isEmpty()) ids.add(id);
+            }
+            if (ids.isEmpty()) return;
+            if (!inFlight.compareAndSet(false, true)) {
+                again.set(accounts);
+                // la que estaba en vuelo pudo terminar justo antes de anotarla
+                if (inFlight.get() || again.getAndSet(null) == null) return;
+                refresh(accounts);
+                return;
+            }
+            List<String> commands = new ArrayList<>();
+            for (String id : ids) commands.add("CONSULTAR_CUENTA|" + id);
+            client.multi(commands).whenComplete((replies, ex) -> {
+                inFlight.set(false);
+                String next = again.getAndSet(null);
+                if (next != null) refresh(next);
+                String now = new SimpleDateFormat("HH:mm:ss").format(new Date());
+                SwingUtilities.invokeLater(() -> {
+                    model.setRowCount(0);
+                    for (int i = 0; i < ids.size(); i++) {
+                        String shown = ex != null ? "❌ " + cause(ex).getMessage()
+                            : replies.size() < ids.size() ? "❌ " + replies.get(0)
+                            : balance(replies.get(i));
+                        model.addRow(new Object[] { ids.get(i), shown, now });
+                    }
+                });
+            });
+        }
+
+        private static String balance(String reply) {
+            if (reply == null || !reply.startsWith("OK|")) return String.valueOf(reply);
+            Matcher m = BALANCE.matcher(reply);
+            return m.find() ? m.group(1) : reply.substring(3);
+        }
+    }
+
+    // Núcleo asíncrono del cliente. Cada petición sale con una etiqueta #<n>| y su respuesta se
+    // reconoce por ella, así que puede haber muchas en vuelo y volver en cualquier orden. Un hilo
+    // escribe (juntando en un flush lo que se acumule) y otro lee y completa los futuros; la
+    // interfaz solo encadena sobre ellos y nunca toca el socket.
+    static class BankConnection {
+        private static final long TIMEOUT_MS = Long.getLong("chat.timeoutMs", 10000);
+
+        final String welcome;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+        private final Thread writer;
+        private final BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+        private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        private final AtomicLong tags = new AtomicLong();
+        private volatile Consumer<String> events; // líneas sin etiqueta de SUBSCRIBE (EV, GAP, ERROR|SlowConsumer)
+        private final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "chat-timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        private volatile IOException closed;
+
+        BankConnection(String host, int port, String role) throws IOException {
+            timeouts.setRemoveOnCancelPolicy(true); // un temporizador cancelado sale de la cola al momento
+            socket = new Socket(host, port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            out.write(role + "\n");
+            out.flush();
+            welcome = in.readLine();
+            writer = daemon(this::writeLoop, "chat-writer");
+            daemon(this::readLoop, "chat-reader");
+        }
+
+        CompletableFuture<String> send(String command) {
+            return send(command, null);
+        }
+
+        // interim recibe las líneas previas a la respuesta (INFO, PROGRESS, MOV); null las descarta
+        CompletableFuture<String> send(String command, Consumer<String> interim) {
+            Pending p = new Pending(interim);
+            return submit(p, command + "\n").thenApply(replies -> replies.get(0));
+        }
+
+        // SUBSCRIBE desde ahora a las cuentas de ranges ("1-10,42"); onEvent corre en el hilo lector
+        CompletableFuture<String> subscribe(String ranges, Consumer<String> onEvent) {
+            events = onEvent;
+            return send("SUBSCRIBE|FIN|" + ranges);
+        }
+
+        CompletableFuture<String> unsubscribe() {
+            events = null;
+            return send("UNSUBSCRIBE");
+        }
+
+        // las operaciones van en un solo MULTI: un viaje de ida y vuelta, respuestas en el mismo orden
+        CompletableFuture<List<String>> multi(List<String> commands) {
+            StringBuilder batch = new StringBuilder("MULTI|").append(commands.size()).append('\n');
+            for (String c : commands) batch.append(c).append('\n');
+            return submit(new Pending(null), batch.toString());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private CompletableFuture<List<String>> submit(Pending p, String text) {
+            if (closed != null) {
+                p.future.completeExceptionally(closed);
+                return p.future;
+            }
+            long tag = tags.incrementAndGet();
+            pending.put(tag, p);
+            if (closed != null) {
+                complete(tag, closed);
+                return p.future;
+            }
+            // el lote entero va en un solo elemento: nada se intercala entre sus líneas
+            outbox.add("#" + tag + "|" + text);
+            p.timeout = timeouts.schedule(() -> {
+                complete(tag, new TimeoutException("Sin respuesta en " + TIMEOUT_MS + " ms"));
+            }, TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            // la respuesta pudo llegar antes de guardar el temporizador
+            if (p.future.isDone()) p.timeout.cancel(false);
+            return p.future;
+        }
+
+        private void writeLoop() {
+            try {
+                while (true) {
+                    String text = outbox.take();
+                    out.write(text);
+                    if (outbox.isEmpty()) out.flush();
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (InterruptedException e) {
+                // fail() ya cerró la conexión
+            }
+        }
+
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int bar = line.indexOf('|');
+                    if (!line.startsWith("#") || bar < 0) {
+                        // sin etiqueta: no responde a ninguna petición, solo puede ser un evento
+                        Consumer<String> e = events;
+                        if (e != null) e.accept(line);
+                        continue;
+                    }
+                    long tag = Long.parseLong(line.substring(1, bar));
+                    String body = line.substring(bar + 1);
+                    if (body.startsWith("MULTI|")) {
+                        // las n respuestas vienen detrás, sin etiqueta; se leen aunque el lote haya vencido
+                        int n = Integer.parseInt(body.substring(6));
+                        List<String> replies = new ArrayList<>(n);
+                        for (int i = 0; i < n; i++) replies.add(in.readLine());
+                        complete(tag, replies);
+                    } else if (body.startsWith("INFO|") || body.startsWith("PROGRESS|") || body.startsWith("MOV|")) {
+                        Pending p = pending.get(tag);
+                        if (p != null && p.interim != null) p.interim.accept(body);
+                    } else {
+                        complete(tag, Collections.singletonList(body));
+                    }
+                }
+                fail(new IOException("Conexión cerrada por el servidor"));
+            } catch (IOException | RuntimeException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        private void complete(long tag, List<String> replies) {
+            Pending p = pending.remove(tag);
+            if (p == null) return;
+            p.future.complete(replies);
+            p.cancelTimeout();
+        }
+
+        private void complete(long tag, Throwable e) {
+            Pending p = pending.remove(tag);
+            if (p == null) return;
+            p.future.completeExceptionally(e);
+            p.cancelTimeout();
+        }
+
+        // la conexión ya no sirve: fallan las peticiones en vuelo y las que lleguen después
+        private void fail(IOException e) {
+            if (closed == null) closed = e;
+            writer.interrupt();
+            for (Long tag : pending.keySet()) complete(tag, closed);
+            close();
+        }
+
+        private static Thread daemon(Runnable task, String name) {
+            Thread t = new Thread(task, name);
+            t.setDaemon(true);
+            t.start();
+            return t;
+        }
+
+        private static final class Pending {
+            final CompletableFuture<List<String>> future = new CompletableFuture<>();
+            final Consumer<String> interim;
+            volatile ScheduledFuture<?> timeout;
+
+            Pending(Consumer<String> interim) {
+                this.interim = interim;
+            }
+
+            // sin esto cada petición dejaría su tarea de 10 s en la cola del planificador
+            void cancelTimeout() {
+                ScheduledFuture<?> t = timeout;
+                if (t != null) t.cancel(false);
+            }
+        }
+    }
 }
@@ -0,0 +1,1817 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+// Worker node speaking the same WORKER|id|MUX protocol as worker_node.py and worker_node.go, with
+// the partition held in memory:
+//
+//   javac -encoding UTF-8 -d build WorkerNode.java
+//   java -cp build WorkerNode w0
+//
+// Balances, loans and transaction logs live in primitive arrays, so a command costs the same with
+// ten accounts as with ten million. Every command that changes state is appended to
+// worker_<id>.wal before its reply is sent; records appended while the previous batch is being
+// forced to disk share the next force() (group commit). Every so often the whole store is written
+// to worker_<id>.snap and the log is cut back to the records after it, so a restart maps the
+// snapshot and replays only that tail.
+public class WorkerNode {
+    private static final String HOST = System.getProperty("worker.host", "localhost");
+    private static final int PORT = Integer.getInteger("worker.port", 9000);
+    // false skips force(): replies no longer wait for the disk, and a crash can lose recent writes
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("worker.fsync", "true"));
+    // a snapshot is taken once this many records were logged since the last one, or this long after
+    // it if anything was; 0 turns either trigger off
+    private static final long SNAPSHOT_RECORDS = Long.getLong("worker.snapshot.records", 200000);
+    private static final long SNAPSHOT_INTERVAL_S = Long.getLong("worker.snapshot.intervalS", 300);
+    // records one HISTORIAL request looks at, at most, so a very selective filter cannot hold the store
+    private static final int HISTORY_SCAN = Integer.getInteger("worker.history.scan", 10000);
+    // batch chunks (ACCRUE_INTEREST, LOAN_REPORT) with at least this many accounts are split over the
+    // common fork-join pool
+    private static final int PARALLEL_MIN = Integer.getInteger("worker.batch.parallelMin", 2048);
+
+    public static void main(String[] args) throws Exception {
+        String id = args.length > 0 ? args[0] : "w_java1";
+        Store store = new Store();
+        long start = System.nanoTime();
+        Path snapPath = Paths.get("worker_" + id + ".snap");
+        long covered = Snapshots.load(snapPath, store);
+        long loaded = System.nanoTime();
+        Wal wal = Wal.open(Paths.get("worker_" + id + ".wal"), store, covered);
+        System.out.printf(Locale.ROOT, "Worker %s: snapshot up to record %d loaded in %.1f ms, %d records replayed in %.1f ms, %d accounts%n",
+            id, covered, (loaded - start) / 1e6, wal.replayed, (System.nanoTime() - loaded) / 1e6, store.size());
+        Snapshots snapshots = new Snapshots(snapPath, store, wal, covered);
+        snapshots.start();
+        while (true) {
+            Socket socket;
+            try {
+                socket = new Socket(HOST, PORT);
+            } catch (IOException e) {
+                System.out.println("Worker " + id + ": cannot reach the server yet (" + e.getMessage() + "). Retrying in 2s...");
+                Thread.sleep(2000);
+                continue;
+            }
+            socket.setTcpNoDelay(true);
+            OutputStream os = socket.getOutputStream();
+            os.write(("WORKER|" + id + "|MUX\n").getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            System.out.printf(Locale.ROOT, "Worker %s connected to server %s:%d, %.0f ms after start%n",
+                id, HOST, PORT, (System.nanoTime() - start) / 1e6);
+            try {
+                serve(socket, store, wal);
+            } catch (IOException e) {
+                System.err.println("Worker error: " + e.getMessage());
+            }
+            socket.close();
+            System.out.println("Worker " + id + " disconnected, exiting.");
+            System.exit(0);
+        }
+    }
+
+    // commands are applied in arrival order on this thread; only the log writer runs beside it
+    static void serve(Socket socket, Store store, Wal wal) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16);
+        Replies replies = new Replies(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16), wal);
+        wal.listener = replies::release;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            // "#tag|CMD": the server multiplexes requests, echo the tag back
+            int bar = line.indexOf('|');
+            String tag = line.startsWith("#") && bar > 0 ? line.substring(0, bar + 1) : "";
+            String cmd = line.substring(tag.length());
+            String reply;
+            long seq;
+            // a snapshot copies the store between two commands, never between a change and its record
+            synchronized (store) {
+                reply = store.apply(cmd);
+                String record = store.takeRecord();
+                // a reply may reveal anything applied before it, so it waits until all of that is on disk
+                seq = record != null ? wal.append(record) : cmd.equals("PING") ? 0 : wal.appended();
+            }
+            replies.send(tag + reply, seq, !in.ready());
+        }
+    }
+
+    // Replies wait until the log covers the state they were computed from. Each carries its tag, so
+    // one whose state is already on disk goes out at once, ahead of any still waiting.
+    static final class Replies {
+        private final Writer out;
+        private final Wal wal;
+        private final ArrayDeque<String> waiting = new ArrayDeque<>();
+        private final ArrayDeque<Long> waitingSeq = new ArrayDeque<>();
+
+        Replies(Writer out, Wal wal) {
+            this.out = out;
+            this.wal = wal;
+        }
+
+        synchronized void send(String line, long seq, boolean flush) throws IOException {
+            if (seq <= wal.durable()) {
+                out.write(line);
+                out.write('\n');
+            } else {
+                waiting.add(line);
+                waitingSeq.add(seq);
+            }
+            if (flush) out.flush(); // replies to requests that arrived together go out together
+        }
+
+        synchronized void release(long durable) {
+            try {
+                if (waitingSeq.isEmpty() || waitingSeq.peek() > durable) return;
+                while (!waitingSeq.isEmpty() && waitingSeq.peek() <= durable) {
+                    waitingSeq.poll();
+                    out.write(waiting.poll());
+                    out.write('\n');
+                }
+                out.flush();
+            } catch (IOException e) {
+                // the connection is gone; the reader notices and exits
+            }
+        }
+    }
+
+    // Append-only log of the commands that changed state, one "seq|record|crc" line each like the
+    // server's coordinator log. Replay stops at the first torn or corrupt line and cuts it off, and
+    // skips the records a snapshot already holds.
+    static final class Wal {
+        private final Path path;
+        private FileChannel ch; // only the writer thread touches it once open() returns
+        private Batch batch = new Batch(), spare = new Batch();
+        private long appended, durable; // guarded by this
+        private long bytes;             // end of the last appended record, written or not; guarded by this
+        private long cutAt = -1;        // offset the writer should drop everything before; guarded by this
+        private boolean failed;         // the writer is gone; guarded by this
+        volatile LongConsumer listener = seq -> { };
+        long replayed;
+
+        private Wal(Path path, FileChannel ch, long last, long bytes) {
+            this.path = path;
+            this.ch = ch;
+            this.appended = this.durable = last;
+            this.bytes = bytes;
+        }
+
+        // covered is the last record the loaded snapshot holds
+        static Wal open(Path path, Store store, long covered) throws IOException {
+            Files.deleteIfExists(tmp(path)); // a cut that did not finish
+            long valid = 0, records = 0, last = covered, implicit = 0;
+            if (Files.exists(path)) {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+                    ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                    long offset = 0;
+                    int b;
+                    while ((b = in.read()) != -1) {
+                        offset++;
+                        if (b != '\n') {
+                            line.write(b);
+                            continue;
+                        }
+                        String record = verify(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                        if (record == null) break;
+                        line.reset();
+                        valid = offset;
+                        // lines written before snapshots existed carry no sequence number
+                        long seq = ++implicit;
+                        if (Character.isDigit(record.charAt(0))) {
+                            int bar = record.indexOf('|');
+                            seq = implicit = Long.parseLong(record.substring(0, bar));
+                            record = record.substring(bar + 1);
+                        }
+                        if (seq <= covered) continue;
+                        if (seq != last + 1) throw new IOException("WAL " + path + ": record " + seq + " follows " + last + ", the records between are lost");
+                        store.apply(record);
+                        store.takeRecord();
+                        records++;
+                        last = seq;
+                    }
+                }
+            }
+            FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (ch.size() > valid) {
+                System.err.println("WAL " + path + ": dropping " + (ch.size() - valid) + " bytes after the last complete record");
+                ch.truncate(valid);
+                ch.force(true);
+            }
+            ch.position(valid);
+            Wal wal = new Wal(path, ch, last, valid);
+            wal.replayed = records;
+            Thread writer = new Thread(wal::writeLoop, "wal-writer");
+            writer.setDaemon(true);
+            writer.start();
+            return wal;
+        }
+
+        // returns the record's sequence number; it is durable once durable() reaches it
+        synchronized long append(String record) {
+            byte[] b = frame(++appended, record);
+            batch.write(b, 0, b.length);
+            bytes += b.length;
+            notify();
+            return appended;
+        }
+
+        synchronized long appended() {
+            return appended;
+        }
+
+        synchronized long durable() {
+            return durable;
+        }
+
+        // {last sequence number, log offset right after it}
+        synchronized long[] mark() {
+            return new long[] { appended, bytes };
+        }
+
+        synchronized void awaitDurable(long seq) throws IOException, InterruptedException {
+            while (durable < seq) {
+                if (failed) throw new IOException("the log writer failed");
+                wait();
+            }
+        }
+
+        // drops the records before offset (a snapshot holds them now); returns once the log is cut
+        synchronized void cut(long offset) throws IOException, InterruptedException {
+            cutAt = offset;
+            notifyAll();
+            while (cutAt >= 0) {
+                if (failed) throw new IOException("the log writer failed");
+                wait();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                while (true) {
+                    Batch full;
+                    long upTo, cut;
+                    synchronized (this) {
+                        while (batch.size() == 0 && cutAt < 0) wait();
+                        full = batch;
+                        batch = spare;
+                        upTo = appended;
+                        cut = cutAt;
+                    }
+                    // everything before the cut is in the file already, the batch goes after it
+                    if (cut >= 0) {
+                        truncateBefore(cut);
+                        synchronized (this) {
+                            bytes -= cut;
+                            cutAt = -1;
+                            notifyAll();
+                        }
+                    }
+                    if (full.size() > 0) {
+                        ByteBuffer b = full.buffer();
+                        while (b.hasRemaining()) ch.write(b);
+                        if (FSYNC) ch.force(false);
+                        full.reset();
+                    }
+                    synchronized (this) {
+                        spare = full;
+                        durable = upTo;
+                        notifyAll();
+                    }
+                    listener.accept(upTo);
+                }
+            } catch (IOException | InterruptedException e) {
+                // replies must not claim durability the log cannot give
+                System.err.println("WAL write failed: " + e.getMessage());
+                synchronized (this) {
+                    failed = true;
+                    notifyAll();
+                }
+                System.exit(1);
+            }
+        }
+
+        // the tail is copied to a new file that replaces the log in one rename, so a crash leaves
+        // either the whole log or the tail, and the snapshot goes with both
+        private void truncateBefore(long offset) throws IOException {
+            Path tmp = tmp(path);
+            long end = ch.position();
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (long at = offset; at < end; ) at += ch.transferTo(at, end - at, out);
+                out.force(true);
+            }
+            ch.close();
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory(path);
+            ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ch.position(ch.size());
+        }
+
+        private static Path tmp(Path path) {
+            return path.resolveSibling(path.getFileName() + ".tmp");
+        }
+
+        private static byte[] frame(long seq, String record) {
+            String line = seq + "|" + record;
+            return (line + "|" + crc(line) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String verify(String line) {
+            int bar = line.lastIndexOf('|');
+            if (bar <= 0) return null;
+            String record = line.substring(0, bar);
+            return line.substring(bar + 1).equals(crc(record)) ? record : null;
+        }
+
+        private static String crc(String record) {
+            CRC32 crc = new CRC32();
+            crc.update(record.getBytes(StandardCharsets.UTF_8));
+            return Long.toHexString(crc.getValue());
+        }
+
+        private static final class Batch extends ByteArrayOutputStream {
+            Batch() {
+                super(1 << 16);
+            }
+
+            ByteBuffer buffer() {
+                return ByteBuffer.wrap(buf, 0, count);
+            }
+        }
+    }
+
+    // Binary image of the store: a header, then each column as it is in memory, then the 2PC holds
+    // and backup copies. It is written and read through memory-mapped windows, so loading it is bulk
+    // copies straight from the page cache, with no parsing. The copy to write is taken between two
+    // commands; the file is written beside the old one, forced and renamed over it, and only then
+    // is the log cut back to the records after it.
+    static final class Snapshots {
+        private final Path path;
+        private final Store store;
+        private final Wal wal;
+        private long covered;  // last record the snapshot on disk holds; guarded by this
+        private long takenAt = System.nanoTime();
+
+        Snapshots(Path path, Store store, Wal wal, long covered) {
+            this.path = path;
+            this.store = store;
+            this.wal = wal;
+            this.covered = covered;
+        }
+
+        // fills an empty store from the snapshot at path; returns the last record it holds, 0 if
+        // there is none
+        static long load(Path path, Store store) throws IOException {
+            Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".tmp"));
+            if (!Files.exists(path)) return 0;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                // the log before this snapshot may be gone already: an unreadable one stops the worker
+                return store.load(new Mapped(ch, FileChannel.MapMode.READ_ONLY));
+            } catch (RuntimeException e) {
+                throw new IOException("snapshot " + path + " is unreadable: " + e, e);
+            }
+        }
+
+        void start() {
+            if (SNAPSHOT_RECORDS <= 0 && SNAPSHOT_INTERVAL_S <= 0) return;
+            // a clean stop (the server going away, SIGTERM) leaves nothing to replay for the next start
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    take();
+                } catch (IOException e) {
+                    System.err.println("Snapshot failed: " + e.getMessage());
+                }
+            }, "snapshot-on-exit"));
+            Thread t = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(1000);
+                        if (due()) take();
+                    } catch (IOException e) {
+                        System.err.println("Snapshot failed: " + e.getMessage()); // the log still has it all
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "snapshots");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private synchronized boolean due() {
+            long pending = wal.appended() - covered;
+            if (pending <= 0) return false;
+            return SNAPSHOT_RECORDS > 0 && pending >= SNAPSHOT_RECORDS
+                || SNAPSHOT_INTERVAL_S > 0 && System.nanoTime() - takenAt >= SNAPSHOT_INTERVAL_S * 1_000_000_000L;
+        }
+
+        synchronized void take() throws IOException {
+            long start = System.nanoTime();
+            Store image;
+            long[] mark;
+            synchronized (store) {
+                mark = wal.mark();
+                if (mark[0] == covered) return;
+                image = store.copy();
+            }
+            long copied = System.nanoTime();
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            long size;
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Mapped out = new Mapped(ch, FileChannel.MapMode.READ_WRITE);
+                image.save(out, mark[0]);
+                size = out.finish();
+                ch.force(true);
+            }
+            try {
+                // the snapshot must not get ahead of the log it replaces
+                wal.awaitDurable(mark[0]);
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                syncDirectory(path);
+                wal.cut(mark[1]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("snapshot interrupted");
+            }
+            covered = mark[0];
+            takenAt = System.nanoTime();
+            System.out.printf(Locale.ROOT, "Snapshot: %d accounts up to record %d, %d bytes, in %.1f ms (%.1f ms copying)%n",
+                image.size(), covered, size, (takenAt - start) / 1e6, (copied - start) / 1e6);
+        }
+    }
+
+    // Sequential reads or writes over a file through memory-mapped windows, little-endian; arrays go
+    // across in bulk. Writing extends the file a window at a time and finish() trims it.
+    static final class Mapped {
+        private static final int WINDOW = 1 << 26;
+        private final FileChannel ch;
+        private final FileChannel.MapMode mode;
+        private MappedByteBuffer buf;
+        private long base; // file offset of buf
+
+        Mapped(FileChannel ch, FileChannel.MapMode mode) {
+            this.ch = ch;
+            this.mode = mode;
+        }
+
+        long position() {
+            return buf == null ? base : base + buf.position();
+        }
+
+        // the current window, remapped at the current position when fewer than n bytes are left
+        private ByteBuffer room(int n) throws IOException {
+            if (buf != null && buf.remaining() >= n) return buf;
+            long at = position();
+            long size = WINDOW;
+            if (mode == FileChannel.MapMode.READ_ONLY) {
+                size = Math.min(WINDOW, ch.size() - at);
+                if (size < n) throw new EOFException("snapshot ends at " + ch.size());
+            } else if (buf != null) {
+                buf.force();
+            }
+            buf = ch.map(mode, at, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            base = at;
+            return buf;
+        }
+
+        // forces what was written and trims the file to it; returns its size
+        long finish() throws IOException {
+            long size = position();
+            if (buf != null) buf.force();
+            buf = null;
+            base = size;
+            ch.truncate(size);
+            return size;
+        }
+
+        void putInt(int v) throws IOException {
+            room(4).putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            room(8).putLong(v);
+        }
+
+        int getInt() throws IOException {
+            return room(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return room(8).getLong();
+        }
+
+        void putInts(int[] a, int n) throws IOException {
+            for (int off = 0; off < n; ) {
+                ByteBuffer b = room(4);
+                int k = Math.min(n - off, b.remaining() / 4);
+                b.asIntBuffer().put(a, off, k);
+                b.position(b.position() + k * 4);
+                off += k;
+            }
+        }
+
+        void putLongs(long[] a, int n) throws IOException {
+            for (int off = 0; off < n; ) {
+                ByteBuffer b = room(8);
+                int k = Math.min(n - off, b.remaining() / 8);
+                b.asLongBuffer().put(a, off, k);
+                b.position(b.position() + k * 8);
+                off += k;
+            }
+        }
+
+        void putBytes(byte[] a, int n) throws IOException {
+            for (int off = 0; off < n; ) {
+                ByteBuffer b = room(1);
+                int k = Math.min(n - off, b.remaining());
+                b.put(a, off, k);
+                off += k;
+            }
+        }
+
+        void putString(String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            putInt(b.length);
+            putBytes(b, b.length);
+        }
+
+        // arrays are allocated at least min long, so the store can keep growing them
+        int[] getInts(int n, int min) throws IOException {
+            int[] a = new int[Math.max(n, min)];
+            for (int off = 0; off < n; ) {
+                ByteBuffer b = room(4);
+                int k = Math.min(n - off, b.remaining() / 4);
+                b.asIntBuffer().get(a, off, k);
+                b.position(b.position() + k * 4);
+                off += k;
+            }
+            return a;
+        }
+
+        long[] getLongs(int n, int min) throws IOException {
+            long[] a = new long[Math.max(n, min)];
+            for (int off = 0; off < n; ) {
+                ByteBuffer b = room(8);
+                int k = Math.min(n - off, b.remaining() / 8);
+                b.asLongBuffer().get(a, off, k);
+                b.position(b.position() + k * 8);
+                off += k;
+            }
+            return a;
+        }
+
+        byte[] getBytes(int n, int min) throws IOException {
+            byte[] a = new byte[Math.max(n, min)];
+            for (int off = 0; off < n; ) {
+                ByteBuffer b = room(1);
+                int k = Math.min(n - off, b.remaining());
+                b.get(a, off, k);
+                off += k;
+            }
+            return a;
+        }
+
+        String getString() throws IOException {
+            int n = getInt();
+            return new String(getBytes(n, 0), StandardCharsets.UTF_8);
+        }
+    }
+
+    // a rename is durable once the directory entry is; not every platform can open a directory
+    static void syncDirectory(Path file) {
+        Path dir = file.toAbsolutePath().getParent();
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+    // The partition. Accounts are slots in parallel primitive columns found through an open-addressing
+    // index; loans and transaction records are pooled in columns of their own and chained per account.
+    // Amounts are cents. Not thread-safe: the connection's reader thread applies commands holding its
+    // monitor, and snapshots copy it holding the same.
+    static final class Store {
+        private static final int EMPTY = Integer.MIN_VALUE;
+        private static final int NONE = -1;
+        private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        private static final byte DEBIT = 0, CREDIT = 1, TRANSFER_OUT = 2, TRANSFER_IN = 3;
+        private static final byte ACTIVE = 0, CANCELLED = 1;
+        // names behind the txType and loanState codes; imports may add the ones other workers use
+        private List<String> txTypes = new ArrayList<>(Arrays.asList("debit", "credit", "transfer_out", "transfer_in"));
+        private List<String> loanStates = new ArrayList<>(Arrays.asList("Activo", "Cancelado"));
+
+        // account id -> slot
+        private int[] keys = filled(1024, EMPTY);
+        private int[] values = new int[1024];
+        private int count;
+
+        // per account slot
+        private int slots;
+        private int[] ids = new int[1024], clients = new int[1024];
+        private long[] balance = new long[1024], held = new long[1024];
+        private int[] holds = new int[1024];
+        private int[] loanHead = new int[1024], loanTail = new int[1024], txHead = new int[1024], txTail = new int[1024];
+        private int[] freeSlots = new int[16];
+        private int freeSlotCount;
+        private long totalCents;
+
+        // pooled loans
+        private int loans, freeLoan = NONE;
+        private int[] loanId = new int[256], loanClient = new int[256], loanNext = new int[256];
+        private long[] loanAmount = new long[256], loanPending = new long[256], loanDate = new long[256];
+        private byte[] loanState = new byte[256];
+        private int[] loanRun = new int[256]; // last interest run applied, as an index into runIds; NONE if none
+        private List<String> runIds = new ArrayList<>();
+        private int loanCounter;
+
+        // pooled transaction records
+        private int txs, freeTx = NONE;
+        private byte[] txType = new byte[1024];
+        private long[] txAmount = new long[1024], txTime = new long[1024]; // epoch millis, 0 when unknown
+        private int[] txPeer = new int[1024], txNext = new int[1024];
+        // where the last HISTORIAL pages of a few accounts stopped: account id -> {position, tx}, so
+        // the next page resumes there instead of walking the chain from its head
+        private final Map<Integer, int[]> historyCursors = new LinkedHashMap<Integer, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, int[]> eldest) {
+                return size() > 256;
+            }
+        };
+
+        private final Map<String, long[]> prepared = new HashMap<>(); // "tx:side" -> {account, cents, debit ? 1 : 0}
+        private final TreeMap<Integer, Replica> replicas = new TreeMap<>();
+        private int[] sortedIds; // LIST_ACCOUNTS pages, rebuilt after accounts come or go
+        private String record;
+
+        private static final class Replica {
+            final long version;
+            final String account; // as CONSULTAR_CUENTA returns it
+            final String state;   // as REPLICA_EXPORT returns it
+
+            Replica(long version, String account, String state) {
+                this.version = version;
+                this.account = account;
+                this.state = state;
+            }
+        }
+
+        int size() {
+            return count;
+        }
+
+        // the log record for the last apply(), or null when it changed nothing
+        String takeRecord() {
+            String r = record;
+            record = null;
+            return r;
+        }
+
+        String apply(String cmd) {
+            String[] p = cmd.split("\\|");
+            try {
+                return dispatch(cmd, p);
+            } catch (RuntimeException e) {
+                record = null;
+                return "ERROR|FormatoInvalido";
+            }
+        }
+
+        private String dispatch(String cmd, String[] p) {
+            switch (p[0]) {
+                case "PING":
+                    return "PONG";
+                case "CREATE_ACCOUNT":
+                    create(Integer.parseInt(p[1]), cents(p[2]));
+                    record = cmd;
+                    return "OK";
+                case "CREATE_ACCOUNTS_BATCH": {
+                    // CREATE_ACCOUNTS_BATCH|balance|id1,id2,...
+                    long cents = cents(p[1]);
+                    int n = 0;
+                    if (p.length > 2) {
+                        for (String id : p[2].split(",")) {
+                            if (id.isEmpty()) continue;
+                            create(Integer.parseInt(id), cents);
+                            n++;
+                        }
+                    }
+                    record = cmd;
+                    return "OK|" + n;
+                }
+                case "CONSULTAR_CUENTA": {
+                    int slot = slot(Integer.parseInt(p[1]));
+                    return slot < 0 ? "ERROR|NoExiste" : "OK|" + accountJson(slot);
+                }
+                case "DEBIT": {
+                    int slot = slot(Integer.parseInt(p[1]));
+                    long cents = cents(p[2]);
+                    if (slot < 0) return "ERROR|NoExiste";
+                    if (balance[slot] - held[slot] < cents) return "ERROR|SaldoInsuficiente";
+                    long time = txTime(p, 3);
+                    addBalance(slot, -cents);
+                    appendTx(slot, DEBIT, cents, EMPTY, time);
+                    record = stamped(cmd, p, 3, time);
+                    return "OK";
+                }
+                case "CREDIT": {
+                    int slot = slot(Integer.parseInt(p[1]));
+                    long cents = cents(p[2]);
+                    if (slot < 0) return "ERROR|NoExiste";
+                    long time = txTime(p, 3);
+                    addBalance(slot, cents);
+                    appendTx(slot, CREDIT, cents, EMPTY, time);
+                    record = stamped(cmd, p, 3, time);
+                    return "OK";
+                }
+                case "RECORD_TX": {
+                    int src = Integer.parseInt(p[1]), dst = Integer.parseInt(p[2]);
+                    long cents = cents(p[3]);
+                    int s = slot(src), d = slot(dst);
+                    long time = txTime(p, 4);
+                    if (s >= 0) appendTx(s, TRANSFER_OUT, cents, dst, time);
+                    if (d >= 0) appendTx(d, TRANSFER_IN, cents, src, time);
+                    if (s >= 0 || d >= 0) record = stamped(cmd, p, 4, time);
+                    return "OK";
+                }
+                case "PREPARE_DEBIT":
+                case "PREPARE_CREDIT": {
+                    // PREPARE_*|tx|account|amount: phase one of 2PC; a debit holds the amount until COMMIT or ABORT
+                    boolean debit = p[0].equals("PREPARE_DEBIT");
+                    int account = Integer.parseInt(p[2]);
+                    long cents = cents(p[3]);
+                    int slot = slot(account);
+                    if (slot < 0) return "ERROR|NoExiste";
+                    String key = p[1] + (debit ? ":debit" : ":credit");
+                    if (prepared.containsKey(key)) return "OK";
+                    if (debit && balance[slot] - held[slot] < cents) return "ERROR|SaldoInsuficiente";
+                    prepared.put(key, new long[] { account, cents, debit ? 1 : 0 });
+                    if (debit) held[slot] += cents;
+                    holds[slot]++;
+                    record = cmd;
+                    return "OK";
+                }
+                case "COMMIT": {
+                    // COMMIT|tx|src|dst|amount: applies what was prepared and records the transfer (idempotent)
+                    int src = Integer.parseInt(p[2]), dst = Integer.parseInt(p[3]);
+                    long cents = cents(p[4]);
+                    long time = txTime(p, 5);
+                    boolean changed = false;
+                    long[] hold = release(p[1] + ":debit");
+                    if (hold != null) {
+                        int s = slot(src);
+                        if (s >= 0) {
+                            addBalance(s, -cents);
+                            appendTx(s, DEBIT, cents, EMPTY, time);
+                            appendTx(s, TRANSFER_OUT, cents, dst, time);
+                        }
+                        changed = true;
+                    }
+                    hold = release(p[1] + ":credit");
+                    if (hold != null) {
+                        int d = slot(dst);
+                        if (d >= 0) {
+                            addBalance(d, cents);
+                            appendTx(d, CREDIT, cents, EMPTY, time);
+                            appendTx(d, TRANSFER_IN, cents, src, time);
+                        }
+                        changed = true;
+                    }
+                    if (changed) record = stamped(cmd, p, 5, time);
+                    return "OK";
+                }
+                case "ABORT": {
+                    boolean a = release(p[1] + ":debit") != null, b = release(p[1] + ":credit") != null;
+                    if (a || b) record = cmd;
+                    return "OK";
+                }
+                case "LIST_PREPARED": {
+                    Set<String> open = new TreeSet<>();
+                    for (String key : prepared.keySet()) open.add(key.substring(0, key.lastIndexOf(':')));
+                    return "OK|" + String.join(",", open);
+                }
+                case "TRANSFER_LOCAL": {
+                    // TRANSFER_LOCAL|tx|src|dst|amount: both accounts live here, one step
+                    int src = Integer.parseInt(p[2]), dst = Integer.parseInt(p[3]);
+                    long cents = cents(p[4]);
+                    int s = slot(src), d = slot(dst);
+                    if (s < 0) return "ERROR|NoExiste";
+                    if (d < 0) return "ERROR|DestinoNoExiste";
+                    if (balance[s] - held[s] < cents) return "ERROR|SaldoInsuficiente";
+                    long time = txTime(p, 5);
+                    addBalance(s, -cents);
+                    appendTx(s, DEBIT, cents, EMPTY, time);
+                    appendTx(s, TRANSFER_OUT, cents, dst, time);
+                    addBalance(d, cents);
+                    appendTx(d, CREDIT, cents, EMPTY, time);
+                    appendTx(d, TRANSFER_IN, cents, src, time);
+                    record = stamped(cmd, p, 5, time);
+                    return "OK";
+                }
+                case "CREAR_PRESTAMO": {
+                    // the log carries the creation time as a fifth field so replay gives the same date
+                    int slot = slot(Integer.parseInt(p[1]));
+                    if (slot < 0) return "ERROR|NoExiste";
+                    long date = p.length > 4 ? Long.parseLong(p[4]) : System.currentTimeMillis() / 1000;
+                    int loan = addLoan(slot, ++loanCounter, clients[slot], cents(p[2]), cents(p[3]), ACTIVE, date);
+                    record = p.length > 4 ? cmd : cmd + "|" + date;
+                    return "OK|LoanID:" + loanId[loan];
+                }
+                case "PAGAR_PRESTAMO": {
+                    int slot = slot(Integer.parseInt(p[1]));
+                    if (slot < 0) return "ERROR|NoExiste";
+                    int id = Integer.parseInt(p[2]);
+                    long cents = cents(p[3]);
+                    int loan = loanHead[slot];
+                    while (loan != NONE && loanId[loan] != id) loan = loanNext[loan];
+                    if (loan == NONE) return "ERROR|PrestamoNoExiste";
+                    if (loanPending[loan] < cents) return "ERROR|MontoExcedeMontoPendiente";
+                    loanPending[loan] -= cents;
+                    if (loanPending[loan] <= 0) {
+                        loanPending[loan] = 0;
+                        loanState[loan] = CANCELLED;
+                    }
+                    record = cmd;
+                    return "OK|MontoRestante:" + money(loanPending[loan]);
+                }
+                case "ESTADO_PAGO_PRESTAMO": {
+                    int slot = slot(Integer.parseInt(p[1]));
+                    if (slot < 0) return "ERROR|NoExiste";
+                    StringBuilder sb = new StringBuilder("OK|[");
+                    for (int loan = loanHead[slot]; loan != NONE; loan = loanNext[loan]) {
+                        if (sb.length() > 4) sb.append(", ");
+                        sb.append("{\"id_prestamo\": ").append(loanId[loan])
+                          .append(", \"monto_total\": ").append(money(loanAmount[loan]))
+                          .append(", \"monto_pagado\": ").append(money(loanAmount[loan] - loanPending[loan]))
+                          .append(", \"monto_pendiente\": ").append(money(loanPending[loan]))
+                          .append(", \"estado\": ").append(Json.quote(loanStates.get(loanState[loan]))).append('}');
+                    }
+                    return sb.append(']').toString();
+                }
+                case "HISTORIAL":
+                    return history(p);
+                case "ACCRUE_INTEREST":
+                    return accrueInterest(cmd, p);
+                case "LOAN_REPORT":
+                    return loanReport(p);
+                case "LIST_ACCOUNTS": {
+                    // LIST_ACCOUNTS|after|limit: ids in order, for paging through the partition
+                    int after = Integer.parseInt(p[1]), limit = Integer.parseInt(p[2]);
+                    int[] sorted = sortedIds();
+                    int i = Arrays.binarySearch(sorted, after);
+                    i = i < 0 ? -i - 1 : i + 1;
+                    StringBuilder sb = new StringBuilder("OK|");
+                    for (int n = 0; n < limit && i < sorted.length; n++, i++) {
+                        if (n > 0) sb.append(',');
+                        sb.append(sorted[i]);
+                    }
+                    return sb.toString();
+                }
+                case "EXPORT_ACCOUNT": {
+                    int slot = slot(Integer.parseInt(p[1]));
+                    if (slot < 0) return "ERROR|NoExiste";
+                    // a pending 2PC hold does not travel with the account: the server retries the copy
+                    if (holds[slot] > 0) return "ERROR|Reservada";
+                    return "OK|" + exportJson(slot);
+                }
+                case "IMPORT_ACCOUNT":
+                    importState(Json.object(cmd.substring(cmd.indexOf('|') + 1)));
+                    record = cmd;
+                    return "OK";
+                case "EXPORT_ACCOUNTS": {
+                    // EXPORT_ACCOUNTS|id1,id2,... -> OK|exported ids|[state, ...]: EXPORT_ACCOUNT for a
+                    // page at once; missing accounts and ones with a 2PC hold are left out
+                    StringBuilder exported = new StringBuilder(), states = new StringBuilder("[");
+                    for (String id : p.length > 1 ? p[1].split(",") : new String[0]) {
+                        if (id.isEmpty()) continue;
+                        int slot = slot(Integer.parseInt(id));
+                        if (slot < 0 || holds[slot] > 0) continue;
+                        if (exported.length() > 0) {
+                            exported.append(',');
+                            states.append(", ");
+                        }
+                        exported.append(ids[slot]);
+                        states.append(exportJson(slot));
+                    }
+                    return "OK|" + exported + "|" + states.append(']');
+                }
+                case "REPLICA_PUT": {
+                    // REPLICA_PUT|version|state: a backup copy of an account whose primary is another
+                    // worker, kept apart from this worker's own accounts
+                    int second = cmd.indexOf('|', cmd.indexOf('|') + 1);
+                    List<String> states = Collections.singletonList(cmd.substring(second + 1));
+                    if (putReplicas(Long.parseLong(p[1]), states)) record = cmd;
+                    return "OK";
+                }
+                case "REPLICA_PUT_BATCH": {
+                    // REPLICA_PUT_BATCH|version|[state, ...]: REPLICA_PUT for every state of an
+                    // EXPORT_ACCOUNTS reply
+                    int second = cmd.indexOf('|', cmd.indexOf('|') + 1);
+                    if (putReplicas(Long.parseLong(p[1]), Json.elements(cmd.substring(second + 1)))) record = cmd;
+                    return "OK";
+                }
+                case "REPLICA_GET": {
+                    Replica r = replicas.get(Integer.parseInt(p[1]));
+                    return r == null ? "ERROR|NoExiste" : "OK|" + r.account;
+                }
+                case "LIST_REPLICAS": {
+                    // LIST_REPLICAS|after|limit -> "id:version" of the backup copies, by id
+                    int after = Integer.parseInt(p[1]), limit = Integer.parseInt(p[2]);
+                    StringBuilder sb = new StringBuilder("OK|");
+                    int n = 0;
+                    for (Map.Entry<Integer, Replica> e : replicas.tailMap(after, false).entrySet()) {
+                        if (n++ == limit) break;
+                        if (n > 1) sb.append(',');
+                        sb.append(e.getKey()).append(':').append(e.getValue().version);
+                    }
+                    return sb.toString();
+                }
+                case "REPLICA_EXPORT": {
+                    Replica r = replicas.get(Integer.parseInt(p[1]));
+                    return r == null ? "ERROR|NoExiste" : "OK|" + r.state;
+                }
+                case "DELETE_ACCOUNT":
+                    if (delete(Integer.parseInt(p[1]))) record = cmd;
+                    return "OK";
+                case "ARQUEO":
+                    return "OK|" + money(totalCents) + "|" + count;
+                default:
+                    return "ERROR|UnknownOp";
+            }
+        }
+
+        // a transaction's time; its log record carries it as one more field, like CREAR_PRESTAMO's
+        // date, so replay gives the same one
+        private static long txTime(String[] p, int field) {
+            return p.length > field ? Long.parseLong(p[field]) : System.currentTimeMillis();
+        }
+
+        private static String stamped(String cmd, String[] p, int field, long time) {
+            return p.length > field ? cmd : cmd + "|" + time;
+        }
+
+        // HISTORIAL|account|cursor|limit|from|to|min|max -> OK|next|pos,type,amount,peer,time;...
+        // Looks at no more than HISTORY_SCAN records from position cursor and returns up to limit of
+        // them that pass the filters (empty = none; records without a time fail a time filter); next
+        // is -1 once the history is over
+        private String history(String[] p) {
+            int id = Integer.parseInt(p[1]);
+            int slot = slot(id);
+            if (slot < 0) return "ERROR|NoExiste";
+            int cursor = Integer.parseInt(p[2]), limit = Integer.parseInt(p[3]);
+            String[] f = Arrays.copyOf(p, 8);
+            long from = empty(f[4]) ? Long.MIN_VALUE : Long.parseLong(f[4]), to = empty(f[5]) ? Long.MAX_VALUE : Long.parseLong(f[5]);
+            long min = empty(f[6]) ? Long.MIN_VALUE : cents(f[6]), max = empty(f[7]) ? Long.MAX_VALUE : cents(f[7]);
+            boolean timed = !empty(f[4]) || !empty(f[5]);
+            int pos = 0, tx = txHead[slot];
+            int[] hint = historyCursors.get(id);
+            if (hint != null && hint[0] <= cursor) {
+                pos = hint[0];
+                tx = hint[1];
+            }
+            for (; tx != NONE && pos < cursor; pos++) tx = txNext[tx];
+            StringBuilder sb = new StringBuilder("OK|");
+            int mark = sb.length();
+            int found = 0;
+            for (int end = cursor + HISTORY_SCAN; tx != NONE && pos < end && found < limit; pos++, tx = txNext[tx]) {
+                long t = txTime[tx], cents = txAmount[tx];
+                if (timed && (t == 0 || t < from || t > to) || cents < min || cents > max) continue;
+                if (found++ > 0) sb.append(';');
+                sb.append(pos).append(',').append(txTypes.get(txType[tx])).append(',').append(money(cents)).append(',');
+                if (txPeer[tx] != EMPTY) sb.append(txPeer[tx]);
+                sb.append(',').append(t);
+            }
+            if (tx == NONE) {
+                historyCursors.remove(id);
+            } else {
+                historyCursors.put(id, new int[] { pos, tx });
+            }
+            sb.insert(mark, (tx == NONE ? -1 : pos) + "|");
+            return sb.toString();
+        }
+
+        // slots of the accounts with ids after `after`, at most limit of them, in id order
+        private int[] chunk(int after, int limit) {
+            int[] sorted = sortedIds();
+            int i = Arrays.binarySearch(sorted, after);
+            i = i < 0 ? -i - 1 : i + 1;
+            int n = Math.max(0, Math.min(limit, sorted.length - i));
+            int[] chunk = new int[n];
+            for (int k = 0; k < n; k++) chunk[k] = slot(sorted[i + k]);
+            return chunk;
+        }
+
+        // the indexes of a chunk, split over the fork-join pool once there are enough of them
+        private static IntStream over(int n) {
+            IntStream s = IntStream.range(0, n);
+            return n >= PARALLEL_MIN ? s.parallel() : s;
+        }
+
+        // ACCRUE_INTEREST|run|rate%|after|limit -> OK|last id|accounts|loans|interest|id:interest,...
+        // Adds rate% of what is pending to every active loan of the chunk's accounts, to its total and
+        // its pending amount. A loan remembers the last run applied to it, so repeating a chunk (a
+        // resumed run) charges nothing twice. last id is -1 once no account follows `after`.
+        private String accrueInterest(String cmd, String[] p) {
+            int run = runCode(p[1]);
+            double rate = Double.parseDouble(p[2]);
+            int[] chunk = chunk(Integer.parseInt(p[3]), Integer.parseInt(p[4]));
+            long[] interest = new long[chunk.length];
+            int[] charged = new int[chunk.length];
+            // an account's loans are its own: the accounts of a chunk can be charged in parallel
+            over(chunk.length).forEach(i -> {
+                for (int loan = loanHead[chunk[i]]; loan != NONE; loan = loanNext[loan]) {
+                    if (loanState[loan] != ACTIVE || loanPending[loan] <= 0 || loanRun[loan] == run) continue;
+                    long cents = Math.round(loanPending[loan] * rate / 100);
+                    loanAmount[loan] += cents;
+                    loanPending[loan] += cents;
+                    loanRun[loan] = run;
+                    interest[i] += cents;
+                    charged[i]++;
+                }
+            });
+            long total = 0;
+            int loansCharged = 0;
+            StringBuilder changed = new StringBuilder();
+            for (int i = 0; i < chunk.length; i++) {
+                if (charged[i] == 0) continue;
+                total += interest[i];
+                loansCharged += charged[i];
+                if (changed.length() > 0) changed.append(',');
+                changed.append(ids[chunk[i]]).append(':').append(money(interest[i]));
+            }
+            if (loansCharged > 0) record = cmd;
+            int last = chunk.length == 0 ? -1 : ids[chunk[chunk.length - 1]];
+            return "OK|" + last + "|" + chunk.length + "|" + loansCharged + "|" + money(total) + "|" + changed;
+        }
+
+        // LOAN_REPORT|after|limit|cutoff -> OK|last id|accounts|active|cancelled|amount|pending|overdue|overdue pending
+        // An active loan with nothing paid, requested before cutoff (yyyy-MM-dd HH:mm:ss), is overdue
+        private String loanReport(String[] p) {
+            int[] chunk = chunk(Integer.parseInt(p[1]), Integer.parseInt(p[2]));
+            long cutoff = epochSeconds(p[3]);
+            long[] t = over(chunk.length).collect(() -> new long[6], (acc, i) -> {
+                for (int loan = loanHead[chunk[i]]; loan != NONE; loan = loanNext[loan]) {
+                    if (loanState[loan] != ACTIVE) {
+                        acc[1]++;
+                    } else {
+                        acc[0]++;
+                        if (loanPending[loan] > 0 && loanPending[loan] >= loanAmount[loan] && loanDate[loan] < cutoff) {
+                            acc[4]++;
+                            acc[5] += loanPending[loan];
+                        }
+                    }
+                    acc[2] += loanAmount[loan];
+                    acc[3] += loanPending[loan];
+                }
+            }, (a, b) -> {
+                for (int k = 0; k < a.length; k++) a[k] += b[k];
+            });
+            int last = chunk.length == 0 ? -1 : ids[chunk[chunk.length - 1]];
+            return "OK|" + last + "|" + chunk.length + "|" + t[0] + "|" + t[1] + "|" + money(t[2]) + "|" + money(t[3])
+                + "|" + t[4] + "|" + money(t[5]);
+        }
+
+        private static boolean empty(String field) {
+            return field == null || field.isEmpty();
+        }
+
+        // all states are parsed before any is stored; returns whether a copy changed
+        private boolean putReplicas(long version, List<String> states) {
+            List<Map<String, Object>> parsed = new ArrayList<>(states.size());
+            for (String payload : states) parsed.add(Json.object(payload));
+            boolean changed = false;
+            for (int i = 0; i < states.size(); i++) {
+                int id = Json.intOf(parsed.get(i).get("id"));
+                Replica cur = replicas.get(id);
+                if (cur != null && cur.version >= version) continue;
+                String payload = states.get(i);
+                String account = Json.write(parsed.get(i).get("account"));
+                String exported = payload.substring(0, payload.lastIndexOf('}')) + ", \"version\": " + version + "}";
+                replicas.put(id, new Replica(version, account, exported));
+                changed = true;
+            }
+            return changed;
+        }
+
+        // ---- accounts ----
+
+        private void create(int id, long cents) {
+            int slot = slot(id);
+            if (slot < 0) {
+                slot = allocSlot();
+                ids[slot] = id;
+                held[slot] = 0;
+                holds[slot] = 0;
+                loanHead[slot] = loanTail[slot] = txHead[slot] = txTail[slot] = NONE;
+                balance[slot] = 0;
+                index(id, slot);
+                sortedIds = null;
+            }
+            clients[slot] = id;
+            addBalance(slot, cents - balance[slot]);
+        }
+
+        private boolean delete(int id) {
+            int slot = slot(id);
+            if (slot < 0) return false;
+            addBalance(slot, -balance[slot]);
+            freeLoans(slot);
+            freeTxs(slot);
+            unindex(id);
+            if (freeSlotCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+            freeSlots[freeSlotCount++] = slot;
+            sortedIds = null;
+            return true;
+        }
+
+        private void addBalance(int slot, long cents) {
+            balance[slot] += cents;
+            totalCents += cents;
+        }
+
+        private long[] release(String key) {
+            long[] hold = prepared.remove(key);
+            if (hold == null) return null;
+            int slot = slot((int) hold[0]);
+            if (slot >= 0) {
+                if (hold[2] == 1) held[slot] -= hold[1];
+                holds[slot]--;
+            }
+            return hold;
+        }
+
+        private int allocSlot() {
+            if (freeSlotCount > 0) return freeSlots[--freeSlotCount];
+            if (slots == ids.length) {
+                int n = slots * 2;
+                ids = Arrays.copyOf(ids, n);
+                clients = Arrays.copyOf(clients, n);
+                balance = Arrays.copyOf(balance, n);
+                held = Arrays.copyOf(held, n);
+                holds = Arrays.copyOf(holds, n);
+                loanHead = Arrays.copyOf(loanHead, n);
+                loanTail = Arrays.copyOf(loanTail, n);
+                txHead = Arrays.copyOf(txHead, n);
+                txTail = Arrays.copyOf(txTail, n);
+            }
+            return slots++;
+        }
+
+        private int[] sortedIds() {
+            if (sortedIds == null) {
+                int[] sorted = new int[count];
+                int n = 0;
+                for (int k : keys) {
+                    if (k != EMPTY) sorted[n++] = k;
+                }
+                Arrays.sort(sorted);
+                sortedIds = sorted;
+            }
+            return sortedIds;
+        }
+
+        // ---- index: linear probing, deletes shift later entries back so no tombstones build up ----
+
+        private static int hash(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private int slot(int id) {
+            int mask = keys.length - 1;
+            for (int i = hash(id) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == id) return values[i];
+                if (keys[i] == EMPTY) return -1;
+            }
+        }
+
+        private void index(int id, int slot) {
+            if ((count + 1) * 2 > keys.length) rehash(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = hash(id) & mask;
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = id;
+            values[i] = slot;
+            count++;
+        }
+
+        private void unindex(int id) {
+            int mask = keys.length - 1;
+            int i = hash(id) & mask;
+            while (keys[i] != id) {
+                if (keys[i] == EMPTY) return;
+                i = (i + 1) & mask;
+            }
+            for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+                // entries whose home lies cyclically in (i, j] are still reachable; the rest move back
+                boolean reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (reachable) continue;
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+            keys[i] = EMPTY;
+            count--;
+        }
+
+        private void rehash(int capacity) {
+            int[] oldKeys = keys, oldValues = values;
+            keys = filled(capacity, EMPTY);
+            values = new int[capacity];
+            count = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) index(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int[] filled(int n, int v) {
+            int[] a = new int[n];
+            Arrays.fill(a, v);
+            return a;
+        }
+
+        // ---- loans and transaction records ----
+
+        private int addLoan(int slot, int id, int client, long amount, long pending, byte state, long date) {
+            int loan;
+            if (freeLoan != NONE) {
+                loan = freeLoan;
+                freeLoan = loanNext[loan];
+            } else {
+                if (loans == loanId.length) {
+                    int n = loans * 2;
+                    loanId = Arrays.copyOf(loanId, n);
+                    loanClient = Arrays.copyOf(loanClient, n);
+                    loanNext = Arrays.copyOf(loanNext, n);
+                    loanAmount = Arrays.copyOf(loanAmount, n);
+                    loanPending = Arrays.copyOf(loanPending, n);
+                    loanDate = Arrays.copyOf(loanDate, n);
+                    loanState = Arrays.copyOf(loanState, n);
+                    loanRun = Arrays.copyOf(loanRun, n);
+                }
+                loan = loans++;
+            }
+            loanId[loan] = id;
+            loanClient[loan] = client;
+            loanAmount[loan] = amount;
+            loanPending[loan] = pending;
+            loanState[loan] = state;
+            loanDate[loan] = date;
+            loanRun[loan] = NONE;
+            loanNext[loan] = NONE;
+            if (loanTail[slot] == NONE) loanHead[slot] = loan;
+            else loanNext[loanTail[slot]] = loan;
+            loanTail[slot] = loan;
+            return loan;
+        }
+
+        private void freeLoans(int slot) {
+            int loan = loanHead[slot];
+            while (loan != NONE) {
+                int next = loanNext[loan];
+                loanNext[loan] = freeLoan;
+                freeLoan = loan;
+                loan = next;
+            }
+            loanHead[slot] = loanTail[slot] = NONE;
+        }
+
+        private void appendTx(int slot, byte type, long cents, int peer, long time) {
+            int tx;
+            if (freeTx != NONE) {
+                tx = freeTx;
+                freeTx = txNext[tx];
+            } else {
+                if (txs == txType.length) {
+                    int n = txs * 2;
+                    txType = Arrays.copyOf(txType, n);
+                    txAmount = Arrays.copyOf(txAmount, n);
+                    txTime = Arrays.copyOf(txTime, n);
+                    txPeer = Arrays.copyOf(txPeer, n);
+                    txNext = Arrays.copyOf(txNext, n);
+                }
+                tx = txs++;
+            }
+            txType[tx] = type;
+            txAmount[tx] = cents;
+            txTime[tx] = time;
+            txPeer[tx] = peer;
+            txNext[tx] = NONE;
+            if (txTail[slot] == NONE) txHead[slot] = tx;
+            else txNext[txTail[slot]] = tx;
+            txTail[slot] = tx;
+        }
+
+        private void freeTxs(int slot) {
+            historyCursors.remove(ids[slot]);
+            int tx = txHead[slot];
+            while (tx != NONE) {
+                int next = txNext[tx];
+                txNext[tx] = freeTx;
+                freeTx = tx;
+                tx = next;
+            }
+            txHead[slot] = txTail[slot] = NONE;
+        }
+
+        // ---- snapshots ----
+
+        private static final int SNAPSHOT_MAGIC = 0x57534E50; // "WSNP"
+        private static final int SNAPSHOT_FORMAT = 3; // 2 added txTime, 3 loanRun; older snapshots still load
+
+        // everything a snapshot holds, copied so commands can go on while it is written
+        Store copy() {
+            Store c = new Store();
+            c.keys = keys.clone();
+            c.values = values.clone();
+            c.count = count;
+            c.slots = slots;
+            c.ids = Arrays.copyOf(ids, slots);
+            c.clients = Arrays.copyOf(clients, slots);
+            c.balance = Arrays.copyOf(balance, slots);
+            c.held = Arrays.copyOf(held, slots);
+            c.holds = Arrays.copyOf(holds, slots);
+            c.loanHead = Arrays.copyOf(loanHead, slots);
+            c.loanTail = Arrays.copyOf(loanTail, slots);
+            c.txHead = Arrays.copyOf(txHead, slots);
+            c.txTail = Arrays.copyOf(txTail, slots);
+            c.freeSlots = Arrays.copyOf(freeSlots, freeSlotCount);
+            c.freeSlotCount = freeSlotCount;
+            c.totalCents = totalCents;
+            c.loans = loans;
+            c.freeLoan = freeLoan;
+            c.loanId = Arrays.copyOf(loanId, loans);
+            c.loanClient = Arrays.copyOf(loanClient, loans);
+            c.loanNext = Arrays.copyOf(loanNext, loans);
+            c.loanAmount = Arrays.copyOf(loanAmount, loans);
+            c.loanPending = Arrays.copyOf(loanPending, loans);
+            c.loanDate = Arrays.copyOf(loanDate, loans);
+            c.loanState = Arrays.copyOf(loanState, loans);
+            c.loanRun = Arrays.copyOf(loanRun, loans);
+            c.runIds = new ArrayList<>(runIds);
+            c.loanCounter = loanCounter;
+            c.txs = txs;
+            c.freeTx = freeTx;
+            c.txType = Arrays.copyOf(txType, txs);
+            c.txAmount = Arrays.copyOf(txAmount, txs);
+            c.txTime = Arrays.copyOf(txTime, txs);
+            c.txPeer = Arrays.copyOf(txPeer, txs);
+            c.txNext = Arrays.copyOf(txNext, txs);
+            c.txTypes = new ArrayList<>(txTypes);
+            c.loanStates = new ArrayList<>(loanStates);
+            c.prepared.putAll(prepared); // holds are never changed in place
+            c.replicas.putAll(replicas);
+            return c;
+        }
+
+        void save(Mapped out, long seq) throws IOException {
+            out.putInt(SNAPSHOT_MAGIC);
+            out.putInt(SNAPSHOT_FORMAT);
+            out.putLong(seq);
+            out.putInt(keys.length);
+            out.putInt(count);
+            out.putInt(slots);
+            out.putInt(freeSlotCount);
+            out.putInt(loans);
+            out.putInt(freeLoan);
+            out.putInt(loanCounter);
+            out.putInt(txs);
+            out.putInt(freeTx);
+            out.putLong(totalCents);
+            out.putInts(keys, keys.length);
+            out.putInts(values, keys.length);
+            out.putInts(ids, slots);
+            out.putInts(clients, slots);
+            out.putLongs(balance, slots);
+            out.putLongs(held, slots);
+            out.putInts(holds, slots);
+            out.putInts(loanHead, slots);
+            out.putInts(loanTail, slots);
+            out.putInts(txHead, slots);
+            out.putInts(txTail, slots);
+            out.putInts(freeSlots, freeSlotCount);
+            out.putInts(loanId, loans);
+            out.putInts(loanClient, loans);
+            out.putInts(loanNext, loans);
+            out.putLongs(loanAmount, loans);
+            out.putLongs(loanPending, loans);
+            out.putLongs(loanDate, loans);
+            out.putBytes(loanState, loans);
+            out.putInts(loanRun, loans);
+            out.putBytes(txType, txs);
+            out.putLongs(txAmount, txs);
+            out.putLongs(txTime, txs);
+            out.putInts(txPeer, txs);
+            out.putInts(txNext, txs);
+            for (List<String> names : Arrays.asList(txTypes, loanStates, runIds)) {
+                out.putInt(names.size());
+                for (String name : names) out.putString(name);
+            }
+            out.putInt(prepared.size());
+            for (Map.Entry<String, long[]> e : prepared.entrySet()) {
+                out.putString(e.getKey());
+                for (long v : e.getValue()) out.putLong(v);
+            }
+            out.putInt(replicas.size());
+            for (Map.Entry<Integer, Replica> e : replicas.entrySet()) {
+                out.putInt(e.getKey());
+                out.putLong(e.getValue().version);
+                out.putString(e.getValue().account);
+                out.putString(e.getValue().state);
+            }
+            // a snapshot that ends anywhere else was not written by save()
+            out.putInt(SNAPSHOT_MAGIC);
+            out.putLong(seq);
+        }
+
+        // replaces an empty store with a saved one; returns the last log record it holds
+        long load(Mapped in) throws IOException {
+            int format = in.getInt() == SNAPSHOT_MAGIC ? in.getInt() : -1;
+            if (format < 1 || format > SNAPSHOT_FORMAT) throw new IOException("not a worker snapshot");
+            long seq = in.getLong();
+            int capacity = in.getInt();
+            count = in.getInt();
+            slots = in.getInt();
+            freeSlotCount = in.getInt();
+            loans = in.getInt();
+            freeLoan = in.getInt();
+            loanCounter = in.getInt();
+            txs = in.getInt();
+            freeTx = in.getInt();
+            totalCents = in.getLong();
+            keys = in.getInts(capacity, 0);
+            values = in.getInts(capacity, 0);
+            // columns keep their usual minimum size, they grow by doubling
+            ids = in.getInts(slots, 1024);
+            clients = in.getInts(slots, 1024);
+            balance = in.getLongs(slots, 1024);
+            held = in.getLongs(slots, 1024);
+            holds = in.getInts(slots, 1024);
+            loanHead = in.getInts(slots, 1024);
+            loanTail = in.getInts(slots, 1024);
+            txHead = in.getInts(slots, 1024);
+            txTail = in.getInts(slots, 1024);
+            freeSlots = in.getInts(freeSlotCount, 16);
+            loanId = in.getInts(loans, 256);
+            loanClient = in.getInts(loans, 256);
+            loanNext = in.getInts(loans, 256);
+            loanAmount = in.getLongs(loans, 256);
+            loanPending = in.getLongs(loans, 256);
+            loanDate = in.getLongs(loans, 256);
+            loanState = in.getBytes(loans, 256);
+            if (format > 2) {
+                loanRun = in.getInts(loans, 256);
+            } else {
+                loanRun = new int[Math.max(loans, 256)];
+                Arrays.fill(loanRun, NONE);
+            }
+            txType = in.getBytes(txs, 1024);
+            txAmount = in.getLongs(txs, 1024);
+            txTime = format > 1 ? in.getLongs(txs, 1024) : new long[Math.max(txs, 1024)];
+            txPeer = in.getInts(txs, 1024);
+            txNext = in.getInts(txs, 1024);
+            txTypes = names(in);
+            loanStates = names(in);
+            runIds = format > 2 ? names(in) : new ArrayList<>();
+            prepared.clear();
+            for (int n = in.getInt(); n > 0; n--) prepared.put(in.getString(), new long[] { in.getLong(), in.getLong(), in.getLong() });
+            replicas.clear();
+            for (int n = in.getInt(); n > 0; n--) {
+                int id = in.getInt();
+                long version = in.getLong();
+                replicas.put(id, new Replica(version, in.getString(), in.getString()));
+            }
+            if (in.getInt() != SNAPSHOT_MAGIC || in.getLong() != seq) throw new IOException("snapshot footer does not match its header");
+            sortedIds = null;
+            return seq;
+        }
+
+        private static List<String> names(Mapped in) throws IOException {
+            int n = in.getInt();
+            List<String> names = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) names.add(in.getString());
+            return names;
+        }
+
+        // ---- JSON, in the same shape as worker_node.py ----
+
+        private String accountJson(int slot) {
+            StringBuilder sb = new StringBuilder(64);
+            sb.append("{\"balance\": ").append(money(balance[slot])).append(", \"loans\": [");
+            for (int loan = loanHead[slot]; loan != NONE; loan = loanNext[loan]) {
+                if (loan != loanHead[slot]) sb.append(", ");
+                sb.append(loanId[loan]);
+            }
+            return sb.append("], \"id\": ").append(ids[slot]).append(", \"id_cliente\": ").append(clients[slot]).append('}').toString();
+        }
+
+        private String exportJson(int slot) {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"id\": \"").append(ids[slot]).append("\", \"account\": ").append(accountJson(slot)).append(", \"transactions\": [");
+            for (int tx = txHead[slot]; tx != NONE; tx = txNext[tx]) {
+                if (tx != txHead[slot]) sb.append(", ");
+                sb.append("{\"type\": ").append(Json.quote(txTypes.get(txType[tx])));
+                if (txType[tx] == TRANSFER_OUT) sb.append(", \"to\": \"").append(txPeer[tx]).append('"');
+                if (txType[tx] == TRANSFER_IN) sb.append(", \"from\": \"").append(txPeer[tx]).append('"');
+                sb.append(", \"amount\": ").append(money(txAmount[tx]));
+                if (txTime[tx] != 0) sb.append(", \"ts\": ").append(txTime[tx]);
+                sb.append('}');
+            }
+            sb.append("], \"loans\": [");
+            for (int loan = loanHead[slot]; loan != NONE; loan = loanNext[loan]) {
+                if (loan != loanHead[slot]) sb.append(", ");
+                sb.append("{\"id\": ").append(loanId[loan])
+                  .append(", \"id_cliente\": ").append(loanClient[loan])
+                  .append(", \"monto\": ").append(money(loanAmount[loan]))
+                  .append(", \"monto_pendiente\": ").append(money(loanPending[loan]))
+                  .append(", \"estado\": ").append(Json.quote(loanStates.get(loanState[loan])))
+                  .append(", \"fecha_solicitud\": \"").append(DATE.format(LocalDateTime.ofEpochSecond(loanDate[loan], 0, offset(loanDate[loan])))).append('"');
+                if (loanRun[loan] != NONE) sb.append(", \"ultimo_interes\": ").append(Json.quote(runIds.get(loanRun[loan])));
+                sb.append('}');
+            }
+            return sb.append("]}").toString();
+        }
+
+        // state exported by any worker implementation replaces the account here; all of it is read
+        // before anything changes, so a malformed state leaves the account as it was
+        @SuppressWarnings("unchecked")
+        private void importState(Map<String, Object> state) {
+            int id = Json.intOf(state.get("id"));
+            Map<String, Object> account = (Map<String, Object>) state.get("account");
+            long cents = Json.cents(account.get("balance"));
+            Object clientId = account.get("id_cliente");
+            int client = clientId == null ? id : Json.intOf(clientId);
+            List<long[]> txList = new ArrayList<>(); // {type, cents, peer, time}
+            if (state.get("transactions") instanceof List) {
+                for (Object o : (List<Object>) state.get("transactions")) {
+                    Map<String, Object> t = (Map<String, Object>) o;
+                    Object peer = t.containsKey("to") ? t.get("to") : t.get("from");
+                    Object ts = t.get("ts");
+                    txList.add(new long[] { code(txTypes, (String) t.get("type")), Json.cents(t.get("amount")), peer == null ? EMPTY : Json.intOf(peer),
+                        ts == null ? 0 : ((Number) ts).longValue() });
+                }
+            }
+            List<long[]> loanList = new ArrayList<>(); // {id, client, amount, pending, state, date, run}
+            if (state.get("loans") instanceof List) {
+                for (Object o : (List<Object>) state.get("loans")) {
+                    Map<String, Object> l = (Map<String, Object>) o;
+                    Object loanClientId = l.get("id_cliente"), estado = l.get("estado"), run = l.get("ultimo_interes");
+                    loanList.add(new long[] { Json.intOf(l.get("id")), loanClientId == null ? client : Json.intOf(loanClientId),
+                        Json.cents(l.get("monto")), Json.cents(l.get("monto_pendiente")),
+                        code(loanStates, estado == null ? "Activo" : (String) estado), epochSeconds((String) l.get("fecha_solicitud")),
+                        run == null ? NONE : runCode((String) run) });
+                }
+            }
+            delete(id);
+            create(id, cents);
+            int slot = slot(id);
+            clients[slot] = client;
+            for (long[] t : txList) appendTx(slot, (byte) t[0], t[1], (int) t[2], t[3]);
+            for (long[] l : loanList) {
+                int loan = addLoan(slot, (int) l[0], (int) l[1], l[2], l[3], (byte) l[4], l[5]);
+                loanRun[loan] = (int) l[6];
+                // imported loan ids must not collide with the ones created here
+                loanCounter = Math.max(loanCounter, (int) l[0]);
+            }
+        }
+
+        // index of a type or state name, adding names another implementation may have used
+        private static byte code(List<String> names, String name) {
+            int i = names.indexOf(name);
+            if (i >= 0) return (byte) i;
+            names.add(name);
+            return (byte) (names.size() - 1);
+        }
+
+        private int runCode(String run) {
+            int i = runIds.indexOf(run);
+            if (i >= 0) return i;
+            runIds.add(run);
+            return runIds.size() - 1;
+        }
+
+        private static long epochSeconds(String date) {
+            try {
+                LocalDateTime t = LocalDateTime.parse(date, DATE);
+                return t.atZone(ZoneId.systemDefault()).toEpochSecond();
+            } catch (RuntimeException e) {
+                return 0; // missing or in another format
+            }
+        }
+
+        private static ZoneOffset offset(long epochSecond) {
+            return ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochSecond(epochSecond));
+        }
+
+        private static long cents(String amount) {
+            return Math.round(Double.parseDouble(amount) * 100);
+        }
+
+        // cents as the Python worker prints a float: 1000.0, 25.5, 18.32
+        static String money(long cents) {
+            long abs = Math.abs(cents), whole = abs / 100, frac = abs % 100;
+            String sign = cents < 0 ? "-" : "";
+            if (frac == 0) return sign + whole + ".0";
+            if (frac % 10 == 0) return sign + whole + "." + frac / 10;
+            return sign + whole + (frac < 10 ? ".0" : ".") + frac;
+        }
+    }
+
+    // Just enough JSON for the account states other workers export: objects, arrays, strings,
+    // numbers (Long when integral, Double otherwise), booleans and null.
+    static final class Json {
+        private final String s;
+        private int i;
+
+        private Json(String s) {
+            this.s = s;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Map<String, Object> object(String text) {
+            Json p = new Json(text);
+            Object v = p.value();
+            p.space();
+            if (!(v instanceof Map) || p.i != text.length()) throw new IllegalArgumentException("not a JSON object");
+            return (Map<String, Object>) v;
+        }
+
+        // the raw text of each element of a JSON array, so states can be stored as they came
+        static List<String> elements(String text) {
+            Json p = new Json(text);
+            p.space();
+            p.expect('[');
+            List<String> out = new ArrayList<>();
+            p.space();
+            if (p.s.charAt(p.i) == ']') {
+                p.i++;
+            } else {
+                while (true) {
+                    p.space();
+                    int start = p.i;
+                    p.value();
+                    out.add(text.substring(start, p.i));
+                    p.space();
+                    if (p.s.charAt(p.i) == ']') { p.i++; break; }
+                    p.expect(',');
+                }
+            }
+            p.space();
+            if (p.i != text.length()) throw new IllegalArgumentException("not a JSON array");
+            return out;
+        }
+
+        static int intOf(Object v) {
+            return v instanceof Number ? ((Number) v).intValue() : Integer.parseInt(v.toString().trim());
+        }
+
+        static long cents(Object v) {
+            return Math.round(((Number) v).doubleValue() * 100);
+        }
+
+        private Object value() {
+            space();
+            char c = s.charAt(i);
+            switch (c) {
+                case '{': {
+                    i++;
+                    Map<String, Object> m = new LinkedHashMap<>();
+                    space();
+                    if (s.charAt(i) == '}') { i++; return m; }
+                    while (true) {
+                        space();
+                        String key = string();
+                        space();
+                        expect(':');
+                        m.put(key, value());
+                        space();
+                        if (s.charAt(i) == '}') { i++; return m; }
+                        expect(',');
+                    }
+                }
+                case '[': {
+                    i++;
+                    List<Object> l = new ArrayList<>();
+                    space();
+                    if (s.charAt(i) == ']') { i++; return l; }
+                    while (true) {
+                        l.add(value());
+                        space();
+                        if (s.charAt(i) == ']') { i++; return l; }
+                        expect(',');
+                    }
+                }
+                case '"':
+                    return string();
+                case 't':
+                    return literal("true", Boolean.TRUE);
+                case 'f':
+                    return literal("false", Boolean.FALSE);
+                case 'n':
+                    return literal("null", null);
+                default: {
+                    int start = i;
+                    while (i < s.length() && "+-0123456789.eE".indexOf(s.charAt(i)) >= 0) i++;
+                    String num = s.substring(start, i);
+                    if (num.isEmpty()) throw new IllegalArgumentException("unexpected '" + c + "' at " + start);
+                    boolean integral = num.indexOf('.') < 0 && num.indexOf('e') < 0 && num.indexOf('E') < 0;
+                    return integral ? (Object) Long.parseLong(num) : (Object) Double.parseDouble(num);
+                }
+            }
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = s.charAt(i++);
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = s.charAt(i++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u': sb.append((char) Integer.parseInt(s.substring(i, i + 4), 16)); i += 4; break;
+                    default: sb.append(e);
+                }
+            }
+        }
+
+        private Object literal(String word, Object v) {
+            if (!s.startsWith(word, i)) throw new IllegalArgumentException("bad literal at " + i);
+            i += word.length();
+            return v;
+        }
+
+        private void expect(char c) {
+            if (s.charAt(i) != c) throw new IllegalArgumentException("expected '" + c + "' at " + i);
+            i++;
+        }
+
+        private void space() {
+            while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++;
+        }
+
+        static String write(Object v) {
+            StringBuilder sb = new StringBuilder();
+            write(v, sb);
+            return sb.toString();
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void write(Object v, StringBuilder sb) {
+            if (v == null) {
+                sb.append("null");
+            } else if (v instanceof String) {
+                sb.append(quote((String) v));
+            } else if (v instanceof Map) {
+                sb.append('{');
+                boolean first = true;
+                for (Map.Entry<String, Object> e : ((Map<String, Object>) v).entrySet()) {
+                    if (!first) sb.append(", ");
+                    first = false;
+                    sb.append(quote(e.getKey())).append(": ");
+                    write(e.getValue(), sb);
+                }
+                sb.append('}');
+            } else if (v instanceof List) {
+                sb.append('[');
+                boolean first = true;
+                for (Object o : (List<Object>) v) {
+                    if (!first) sb.append(", ");
+                    first = false;
+                    write(o, sb);
+                }
+                sb.append(']');
+            } else {
+                sb.append(v); // Long, Double (Java prints 1000.0 like Python) or Boolean
+            }
+        }
+
+        static String quote(String s) {
+            StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            return sb.append('"').toString();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import (
 	"net"
 	"os"
 	"strconv"
+	"strings"
 	"sync"
 	"time"
 )
@@ -42,9 +43,27 @@ func sendAndRecv(msg string) string {
 }
 
 func createAccounts(n int, initial float64) {
-	msg := fmt.Sprintf("CREATE_ACCOUNTS|%d|%.2f", n, initial)
-	resp := sendAndRecv(msg)
-	fmt.Println(resp)
+	conn, err := net.Dial("tcp", fmt.Sprintf("%s:%d", HOST, PORT))
+	if err != nil {
+		fmt.Printf("ERROR|%v\n", err)
+		return
+	}
+	defer conn.Close()
+
+	fmt.Fprintf(conn, "CLIENT_BANK|bank_go\n")
+	scanner := bufio.NewScanner(conn)
+	scanner.Scan()
+
+	fmt.Fprintf(conn, "CREATE_ACCOUNTS|%d|%.2f\n", n, initial)
+
+	// INFO y PROGRESS|creadas|total hasta recibir DONE o ERROR
+	for scanner.Scan() {
+		line := scanner.Text()
+		fmt.Println(line)
+		if strings.HasPrefix(line, "DONE") || strings.HasPrefix(line, "ERROR") {
+			return
+		}
+	}
 }
 
 func consultAccount(aid int) {
@@ -1,9 +1,14 @@
 #!/usr/bin/env python3
 
-import socket, sys, time, random, threading
+import socket, struct, sys, time, random, threading
 
 HOST = "localhost"
 PORT = 9000
+BIN = False  # --bin: usar el protocolo binario (CLIENT_BANK_BIN)
+
+# Códigos de operación y estado del protocolo binario (ver README)
+OP_QUERY, OP_TRANSFER, OP_LOAN_STATUS, OP_CREATE_LOAN, OP_PAY_LOAN, OP_ARQUEO, OP_ARQUEO_RAPIDO, OP_CREATE_ACCOUNTS = range(1, 9)
+ST_OK, ST_ERROR, ST_PROGRESS = 0, 1, 2
 
 
 def send_and_recv(msg):
@@ -25,50 +30,134 @@ def send_and_recv(msg):
             pass
 
 
+def _read_exact(f, n):
+    data = f.read(n)
+    if len(data) < n:
+        raise ConnectionError("conexión cerrada")
+    return data
+
+
+def send_bin(op, fmt="", *fields):
+    """Envía una trama binaria y devuelve la respuesta en el mismo formato texto que el protocolo clásico."""
+    try:
+        s = socket.create_connection((HOST, PORT))
+        f = s.makefile("rb")
+        s.sendall(b"CLIENT_BANK_BIN|bank1\n")
+        if not f.readline().startswith(b"WELCOME|CentralServer|BIN"):
+            return "ERROR|BinarioNoSoportado"
+        body = struct.pack(">iB" + fmt, 1, op, *fields)
+        s.sendall(struct.pack(">i", len(body)) + body)
+        while True:
+            (n,) = struct.unpack(">i", _read_exact(f, 4))
+            frame = _read_exact(f, n)
+            status, payload = frame[5], frame[6:]
+            if status == ST_PROGRESS:
+                print("PROGRESS|%d|%d" % struct.unpack(">ii", payload))
+                continue
+            if status == ST_ERROR:
+                return "ERROR|" + payload.decode()
+            if op in (OP_ARQUEO, OP_ARQUEO_RAPIDO):
+                cents, accounts, answered, asked = struct.unpack(">qqii", payload[:24])
+                resp = f"OK|TotalBalance:{cents / 100}|TotalAccounts:{accounts}|Workers:{answered}/{asked}"
+                if op == OP_ARQUEO_RAPIDO:
+                    resp += "|Cached:%d" % struct.unpack(">i", payload[24:28])
+                return resp
+            if op == OP_CREATE_ACCOUNTS:
+                return "DONE|Created:%d" % struct.unpack(">i", payload)
+            return "OK|" + payload.decode()
+    except Exception as e:
+        return f"ERROR|{e}"
+    finally:
+        try:
+            s.close()
+        except:
+            pass
+
+
+def cents(amount):
+    return int(round(float(amount) * 100))
+
+
 def create_accounts(n, initial):
-    """Crea 'n' cuentas con saldo inicial 'initial'."""
-    resp = send_and_recv(f"CREATE_ACCOUNTS|{n}|{initial}")
-    print(resp)
+    """Crea 'n' cuentas con saldo inicial 'initial' mostrando el progreso."""
+    if BIN:
+        print(send_bin(OP_CREATE_ACCOUNTS, "iq", n, cents(initial)))
+        return
+    try:
+        s = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        s.connect((HOST, PORT))
+        f = s.makefile("rw")
+        f.write("CLIENT_BANK|bank1\n")
+        f.flush()
+        f.readline()  # Mensaje de bienvenida
+        f.write(f"CREATE_ACCOUNTS|{n}|{initial}\n")
+        f.flush()
+        # INFO y PROGRESS|creadas|total hasta recibir DONE o ERROR
+        for line in f:
+            line = line.strip()
+            print(line)
+            if line.startswith("DONE") or line.startswith("ERROR"):
+                break
+    except Exception as e:
+        print(f"ERROR|{e}")
+    finally:
+        try:
+            s.close()
+        except:
+            pass
 
 
 def consult_account(aid):
     """Consulta el estado de la cuenta con id 'aid'."""
-    resp = send_and_recv(f"CONSULTAR_CUENTA|{aid}")
+    if BIN:
+        resp = send_bin(OP_QUERY, "i", int(aid))
+    else:
+        resp = send_and_recv(f"CONSULTAR_CUENTA|{aid}")
     print(resp)
 
 
 def transfer(a, b, m):
     """Transfiere un monto exacto de una cuenta a otra."""
-    msg = f"TRANSFERIR_CUENTA|{a}|{b}|{m}"
-    resp = send_and_recv(msg)
+    if BIN:
+        resp = send_bin(OP_TRANSFER, "iiq", int(a), int(b), cents(m))
+    else:
+        resp = send_and_recv(f"TRANSFERIR_CUENTA|{a}|{b}|{m}")
     print(resp)
 
 
 def create_loan(account_id, amount):
     """Crea un préstamo para una cuenta."""
-    msg = f"CREAR_PRESTAMO|{account_id}|{amount}|{amount}"
-    resp = send_and_recv(msg)
+    if BIN:
+        resp = send_bin(OP_CREATE_LOAN, "iqq", int(account_id), cents(amount), cents(amount))
+    else:
+        resp = send_and_recv(f"CREAR_PRESTAMO|{account_id}|{amount}|{amount}")
     print(resp)
 
 
 def pay_loan(account_id, loan_id, amount):
     """Paga una parte del préstamo."""
-    msg = f"PAGAR_PRESTAMO|{account_id}|{loan_id}|{amount}"
-    resp = send_and_recv(msg)
+    if BIN:
+        resp = send_bin(OP_PAY_LOAN, "iiq", int(account_id), int(loan_id), cents(amount))
+    else:
+        resp = send_and_recv(f"PAGAR_PRESTAMO|{account_id}|{loan_id}|{amount}")
     print(resp)
 
 
 def loan_status(account_id):
     """Consulta el estado de préstamos de una cuenta."""
-    msg = f"ESTADO_PAGO_PRESTAMO|{account_id}"
-    resp = send_and_recv(msg)
+    if BIN:
+        resp = send_bin(OP_LOAN_STATUS, "i", int(account_id))
+    else:
+        resp = send_and_recv(f"ESTADO_PAGO_PRESTAMO|{account_id}")
     print(resp)
 
 
 def arqueo():
     """Realiza un arqueo total del sistema."""
-    msg = "ARQUEO"
-    resp = send_and_recv(msg)
+    if BIN:
+        resp = send_bin(OP_ARQUEO, "iB", 0, 0)
+    else:
+        resp = send_and_recv("ARQUEO")
     print(resp)
 
 
@@ -94,6 +183,10 @@ def stress_test(num_tx=100, max_acc=100, max_amt=100):
 
 
 if __name__ == "__main__":
+    if len(sys.argv) >= 2 and sys.argv[1] == "--bin":
+        BIN = True
+        del sys.argv[1]
+
     if len(sys.argv) >= 2 and sys.argv[1] == "create":
         # Por defecto crea 10000 cuentas con 100.0 cada una
         create_accounts(10000, 100.0)
@@ -143,7 +236,7 @@ if __name__ == "__main__":
         arqueo()
 
     else:
-        print("Uso:")
+        print("Uso: (anteponer --bin para usar el protocolo binario)")
         print("  bank_client.py create")
         print("  bank_client.py consult <id>")
         print("  bank_client.py transfer <from> <to> <amt>")
@@ -30,6 +30,9 @@ echo ""
 # Limpiar archivos de datos de workers
 echo "[3/4] Limpiando archivos de datos de workers..."
 find . -name "worker_*_data.json" -type f -delete
+find . -name "worker_*.wal" -type f -delete
+find . -name "worker_*.snap" -type f -delete
+rm -f bench-results.json
 if [ $? -eq 0 ]; then
     echo "✓ Archivos de datos de workers eliminados"
 else
@@ -7,7 +7,7 @@ echo ""
 
 # Compilar Java
 echo "[1/2] Compilando componentes Java..."
-javac CentralServer.java ChatClient.java
+javac CentralServer.java ChatClient.java CentralBench.java CentralLoad.java WorkerNode.java
 if [ $? -eq 0 ]; then
     echo "✓ Java compilado exitosamente"
 else
@@ -49,5 +49,6 @@ echo "  1. Terminal 1: java CentralServer"
 echo "  2. Terminal 2: python worker_node.py w0"
 echo "  3. Terminal 3: python worker_node.py w1"
 echo "  4. Terminal 4: ./worker_go w_go1"
+echo "     (o un worker Java: java WorkerNode w2)"
 echo "  5. Terminal 5: python bank_client.py create"
 echo ""
@@ -4,8 +4,10 @@ import (
 	"bufio"
 	"encoding/json"
 	"fmt"
+	"math"
 	"net"
 	"os"
+	"sort"
 	"strconv"
 	"strings"
 	"sync"
@@ -24,6 +26,7 @@ type Loan struct {
 	MontoPendiente  float64 `json:"monto_pendiente"`
 	Estado          string  `json:"estado"`
 	FechaSolicitud  string  `json:"fecha_solicitud"`
+	UltimoInteres   string  `json:"ultimo_interes,omitempty"` // último lote ACCRUE_INTEREST aplicado
 }
 
 type Account struct {
@@ -38,6 +41,17 @@ type Transaction struct {
 	Amount float64 `json:"amount"`
 	To     string  `json:"to,omitempty"`
 	From   string  `json:"from,omitempty"`
+	Ts     int64   `json:"ts,omitempty"` // hora en milisegundos, por la que filtra HISTORIAL
+}
+
+// movimientos revisados como mucho por cada HISTORIAL, para que un filtro muy selectivo no bloquee al worker
+const historyScan = 10000
+
+// reserva de una transferencia preparada (2PC), por "tx:debit" o "tx:credit"
+type Hold struct {
+	Type    string  `json:"type"`
+	Account string  `json:"account"`
+	Amount  float64 `json:"amount"`
 }
 
 type Storage struct {
@@ -45,6 +59,8 @@ type Storage struct {
 	Transactions map[string][]Transaction      `json:"transactions"`
 	Loans        map[string][]Loan             `json:"loans"`
 	LoanCounter  int                           `json:"loan_counter"`
+	Prepared     map[string]Hold               `json:"prepared"`
+	Replicas     map[string]ReplicaState       `json:"replicas"`
 	mu           sync.Mutex
 }
 
@@ -69,17 +85,33 @@ func main() {
 			continue
 		}
 
-		fmt.Fprintf(conn, "WORKER|%s\n", workerID)
+		fmt.Fprintf(conn, "WORKER|%s|MUX\n", workerID)
 		fmt.Printf("Worker %s conectado al servidor %s:%d\n", workerID, CENTRAL_HOST, CENTRAL_PORT)
 
+		var writeMu sync.Mutex
 		scanner := bufio.NewScanner(conn)
 		for scanner.Scan() {
 			cmd := scanner.Text()
 			if cmd == "" {
 				continue
 			}
+			// "#tag|CMD": el servidor multiplexa peticiones, se atienden en paralelo
+			// y la respuesta lleva el mismo tag
+			if strings.HasPrefix(cmd, "#") && strings.Contains(cmd, "|") {
+				sep := strings.Index(cmd, "|")
+				tag, body := cmd[:sep+1], cmd[sep+1:]
+				go func() {
+					response := handleCommand(body)
+					writeMu.Lock()
+					fmt.Fprintf(conn, "%s%s\n", tag, response)
+					writeMu.Unlock()
+				}()
+				continue
+			}
 			response := handleCommand(cmd)
+			writeMu.Lock()
 			fmt.Fprintf(conn, "%s\n", response)
+			writeMu.Unlock()
 		}
 
 		conn.Close()
@@ -93,8 +125,13 @@ func handleCommand(cmd string) string {
 	op := parts[0]
 
 	switch op {
+	case "PING":
+		// latido del servidor
+		return "PONG"
 	case "CREATE_ACCOUNT":
 		return createAccount(parts)
+	case "CREATE_ACCOUNTS_BATCH":
+		return createAccountsBatch(parts)
 	case "CONSULTAR_CUENTA":
 		return consultAccount(parts)
 	case "DEBIT":
@@ -103,14 +140,52 @@ func handleCommand(cmd string) string {
 		return credit(parts)
 	case "RECORD_TX":
 		return recordTx(parts)
+	case "PREPARE_DEBIT":
+		return prepare("debit", parts)
+	case "PREPARE_CREDIT":
+		return prepare("credit", parts)
+	case "COMMIT":
+		return commitTx(parts)
+	case "ABORT":
+		return abortTx(parts)
+	case "LIST_PREPARED":
+		return listPrepared()
+	case "TRANSFER_LOCAL":
+		return transferLocal(parts)
 	case "CREAR_PRESTAMO":
 		return createLoan(parts)
 	case "PAGAR_PRESTAMO":
 		return payLoan(parts)
 	case "ESTADO_PAGO_PRESTAMO":
 		return loanStatus(parts)
+	case "HISTORIAL":
+		return history(parts)
+	case "ACCRUE_INTEREST":
+		return accrueInterest(parts)
+	case "LOAN_REPORT":
+		return loanReport(parts)
 	case "ARQUEO":
 		return arqueo()
+	case "LIST_ACCOUNTS":
+		return listAccounts(parts)
+	case "EXPORT_ACCOUNT":
+		return exportAccount(parts)
+	case "EXPORT_ACCOUNTS":
+		return exportAccounts(parts)
+	case "IMPORT_ACCOUNT":
+		return importAccount(strings.SplitN(cmd, "|", 2)[1])
+	case "DELETE_ACCOUNT":
+		return deleteAccount(parts)
+	case "REPLICA_PUT":
+		return replicaPut(strings.SplitN(cmd, "|", 3))
+	case "REPLICA_PUT_BATCH":
+		return replicaPutBatch(strings.SplitN(cmd, "|", 3))
+	case "REPLICA_GET":
+		return replicaGet(parts)
+	case "LIST_REPLICAS":
+		return listReplicas(parts)
+	case "REPLICA_EXPORT":
+		return replicaExport(parts)
 	default:
 		return "ERROR|UnknownOp"
 	}
@@ -134,6 +209,30 @@ func createAccount(parts []string) string {
 	return "OK"
 }
 
+// CREATE_ACCOUNTS_BATCH|saldo|id1,id2,... -> un solo guardado para todo el lote
+func createAccountsBatch(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	balance, _ := strconv.ParseFloat(parts[1], 64)
+	created := 0
+	for _, id := range strings.Split(parts[2], ",") {
+		idNum, err := strconv.Atoi(id)
+		if err != nil {
+			continue
+		}
+		storage.Accounts[id] = Account{
+			Balance:   balance,
+			Loans:     []int{},
+			ID:        idNum,
+			IDCliente: idNum,
+		}
+		created++
+	}
+	saveStorage()
+	return fmt.Sprintf("OK|%d", created)
+}
+
 func consultAccount(parts []string) string {
 	storage.mu.Lock()
 	defer storage.mu.Unlock()
@@ -159,7 +258,7 @@ func debit(parts []string) string {
 	if !exists {
 		return "ERROR|NoExiste"
 	}
-	if acc.Balance < amount {
+	if acc.Balance-held(id) < amount {
 		return "ERROR|SaldoInsuficiente"
 	}
 
@@ -169,6 +268,7 @@ func debit(parts []string) string {
 	storage.Transactions[id] = append(storage.Transactions[id], Transaction{
 		Type:   "debit",
 		Amount: amount,
+		Ts:     nowMillis(),
 	})
 
 	saveStorage()
@@ -193,6 +293,7 @@ func credit(parts []string) string {
 	storage.Transactions[id] = append(storage.Transactions[id], Transaction{
 		Type:   "credit",
 		Amount: amount,
+		Ts:     nowMillis(),
 	})
 
 	saveStorage()
@@ -211,18 +312,161 @@ func recordTx(parts []string) string {
 		Type:   "transfer_out",
 		To:     dst,
 		Amount: amount,
+		Ts:     nowMillis(),
 	})
 
 	storage.Transactions[dst] = append(storage.Transactions[dst], Transaction{
 		Type:   "transfer_in",
 		From:   src,
 		Amount: amount,
+		Ts:     nowMillis(),
 	})
 
 	saveStorage()
 	return "OK"
 }
 
+func nowMillis() int64 {
+	return time.Now().UnixNano() / int64(time.Millisecond)
+}
+
+// monto reservado por débitos preparados que aún no se confirman; requiere storage.mu
+func held(id string) float64 {
+	total := 0.0
+	for _, h := range storage.Prepared {
+		if h.Account == id && h.Type == "debit" {
+			total += h.Amount
+		}
+	}
+	return total
+}
+
+// aplica un lado de una transferencia y lo registra (lo que antes hacían DEBIT/CREDIT + RECORD_TX)
+func applyTransferSide(side, src, dst string, amount float64) {
+	if side == "debit" {
+		acc := storage.Accounts[src]
+		acc.Balance -= amount
+		storage.Accounts[src] = acc
+		storage.Transactions[src] = append(storage.Transactions[src],
+			Transaction{Type: "debit", Amount: amount, Ts: nowMillis()},
+			Transaction{Type: "transfer_out", To: dst, Amount: amount, Ts: nowMillis()})
+	} else {
+		acc := storage.Accounts[dst]
+		acc.Balance += amount
+		storage.Accounts[dst] = acc
+		storage.Transactions[dst] = append(storage.Transactions[dst],
+			Transaction{Type: "credit", Amount: amount, Ts: nowMillis()},
+			Transaction{Type: "transfer_in", From: src, Amount: amount, Ts: nowMillis()})
+	}
+}
+
+// PREPARE_DEBIT|tx|cuenta|monto / PREPARE_CREDIT|tx|cuenta|monto: fase 1 del 2PC;
+// el débito reserva el monto hasta COMMIT o ABORT
+func prepare(side string, parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	tx, id := parts[1], parts[2]
+	amount, _ := strconv.ParseFloat(parts[3], 64)
+
+	acc, exists := storage.Accounts[id]
+	if !exists {
+		return "ERROR|NoExiste"
+	}
+	key := tx + ":" + side
+	if _, ok := storage.Prepared[key]; ok {
+		return "OK"
+	}
+	if side == "debit" && acc.Balance-held(id) < amount {
+		return "ERROR|SaldoInsuficiente"
+	}
+	storage.Prepared[key] = Hold{Type: side, Account: id, Amount: amount}
+	saveStorage()
+	return "OK"
+}
+
+// COMMIT|tx|origen|destino|monto: aplica lo preparado para tx; repetirlo no tiene efecto
+func commitTx(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	tx, src, dst := parts[1], parts[2], parts[3]
+	amount, _ := strconv.ParseFloat(parts[4], 64)
+
+	changed := false
+	for _, side := range []string{"debit", "credit"} {
+		key := tx + ":" + side
+		if _, ok := storage.Prepared[key]; ok {
+			delete(storage.Prepared, key)
+			applyTransferSide(side, src, dst, amount)
+			changed = true
+		}
+	}
+	if changed {
+		saveStorage()
+	}
+	return "OK"
+}
+
+func abortTx(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	changed := false
+	for _, side := range []string{"debit", "credit"} {
+		key := parts[1] + ":" + side
+		if _, ok := storage.Prepared[key]; ok {
+			delete(storage.Prepared, key)
+			changed = true
+		}
+	}
+	if changed {
+		saveStorage()
+	}
+	return "OK"
+}
+
+func listPrepared() string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	seen := make(map[string]bool)
+	txs := []string{}
+	for key := range storage.Prepared {
+		tx := key[:strings.LastIndex(key, ":")]
+		if !seen[tx] {
+			seen[tx] = true
+			txs = append(txs, tx)
+		}
+	}
+	sort.Strings(txs)
+	return "OK|" + strings.Join(txs, ",")
+}
+
+// TRANSFER_LOCAL|tx|origen|destino|monto: ambas cuentas viven aquí, se hace en un solo paso
+func transferLocal(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	src, dst := parts[2], parts[3]
+	amount, _ := strconv.ParseFloat(parts[4], 64)
+
+	acc, exists := storage.Accounts[src]
+	if !exists {
+		return "ERROR|NoExiste"
+	}
+	if _, ok := storage.Accounts[dst]; !ok {
+		return "ERROR|DestinoNoExiste"
+	}
+	if acc.Balance-held(src) < amount {
+		return "ERROR|SaldoInsuficiente"
+	}
+	applyTransferSide("debit", src, dst, amount)
+	applyTransferSide("credit", src, dst, amount)
+	saveStorage()
+	return "OK"
+}
+
 func createLoan(parts []string) string {
 	storage.mu.Lock()
 	defer storage.mu.Unlock()
@@ -325,6 +569,57 @@ func loanStatus(parts []string) string {
 	return "OK|" + string(data)
 }
 
+// HISTORIAL|cuenta|cursor|limite|desde|hasta|min|max -> OK|siguiente|pos,tipo,monto,contraparte,ts;...
+// Recorre desde la posición cursor como mucho historyScan movimientos y devuelve hasta limite que
+// pasen los filtros (vacío = sin filtro; con filtro de fecha no pasan los movimientos sin hora).
+// siguiente es -1 cuando no quedan más movimientos
+func history(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	for len(parts) < 8 {
+		parts = append(parts, "")
+	}
+	aid := parts[1]
+	if _, exists := storage.Accounts[aid]; !exists {
+		return "ERROR|NoExiste"
+	}
+	cursor, err1 := strconv.Atoi(parts[2])
+	limit, err2 := strconv.Atoi(parts[3])
+	if err1 != nil || err2 != nil || cursor < 0 {
+		return "ERROR|FormatoInvalido"
+	}
+	since, _ := strconv.ParseInt(parts[4], 10, 64)
+	until, _ := strconv.ParseInt(parts[5], 10, 64)
+	low, _ := strconv.ParseFloat(parts[6], 64)
+	high, _ := strconv.ParseFloat(parts[7], 64)
+
+	txs := storage.Transactions[aid]
+	end := cursor + historyScan
+	if end > len(txs) {
+		end = len(txs)
+	}
+	out := []string{}
+	pos := cursor
+	for ; pos < end && len(out) < limit; pos++ {
+		t := txs[pos]
+		if (parts[4] != "" && (t.Ts == 0 || t.Ts < since)) || (parts[5] != "" && (t.Ts == 0 || t.Ts > until)) ||
+			(parts[6] != "" && t.Amount < low) || (parts[7] != "" && t.Amount > high) {
+			continue
+		}
+		peer := t.To
+		if peer == "" {
+			peer = t.From
+		}
+		out = append(out, fmt.Sprintf("%d,%s,%s,%s,%d", pos, t.Type, strconv.FormatFloat(t.Amount, 'f', -1, 64), peer, t.Ts))
+	}
+	next := pos
+	if pos >= len(txs) {
+		next = -1
+	}
+	return fmt.Sprintf("OK|%d|%s", next, strings.Join(out, ";"))
+}
+
 func arqueo() string {
 	storage.mu.Lock()
 	defer storage.mu.Unlock()
@@ -339,11 +634,353 @@ func arqueo() string {
 	return fmt.Sprintf("OK|%.2f|%d", totalBalance, totalAccounts)
 }
 
+// Estado completo de una cuenta, usado para migrarla entre workers
+type AccountState struct {
+	ID           string        `json:"id"`
+	Account      Account       `json:"account"`
+	Transactions []Transaction `json:"transactions"`
+	Loans        []Loan        `json:"loans"`
+}
+
+// LIST_ACCOUNTS|despues_de|limite -> ids ordenados, para recorrer la partición por páginas
+func listAccounts(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	after, _ := strconv.Atoi(parts[1])
+	limit, _ := strconv.Atoi(parts[2])
+	ids := idsAfter(after, limit)
+	out := make([]string, len(ids))
+	for i, n := range ids {
+		out[i] = strconv.Itoa(n)
+	}
+	return "OK|" + strings.Join(out, ",")
+}
+
+// ids ordenados de las cuentas propias mayores que after, como mucho limit (con el candado tomado)
+func idsAfter(after, limit int) []int {
+	ids := []int{}
+	for id := range storage.Accounts {
+		n, err := strconv.Atoi(id)
+		if err == nil && n > after {
+			ids = append(ids, n)
+		}
+	}
+	sort.Ints(ids)
+	if len(ids) > limit {
+		ids = ids[:limit]
+	}
+	return ids
+}
+
+func lastOf(ids []int) int {
+	if len(ids) == 0 {
+		return -1
+	}
+	return ids[len(ids)-1]
+}
+
+func round2(x float64) float64 {
+	return math.Round(x*100) / 100
+}
+
+// ACCRUE_INTEREST|lote|tasa%|despues_de|limite -> OK|ultimo id|cuentas|prestamos|interes|id:interes,...
+// Suma tasa% de lo pendiente a cada préstamo activo de las cuentas del tramo, al monto y a lo
+// pendiente. El préstamo recuerda el último lote aplicado, así que repetir un tramo (un lote
+// reanudado) no cobra dos veces. ultimo id es -1 cuando no quedan cuentas
+func accrueInterest(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	run := parts[1]
+	rate, err1 := strconv.ParseFloat(parts[2], 64)
+	after, err2 := strconv.Atoi(parts[3])
+	limit, err3 := strconv.Atoi(parts[4])
+	if err1 != nil || err2 != nil || err3 != nil {
+		return "ERROR|FormatoInvalido"
+	}
+	ids := idsAfter(after, limit)
+	total := 0.0
+	charged := 0
+	changed := []string{}
+	for _, n := range ids {
+		aid := strconv.Itoa(n)
+		loans := storage.Loans[aid]
+		touched := false
+		chargedHere := 0.0
+		for i := range loans {
+			loan := &loans[i]
+			if loan.Estado != "Activo" || loan.MontoPendiente <= 0 || loan.UltimoInteres == run {
+				continue
+			}
+			interest := round2(loan.MontoPendiente * rate / 100)
+			loan.Monto = round2(loan.Monto + interest)
+			loan.MontoPendiente = round2(loan.MontoPendiente + interest)
+			loan.UltimoInteres = run
+			total += interest
+			chargedHere += interest
+			charged++
+			touched = true
+		}
+		if touched {
+			changed = append(changed, aid+":"+strconv.FormatFloat(round2(chargedHere), 'f', -1, 64))
+		}
+	}
+	if charged > 0 {
+		saveStorage()
+	}
+	return fmt.Sprintf("OK|%d|%d|%d|%s|%s", lastOf(ids), len(ids), charged,
+		strconv.FormatFloat(round2(total), 'f', -1, 64), strings.Join(changed, ","))
+}
+
+// LOAN_REPORT|despues_de|limite|corte -> OK|ultimo id|cuentas|activos|cancelados|monto|pendiente|morosos|pendiente moroso
+// Un préstamo activo sin nada pagado y solicitado antes del corte (yyyy-MM-dd HH:mm:ss) es moroso
+func loanReport(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	after, err1 := strconv.Atoi(parts[1])
+	limit, err2 := strconv.Atoi(parts[2])
+	if err1 != nil || err2 != nil {
+		return "ERROR|FormatoInvalido"
+	}
+	cutoff := parts[3]
+	ids := idsAfter(after, limit)
+	active, cancelled, overdue := 0, 0, 0
+	amount, pending, overduePending := 0.0, 0.0, 0.0
+	for _, n := range ids {
+		for _, loan := range storage.Loans[strconv.Itoa(n)] {
+			if loan.Estado != "Activo" {
+				cancelled++
+			} else {
+				active++
+				if loan.MontoPendiente > 0 && loan.MontoPendiente >= loan.Monto && loan.FechaSolicitud < cutoff {
+					overdue++
+					overduePending += loan.MontoPendiente
+				}
+			}
+			amount += loan.Monto
+			pending += loan.MontoPendiente
+		}
+	}
+	f := func(x float64) string { return strconv.FormatFloat(round2(x), 'f', -1, 64) }
+	return fmt.Sprintf("OK|%d|%d|%d|%d|%s|%s|%d|%s", lastOf(ids), len(ids), active, cancelled,
+		f(amount), f(pending), overdue, f(overduePending))
+}
+
+func exportAccount(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	id := parts[1]
+	acc, exists := storage.Accounts[id]
+	if !exists {
+		return "ERROR|NoExiste"
+	}
+	// una reserva 2PC pendiente no viaja con la cuenta: el servidor reintenta la copia
+	for _, h := range storage.Prepared {
+		if h.Account == id {
+			return "ERROR|Reservada"
+		}
+	}
+	state := AccountState{ID: id, Account: acc, Transactions: storage.Transactions[id], Loans: storage.Loans[id]}
+	if state.Transactions == nil {
+		state.Transactions = []Transaction{}
+	}
+	if state.Loans == nil {
+		state.Loans = []Loan{}
+	}
+	data, _ := json.Marshal(state)
+	return "OK|" + string(data)
+}
+
+// EXPORT_ACCOUNTS|id1,id2,... -> OK|ids exportados|[estado, ...]: EXPORT_ACCOUNT de una página de
+// una vez; se omiten las cuentas que no existen o tienen una reserva 2PC pendiente
+func exportAccounts(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	reserved := map[string]bool{}
+	for _, h := range storage.Prepared {
+		reserved[h.Account] = true
+	}
+	ids := []string{}
+	states := []AccountState{}
+	if len(parts) > 1 {
+		for _, id := range strings.Split(parts[1], ",") {
+			acc, exists := storage.Accounts[id]
+			if !exists || reserved[id] {
+				continue
+			}
+			state := AccountState{ID: id, Account: acc, Transactions: storage.Transactions[id], Loans: storage.Loans[id]}
+			if state.Transactions == nil {
+				state.Transactions = []Transaction{}
+			}
+			if state.Loans == nil {
+				state.Loans = []Loan{}
+			}
+			ids = append(ids, id)
+			states = append(states, state)
+		}
+	}
+	data, _ := json.Marshal(states)
+	return "OK|" + strings.Join(ids, ",") + "|" + string(data)
+}
+
+func importAccount(payload string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	var state AccountState
+	if err := json.Unmarshal([]byte(payload), &state); err != nil {
+		return "ERROR|FormatoInvalido"
+	}
+	storage.Accounts[state.ID] = state.Account
+	storage.Transactions[state.ID] = state.Transactions
+	storage.Loans[state.ID] = state.Loans
+	// los IDs de préstamo importados no deben repetirse con los que se creen aquí
+	for _, loan := range state.Loans {
+		if loan.ID > storage.LoanCounter {
+			storage.LoanCounter = loan.ID
+		}
+	}
+	saveStorage()
+	return "OK"
+}
+
+// copia de respaldo de una cuenta cuyo primario es otro worker; se guarda aparte de las cuentas
+// propias para que ARQUEO y LIST_ACCOUNTS no la vean
+type ReplicaState struct {
+	AccountState
+	Version int64 `json:"version"`
+}
+
+// REPLICA_PUT|version|estado -> guarda la copia si es más nueva que la que ya tenemos
+func replicaPut(parts []string) string {
+	if len(parts) < 3 {
+		return "ERROR|FormatoInvalido"
+	}
+	version, err := strconv.ParseInt(parts[1], 10, 64)
+	if err != nil {
+		return "ERROR|FormatoInvalido"
+	}
+	var state AccountState
+	if err := json.Unmarshal([]byte(parts[2]), &state); err != nil {
+		return "ERROR|FormatoInvalido"
+	}
+
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	if cur, ok := storage.Replicas[state.ID]; ok && cur.Version >= version {
+		return "OK"
+	}
+	storage.Replicas[state.ID] = ReplicaState{AccountState: state, Version: version}
+	saveStorage()
+	return "OK"
+}
+
+// REPLICA_PUT_BATCH|version|[estado, ...] -> REPLICA_PUT de cada estado, guardando una sola vez
+func replicaPutBatch(parts []string) string {
+	if len(parts) < 3 {
+		return "ERROR|FormatoInvalido"
+	}
+	version, err := strconv.ParseInt(parts[1], 10, 64)
+	if err != nil {
+		return "ERROR|FormatoInvalido"
+	}
+	var states []AccountState
+	if err := json.Unmarshal([]byte(parts[2]), &states); err != nil {
+		return "ERROR|FormatoInvalido"
+	}
+
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	changed := false
+	for _, state := range states {
+		if cur, ok := storage.Replicas[state.ID]; ok && cur.Version >= version {
+			continue
+		}
+		storage.Replicas[state.ID] = ReplicaState{AccountState: state, Version: version}
+		changed = true
+	}
+	if changed {
+		saveStorage()
+	}
+	return "OK"
+}
+
+// REPLICA_GET|id -> misma respuesta que CONSULTAR_CUENTA, leída de la copia de respaldo
+func replicaGet(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	rep, ok := storage.Replicas[parts[1]]
+	if !ok {
+		return "ERROR|NoExiste"
+	}
+	data, _ := json.Marshal(rep.Account)
+	return "OK|" + string(data)
+}
+
+// LIST_REPLICAS|despues_de|limite -> "id:version" de las copias de respaldo, ordenadas por id
+func listReplicas(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	after, _ := strconv.Atoi(parts[1])
+	limit, _ := strconv.Atoi(parts[2])
+	ids := []int{}
+	for id := range storage.Replicas {
+		n, err := strconv.Atoi(id)
+		if err == nil && n > after {
+			ids = append(ids, n)
+		}
+	}
+	sort.Ints(ids)
+	if len(ids) > limit {
+		ids = ids[:limit]
+	}
+	out := make([]string, len(ids))
+	for i, n := range ids {
+		out[i] = strconv.Itoa(n) + ":" + strconv.FormatInt(storage.Replicas[strconv.Itoa(n)].Version, 10)
+	}
+	return "OK|" + strings.Join(out, ",")
+}
+
+// REPLICA_EXPORT|id -> como EXPORT_ACCOUNT pero desde la copia de respaldo (para promoverla si el primario cayó)
+func replicaExport(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	rep, ok := storage.Replicas[parts[1]]
+	if !ok {
+		return "ERROR|NoExiste"
+	}
+	data, _ := json.Marshal(rep)
+	return "OK|" + string(data)
+}
+
+func deleteAccount(parts []string) string {
+	storage.mu.Lock()
+	defer storage.mu.Unlock()
+
+	id := parts[1]
+	delete(storage.Accounts, id)
+	delete(storage.Transactions, id)
+	delete(storage.Loans, id)
+	saveStorage()
+	return "OK"
+}
+
 func loadStorage() {
 	storage.Accounts = make(map[string]Account)
 	storage.Transactions = make(map[string][]Transaction)
 	storage.Loans = make(map[string][]Loan)
 	storage.LoanCounter = 0
+	storage.Prepared = make(map[string]Hold)
+	storage.Replicas = make(map[string]ReplicaState)
 
 	data, err := os.ReadFile(storageFile)
 	if err != nil {
@@ -352,6 +989,12 @@ func loadStorage() {
 	}
 
 	json.Unmarshal(data, &storage)
+	if storage.Prepared == nil {
+		storage.Prepared = make(map[string]Hold)
+	}
+	if storage.Replicas == nil {
+		storage.Replicas = make(map[string]ReplicaState)
+	}
 }
 
 func saveStorage() {
@@ -9,6 +9,8 @@ STORAGE = f"worker_{WORKER_ID}_data.json"
 
 lock = threading.Lock()
 loan_counter = 0
+# movimientos revisados como mucho por cada HISTORIAL, para que un filtro muy selectivo no bloquee al worker
+HISTORY_SCAN = 10000
 
 if not os.path.exists(STORAGE):
     with open(STORAGE, "w") as f:
@@ -24,10 +26,33 @@ def save(data):
         with open(STORAGE, "w") as f:
             json.dump(data, f, indent=2)
 
+def mov(kind, amt, **peer):
+    """Movimiento de una cuenta con su hora en milisegundos, por la que filtra HISTORIAL."""
+    return {"type": kind, **peer, "amount": amt, "ts": int(time.time() * 1000)}
+
+def held(data, aid):
+    """Monto reservado por débitos preparados (2PC) que aún no se confirman."""
+    return sum(h["amount"] for h in data.get("prepared", {}).values() if h["account"] == aid and h["type"] == "debit")
+
+def apply_transfer_side(data, side, src, dst, amt):
+    aid = src if side == "debit" else dst
+    acc = data["accounts"][aid]
+    if side == "debit":
+        acc["balance"] -= amt
+        data["transactions"].setdefault(src, []).append(mov("debit", amt))
+        data["transactions"][src].append(mov("transfer_out", amt, to=dst))
+    else:
+        acc["balance"] += amt
+        data["transactions"].setdefault(dst, []).append(mov("credit", amt))
+        data["transactions"][dst].append(mov("transfer_in", amt, **{"from": src}))
+
 def handle_command(cmd):
     global loan_counter
     parts = cmd.strip().split("|")
     op = parts[0]
+    if op == "PING":
+        # latido del servidor: se responde sin leer el archivo de datos
+        return "PONG"
     data = load()
 
     if op == "CREATE_ACCOUNT":
@@ -36,6 +61,15 @@ def handle_command(cmd):
         save(data)
         return "OK"
 
+    elif op == "CREATE_ACCOUNTS_BATCH":
+        # CREATE_ACCOUNTS_BATCH|saldo|id1,id2,... -> una sola carga/escritura del archivo
+        bal = float(parts[1])
+        ids = [int(x) for x in parts[2].split(",") if x]
+        for aid in ids:
+            data["accounts"][str(aid)] = {"balance": bal, "loans": [], "id": aid, "id_cliente": aid}
+        save(data)
+        return f"OK|{len(ids)}"
+
     elif op == "CONSULTAR_CUENTA":
         aid = parts[1]
         acc = data["accounts"].get(aid)
@@ -46,9 +80,9 @@ def handle_command(cmd):
         aid = parts[1]; amt = float(parts[2])
         acc = data["accounts"].get(aid)
         if not acc: return "ERROR|NoExiste"
-        if acc["balance"] < amt: return "ERROR|SaldoInsuficiente"
+        if acc["balance"] - held(data, aid) < amt: return "ERROR|SaldoInsuficiente"
         acc["balance"] -= amt
-        data["transactions"].setdefault(aid, []).append({"type":"debit","amount":amt})
+        data["transactions"].setdefault(aid, []).append(mov("debit", amt))
         save(data)
         return "OK"
 
@@ -57,14 +91,63 @@ def handle_command(cmd):
         acc = data["accounts"].get(aid)
         if not acc: return "ERROR|NoExiste"
         acc["balance"] += amt
-        data["transactions"].setdefault(aid, []).append({"type":"credit","amount":amt})
+        data["transactions"].setdefault(aid, []).append(mov("credit", amt))
         save(data)
         return "OK"
 
     elif op == "RECORD_TX":
         src = parts[1]; dst = parts[2]; amt = float(parts[3])
-        data["transactions"].setdefault(src, []).append({"type":"transfer_out","to":dst,"amount":amt})
-        data["transactions"].setdefault(dst, []).append({"type":"transfer_in","from":src,"amount":amt})
+        data["transactions"].setdefault(src, []).append(mov("transfer_out", amt, to=dst))
+        data["transactions"].setdefault(dst, []).append(mov("transfer_in", amt, **{"from": src}))
+        save(data)
+        return "OK"
+
+    elif op in ("PREPARE_DEBIT", "PREPARE_CREDIT"):
+        # PREPARE_*|tx|cuenta|monto -> fase 1 del 2PC; el débito reserva el monto hasta COMMIT o ABORT
+        tx = parts[1]; aid = parts[2]; amt = float(parts[3])
+        side = "debit" if op == "PREPARE_DEBIT" else "credit"
+        acc = data["accounts"].get(aid)
+        if not acc: return "ERROR|NoExiste"
+        prepared = data.setdefault("prepared", {})
+        key = tx + ":" + side
+        if key in prepared: return "OK"
+        if side == "debit" and acc["balance"] - held(data, aid) < amt: return "ERROR|SaldoInsuficiente"
+        prepared[key] = {"type": side, "account": aid, "amount": amt}
+        save(data)
+        return "OK"
+
+    elif op == "COMMIT":
+        # COMMIT|tx|origen|destino|monto -> aplica lo preparado y registra la transferencia (idempotente)
+        tx = parts[1]; src = parts[2]; dst = parts[3]; amt = float(parts[4])
+        prepared = data.get("prepared", {})
+        changed = False
+        for side in ("debit", "credit"):
+            if prepared.pop(tx + ":" + side, None) is not None:
+                apply_transfer_side(data, side, src, dst, amt)
+                changed = True
+        if changed: save(data)
+        return "OK"
+
+    elif op == "ABORT":
+        tx = parts[1]
+        prepared = data.get("prepared", {})
+        removed = [prepared.pop(tx + ":" + side, None) for side in ("debit", "credit")]
+        if any(h is not None for h in removed): save(data)
+        return "OK"
+
+    elif op == "LIST_PREPARED":
+        txs = sorted({k.rsplit(":", 1)[0] for k in data.get("prepared", {})})
+        return "OK|" + ",".join(txs)
+
+    elif op == "TRANSFER_LOCAL":
+        # TRANSFER_LOCAL|tx|origen|destino|monto -> ambas cuentas en este worker, en un solo paso
+        src = parts[2]; dst = parts[3]; amt = float(parts[4])
+        acc = data["accounts"].get(src)
+        if not acc: return "ERROR|NoExiste"
+        if dst not in data["accounts"]: return "ERROR|DestinoNoExiste"
+        if acc["balance"] - held(data, src) < amt: return "ERROR|SaldoInsuficiente"
+        apply_transfer_side(data, "debit", src, dst, amt)
+        apply_transfer_side(data, "credit", src, dst, amt)
         save(data)
         return "OK"
 
@@ -129,6 +212,161 @@ def handle_command(cmd):
 
         return "OK|"+json.dumps(loan_details)
 
+    elif op == "HISTORIAL":
+        # HISTORIAL|cuenta|cursor|limite|desde|hasta|min|max -> OK|siguiente|pos,tipo,monto,contraparte,ts;...
+        # Recorre desde la posición cursor como mucho HISTORY_SCAN movimientos y devuelve hasta limite
+        # que pasen los filtros (vacío = sin filtro; con filtro de fecha no pasan los movimientos sin
+        # hora). siguiente es -1 cuando no quedan más movimientos
+        aid = parts[1]
+        if aid not in data["accounts"]: return "ERROR|NoExiste"
+        cursor = int(parts[2]); limit = int(parts[3])
+        since, until, low, high = [(f or None) for f in (parts[4:8] + [""] * 4)[:4]]
+        txs = data["transactions"].get(aid, [])
+        out = []
+        pos = cursor
+        end = min(len(txs), cursor + HISTORY_SCAN)
+        while pos < end and len(out) < limit:
+            t = txs[pos]
+            ts = t.get("ts", 0)
+            if (since is None or (ts and ts >= int(since))) and (until is None or (ts and ts <= int(until))) \
+                    and (low is None or t["amount"] >= float(low)) and (high is None or t["amount"] <= float(high)):
+                peer = t.get("to", t.get("from", ""))
+                out.append(f"{pos},{t['type']},{t['amount']},{peer},{ts}")
+            pos += 1
+        return f"OK|{pos if pos < len(txs) else -1}|" + ";".join(out)
+
+    elif op == "ACCRUE_INTEREST":
+        # ACCRUE_INTEREST|lote|tasa%|despues_de|limite -> OK|ultimo id|cuentas|prestamos|interes|id:interes,...
+        # Suma tasa% de lo pendiente a cada préstamo activo de las cuentas del tramo, al monto y a lo
+        # pendiente. El préstamo recuerda el último lote aplicado (ultimo_interes), así que repetir un
+        # tramo (un lote reanudado) no cobra dos veces. ultimo id es -1 cuando no quedan cuentas
+        run = parts[1]; rate = float(parts[2]); after = int(parts[3]); limit = int(parts[4])
+        ids = sorted(i for i in (int(k) for k in data["accounts"]) if i > after)[:limit]
+        total = 0.0; charged = 0; changed = []
+        for aid in ids:
+            charged_here = 0.0; touched = False
+            for loan in data["loans"].get(str(aid), []):
+                if loan["estado"] != "Activo" or loan["monto_pendiente"] <= 0 or loan.get("ultimo_interes") == run:
+                    continue
+                interest = round(loan["monto_pendiente"] * rate / 100, 2)
+                loan["monto"] = round(loan["monto"] + interest, 2)
+                loan["monto_pendiente"] = round(loan["monto_pendiente"] + interest, 2)
+                loan["ultimo_interes"] = run
+                total += interest; charged_here += interest; charged += 1; touched = True
+            if touched: changed.append(f"{aid}:{round(charged_here, 2)}")
+        if charged: save(data)
+        return f"OK|{ids[-1] if ids else -1}|{len(ids)}|{charged}|{round(total, 2)}|" + ",".join(changed)
+
+    elif op == "LOAN_REPORT":
+        # LOAN_REPORT|despues_de|limite|corte -> OK|ultimo id|cuentas|activos|cancelados|monto|pendiente|morosos|pendiente moroso
+        # Un préstamo activo sin nada pagado y solicitado antes del corte (yyyy-MM-dd HH:mm:ss) es moroso
+        after = int(parts[1]); limit = int(parts[2]); cutoff = parts[3]
+        ids = sorted(i for i in (int(k) for k in data["accounts"]) if i > after)[:limit]
+        active = cancelled = overdue = 0
+        amount = pending = overdue_pending = 0.0
+        for aid in ids:
+            for loan in data["loans"].get(str(aid), []):
+                if loan["estado"] != "Activo":
+                    cancelled += 1
+                else:
+                    active += 1
+                    if loan["monto_pendiente"] > 0 and loan["monto_pendiente"] >= loan["monto"] and loan["fecha_solicitud"] < cutoff:
+                        overdue += 1; overdue_pending += loan["monto_pendiente"]
+                amount += loan["monto"]; pending += loan["monto_pendiente"]
+        return f"OK|{ids[-1] if ids else -1}|{len(ids)}|{active}|{cancelled}|{round(amount, 2)}|{round(pending, 2)}" \
+               f"|{overdue}|{round(overdue_pending, 2)}"
+
+    elif op == "LIST_ACCOUNTS":
+        # LIST_ACCOUNTS|despues_de|limite -> ids ordenados, para recorrer la partición por páginas
+        after = int(parts[1]); limit = int(parts[2])
+        ids = sorted(i for i in (int(k) for k in data["accounts"]) if i > after)[:limit]
+        return "OK|" + ",".join(str(i) for i in ids)
+
+    elif op == "EXPORT_ACCOUNT":
+        # estado completo de una cuenta para migrarla a otro worker
+        aid = parts[1]
+        acc = data["accounts"].get(aid)
+        if not acc: return "ERROR|NoExiste"
+        # una reserva 2PC pendiente no viaja con la cuenta: el servidor reintenta la copia
+        if any(h["account"] == aid for h in data.get("prepared", {}).values()): return "ERROR|Reservada"
+        state = {"id": aid, "account": acc,
+                 "transactions": data["transactions"].get(aid, []),
+                 "loans": data["loans"].get(aid, [])}
+        return "OK|" + json.dumps(state)
+
+    elif op == "EXPORT_ACCOUNTS":
+        # EXPORT_ACCOUNTS|id1,id2,... -> OK|ids exportados|[estado, ...]: EXPORT_ACCOUNT de una página
+        # de una vez; se omiten las cuentas que no existen o tienen una reserva 2PC pendiente
+        reserved = {h["account"] for h in data.get("prepared", {}).values()}
+        ids = [aid for aid in parts[1].split(",") if aid in data["accounts"] and aid not in reserved] if len(parts) > 1 else []
+        states = [{"id": aid, "account": data["accounts"][aid],
+                   "transactions": data["transactions"].get(aid, []),
+                   "loans": data["loans"].get(aid, [])} for aid in ids]
+        return "OK|" + ",".join(ids) + "|" + json.dumps(states)
+
+    elif op == "IMPORT_ACCOUNT":
+        state = json.loads(cmd.strip().split("|", 1)[1])
+        aid = str(state["id"])
+        data["accounts"][aid] = state["account"]
+        data["transactions"][aid] = state.get("transactions") or []
+        data["loans"][aid] = state.get("loans") or []
+        # los IDs de préstamo importados no deben repetirse con los que se creen aquí
+        data["loan_counter"] = max([data.get("loan_counter", 0)] + [l["id"] for l in data["loans"][aid]])
+        save(data)
+        return "OK"
+
+    elif op == "REPLICA_PUT":
+        # REPLICA_PUT|version|estado -> copia de respaldo de una cuenta cuyo primario es otro worker.
+        # Se guarda aparte de las cuentas propias (ARQUEO y LIST_ACCOUNTS no la ven)
+        _, version, payload = cmd.strip().split("|", 2)
+        state = json.loads(payload); state["version"] = int(version)
+        replicas = data.setdefault("replicas", {})
+        cur = replicas.get(str(state["id"]))
+        if cur is None or cur["version"] < state["version"]:
+            replicas[str(state["id"])] = state
+            save(data)
+        return "OK"
+
+    elif op == "REPLICA_PUT_BATCH":
+        # REPLICA_PUT_BATCH|version|[estado, ...] -> REPLICA_PUT de cada estado, guardando una sola vez
+        _, version, payload = cmd.strip().split("|", 2)
+        replicas = data.setdefault("replicas", {})
+        changed = False
+        for state in json.loads(payload):
+            state["version"] = int(version)
+            cur = replicas.get(str(state["id"]))
+            if cur is None or cur["version"] < state["version"]:
+                replicas[str(state["id"])] = state
+                changed = True
+        if changed: save(data)
+        return "OK"
+
+    elif op == "REPLICA_GET":
+        # misma respuesta que CONSULTAR_CUENTA, leída de la copia de respaldo
+        rep = data.get("replicas", {}).get(parts[1])
+        if rep: return "OK|" + json.dumps(rep["account"])
+        return "ERROR|NoExiste"
+
+    elif op == "LIST_REPLICAS":
+        # LIST_REPLICAS|despues_de|limite -> "id:version" de las copias de respaldo, ordenadas por id
+        after = int(parts[1]); limit = int(parts[2])
+        reps = data.get("replicas", {})
+        ids = sorted(i for i in (int(k) for k in reps) if i > after)[:limit]
+        return "OK|" + ",".join(f"{i}:{reps[str(i)]['version']}" for i in ids)
+
+    elif op == "REPLICA_EXPORT":
+        # como EXPORT_ACCOUNT pero desde la copia de respaldo (para promoverla si el primario cayó)
+        rep = data.get("replicas", {}).get(parts[1])
+        if not rep: return "ERROR|NoExiste"
+        return "OK|" + json.dumps(rep)
+
+    elif op == "DELETE_ACCOUNT":
+        aid = parts[1]
+        for key in ("accounts", "transactions", "loans"):
+            data[key].pop(aid, None)
+        save(data)
+        return "OK"
+
     elif op == "ARQUEO":
         total_balance = sum(acc["balance"] for acc in data["accounts"].values())
         total_accounts = len(data["accounts"])
@@ -150,8 +388,13 @@ def listen_to_server(sock):
                 line = line.decode().strip()
                 if line == "":
                     continue
+                # "#tag|CMD": the server multiplexes requests, echo the tag back
+                tag = ""
+                if line.startswith("#") and "|" in line:
+                    tag, line = line.split("|", 1)
+                    tag += "|"
                 resp = handle_command(line)
-                sock.sendall((resp + "\n").encode())
+                sock.sendall((tag + resp + "\n").encode())
     except Exception as e:
         print("Worker error:", e)
     finally:
@@ -165,7 +408,7 @@ def main():
         try:
             sock = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
             sock.connect((CENTRAL_HOST, CENTRAL_PORT))
-            sock.sendall(f"WORKER|{WORKER_ID}\n".encode())
+            sock.sendall(f"WORKER|{WORKER_ID}|MUX\n".encode())
             print(f"Worker {WORKER_ID} connected to server {CENTRAL_HOST}:{CENTRAL_PORT}")
             listen_to_server(sock)
             print(f"Worker {WORKER_ID} disconnected normally, exiting.")